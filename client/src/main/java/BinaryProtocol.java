@@ -0,0 +1,106 @@
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary format of the read fast path of the replicas, which serves GETs without building
+ * or parsing any JSON. A request is the format version, the operation and the key in UTF-8. A
+ * response is a status, followed for a key that was found by its version, the time it expires
+ * (0 if it does not) and its value in UTF-8:
+ *
+ * <pre>
+ * request:  [version: 1 byte][op: 1 byte][key]
+ * response: [status: 1 byte]([version: 8 bytes][expiresAt: 8 bytes][value])?
+ * </pre>
+ */
+class BinaryProtocol {
+
+    static final byte FORMAT_VERSION = 1;
+    static final byte OP_GET = 1;
+    static final byte FOUND = 0;
+    static final byte NOT_FOUND = 1;
+
+    /**
+     * Creates a GET request.
+     *
+     * @param key the key to get
+     * @return the request
+     */
+    public static byte[] encodeGet(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] request = new byte[keyBytes.length + 2];
+        request[0] = FORMAT_VERSION;
+        request[1] = OP_GET;
+        System.arraycopy(keyBytes, 0, request, 2, keyBytes.length);
+        return request;
+    }
+
+    /**
+     * Reads the version, expiry time and value from the response to a GET.
+     *
+     * @param response the binary response
+     * @return the key that was found, or null if the response has no key
+     */
+    public static Found decodeFound(byte[] response) {
+        if (response.length == 0 || response[0] != FOUND) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(response, 1, response.length - 1);
+        long version = in.getLong();
+        long expiresAt = in.getLong();
+        return new Found(version, expiresAt, new String(response, in.position(), in.remaining(),
+                StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Converts the response to a GET into the JSON response the replicas send for a GET, so
+     * it can be handled like any other response.
+     *
+     * @param key      the key that was requested
+     * @param response the binary response
+     * @return the response in JSON format
+     */
+    public static String toJsonResponse(String key, byte[] response) {
+        Found found = decodeFound(response);
+        if (found == null) {
+            boolean notFound = response.length > 0 && response[0] == NOT_FOUND;
+            return new JSONObject().put("status", "400").put("message", notFound ?
+                    "GET FAILED for key '" + key + "'" : "Invalid GET request").toString();
+        }
+        return toJsonResponse(key, found);
+    }
+
+    /**
+     * Converts a key that was found into the JSON response the replicas send for a GET.
+     *
+     * @param key   the key that was requested
+     * @param found the version, expiry time and value of the key
+     * @return the response in JSON format
+     */
+    public static String toJsonResponse(String key, Found found) {
+        JSONObject json = new JSONObject();
+        json.put("status", "200").put("data", found.value).put("version", found.version)
+                .put("message", "Got key '" + key + "' with value '" + found.value +
+                        "' at version " + found.version);
+        if (found.expiresAt != 0) {
+            json.put("expiresAt", found.expiresAt);
+        }
+        return json.toString();
+    }
+
+    /**
+     * The version, expiry time and value of a key that was found.
+     */
+    static class Found {
+        final long version;
+        final long expiresAt;
+        final String value;
+
+        Found(long version, long expiresAt, String value) {
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.value = value;
+        }
+    }
+}
@@ -1,5 +1,12 @@
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * A class with some helper methods for processing user inputs and requests
  */
@@ -13,46 +20,181 @@ class Client {
     public static String formatInput(String input) {
 
         String[] inputs = input.split(" ", 3);
+        String method = inputs[0].toUpperCase();
 
         // Checks if the input is in the correct format
-        if (inputs.length != 2 && inputs.length != 3) {
+        if ((inputs.length != 2 && inputs.length != 3) &&
+                !(inputs.length == 1 && (method.equals("BACKUP") || method.equals("STATS") ||
+                        method.equals("TOPOLOGY")))) {
             ClientLogger.logError("Incorrect command syntax");
             return null;
         }
 
-        String method = inputs[0];
-
-        // Validate method
-        if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("PUT") &&
-                !method.equalsIgnoreCase("DEL")) {
-            ClientLogger.logError("Invalid method. Valid methods are GET, PUT, or DELETE.");
-            return null;
-        }
-
         // Prepare request based on method
         JSONObject request = new JSONObject();
-        if (method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("DEL")) {
-            if (inputs.length != 2) {
-                ClientLogger.logError("Incorrect syntax for " + method.toUpperCase());
+        request.put("method", method);
+        switch (method) {
+            case "BACKUP":
+            case "STATS":
+            case "TOPOLOGY":
+                break;
+            case "GET":
+            case "DEL":
+            case "TRACE":
+            case "RESTORE":
+                if (inputs.length != 2) {
+                    ClientLogger.logError("Incorrect syntax for " + method);
+                    return null;
+                }
+                request.put("data", inputs[1]);
+                break;
+            case "PUT":
+                if (inputs.length != 3) {
+                    ClientLogger.logError("Incorrect syntax for " + method);
+                    return null;
+                }
+                request.put("data", new JSONObject().put(inputs[1], inputs[2]));
+                break;
+            case "PUTEX":
+                // putex <key> <seconds> <value>, a PUT that expires after a time to live
+                String[] ttlAndValue = inputs.length == 3 ? inputs[2].split(" ", 2) :
+                        new String[0];
+                if (ttlAndValue.length != 2 || !ttlAndValue[0].matches("[1-9]\\d*")) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: putex <key> <seconds> <value>");
+                    return null;
+                }
+                request.put("method", "PUT");
+                request.put("data", new JSONObject().put(inputs[1], ttlAndValue[1]));
+                request.put("ttl", Long.parseLong(ttlAndValue[0]));
+                break;
+            case "PUTNX":
+                if (inputs.length != 3) {
+                    ClientLogger.logError("Incorrect syntax for " + method);
+                    return null;
+                }
+                request.put("data", new JSONObject().put("key", inputs[1]).put("value",
+                        inputs[2]));
+                break;
+            case "CAS":
+                // cas <key> <version> <value>, where version 0 means the key must not exist
+                String[] versionAndValue = inputs.length == 3 ? inputs[2].split(" ", 2) :
+                        new String[0];
+                if (versionAndValue.length != 2 || !versionAndValue[0].matches("\\d+")) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: cas <key> <version> <value>");
+                    return null;
+                }
+                request.put("data", new JSONObject().put("key", inputs[1])
+                        .put("version", Long.parseLong(versionAndValue[0]))
+                        .put("value", versionAndValue[1]));
+                break;
+            case "DELV":
+                if (inputs.length != 3 || !inputs[2].matches("\\d+")) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: delv <key> <version>");
+                    return null;
+                }
+                request.put("data", new JSONObject().put("key", inputs[1]).put("version",
+                        Long.parseLong(inputs[2])));
+                break;
+            case "TXN":
+                // txn if <key> <version>; put <key> <value>; del <key>
+                JSONObject txn = formatTransaction(input.substring(inputs[0].length()).trim());
+                if (txn == null) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: txn [if <key> <version>;]... put <key> <value>; " +
+                            "del <key>; ...");
+                    return null;
+                }
+                request.put("data", txn);
+                break;
+            case "WATCH":
+                // watch <key|prefix> <key or prefix> [position]
+                String[] target = inputs.length == 3 ? inputs[2].split(" ", 2) : new String[0];
+                if (target.length == 0 || (!inputs[1].equalsIgnoreCase("KEY") &&
+                        !inputs[1].equalsIgnoreCase("PREFIX")) ||
+                        (target.length == 2 && !target[1].matches("\\d+"))) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: watch <key|prefix> <key or prefix> [position]");
+                    return null;
+                }
+                JSONObject watch = new JSONObject().put(inputs[1].toLowerCase(), target[0]);
+                if (target.length == 2) {
+                    watch.put("from", Long.parseLong(target[1]));
+                }
+                request.put("data", watch);
+                break;
+            case "SCAN":
+                // scan <from> [to], where - leaves that end of the range open
+                JSONObject range = new JSONObject();
+                if (!inputs[1].equals("-")) {
+                    range.put("from", inputs[1]);
+                }
+                if (inputs.length == 3 && !inputs[2].equals("-")) {
+                    range.put("to", inputs[2]);
+                }
+                request.put("data", range);
+                break;
+            case "PREFIX":
+                // prefix <prefix> [cursor]
+                JSONObject prefix = new JSONObject().put("prefix", inputs[1]);
+                if (inputs.length == 3) {
+                    prefix.put("from", inputs[2]);
+                }
+                request.put("data", prefix);
+                break;
+            case "RECONFIG":
+                if (inputs.length != 3 || (!inputs[1].equalsIgnoreCase("ADD") &&
+                        !inputs[1].equalsIgnoreCase("REMOVE"))) {
+                    ClientLogger.logError("Incorrect syntax for " + method +
+                            ", expected: reconfig <add|remove> <host:port>");
+                    return null;
+                }
+                request.put("data", new JSONObject().put("op", inputs[1]).put("replica",
+                        inputs[2]));
+                break;
+            default:
+                ClientLogger.logError(
+                        "Invalid method. Valid methods are GET, SCAN, PREFIX, WATCH, PUT, PUTEX, " +
+                                "DEL, CAS, PUTNX, DELV, TXN, BACKUP, RESTORE, RECONFIG, " +
+                                "TRACE, STATS or TOPOLOGY.");
                 return null;
-            }
-            String key = inputs[1];
-            request.put("method", method);
-            request.put("data", key);
+        }
 
-        } else {
-            if (inputs.length != 3) {
-                ClientLogger.logError("Incorrect syntax for " + method.toUpperCase());
+        return request.toString();
+    }
+
+    /**
+     * Converts the statements of a transaction, separated by semicolons, into its conditions and
+     * operations
+     *
+     * @param statements the statements, each one of "if key version", "put key value" or
+     *                   "del key"
+     * @return the transaction in JSON format, or null if a statement is invalid
+     */
+    private static JSONObject formatTransaction(String statements) {
+        JSONArray conditions = new JSONArray();
+        JSONArray ops = new JSONArray();
+        for (String statement : statements.split(";")) {
+            String[] parts = statement.trim().split(" ", 3);
+            String type = parts[0].toUpperCase();
+            if (type.equals("IF") && parts.length == 3 && parts[2].matches("\\d+")) {
+                conditions.put(new JSONObject().put("key", parts[1]).put("version",
+                        Long.parseLong(parts[2])));
+            } else if (type.equals("PUT") && parts.length == 3) {
+                ops.put(new JSONObject().put("op", "PUT").put("key", parts[1]).put("value",
+                        parts[2]));
+            } else if (type.equals("DEL") && parts.length == 2) {
+                ops.put(new JSONObject().put("op", "DEL").put("key", parts[1]));
+            } else {
                 return null;
             }
-            String key = inputs[1];
-            String value = inputs[2];
-
-            request.put("method", method);
-            request.put("data", new JSONObject().put(key, value));
         }
-
-        return request.toString();
+        if (ops.isEmpty()) {
+            return null;
+        }
+        return new JSONObject().put("conditions", conditions).put("ops", ops);
     }
 
     /**
@@ -71,5 +213,79 @@ class Client {
         } else {
             ClientLogger.log(message);
         }
+        if (response.has("traceId")) {
+            ClientLogger.logInfo("Trace id: " + response.getString("traceId"));
+        }
+    }
+
+    /**
+     * Logs the key value pairs in a page returned by a SCAN or PREFIX request
+     *
+     * @param resString The response from the server in String form
+     */
+    public static void formatPage(String resString) {
+        JSONObject response = new JSONObject(resString);
+        if (!response.getString("status").equals("200")) {
+            return;
+        }
+
+        JSONObject page = new JSONObject(response.getString("data"));
+        JSONArray entries = page.getJSONArray("entries");
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.getJSONObject(i);
+            ClientLogger.log("  " + entry.getString("key") + " = " + entry.getString("value"));
+        }
+        if (page.has("next")) {
+            ClientLogger.logInfo("More results, continue from '" + page.getString("next") + "'");
+        }
+    }
+
+    /**
+     * Logs the changes returned by a WATCH request and the position to watch from next
+     *
+     * @param resString The response from the server in String form
+     */
+    public static void formatChanges(String resString) {
+        JSONObject response = new JSONObject(resString);
+        if (response.isNull("data")) {
+            return;
+        }
+
+        JSONObject batch = new JSONObject(response.getString("data"));
+        JSONArray changes = batch.optJSONArray("changes");
+        for (int i = 0; changes != null && i < changes.length(); i++) {
+            JSONObject change = changes.getJSONObject(i);
+            if (change.getString("op").equals("PUT")) {
+                ClientLogger.log("  [" + change.getLong("index") + "] " + change.getString("key") +
+                        " = " + change.getString("value") + " (version " +
+                        change.getLong("version") + ")");
+            } else {
+                ClientLogger.log("  [" + change.getLong("index") + "] " + change.getString("key") +
+                        " deleted");
+            }
+        }
+        ClientLogger.logInfo("Watch again from position " + batch.getLong("next"));
+    }
+
+    /**
+     * Saves the trace returned by a TRACE request to a file that can be opened with
+     * chrome://tracing or Perfetto.
+     *
+     * @param traceId   The id of the requested trace
+     * @param resString The response from the server in String form
+     */
+    public static void saveTrace(String traceId, String resString) {
+        JSONObject response = new JSONObject(resString);
+        if (!response.getString("status").equals("200")) {
+            return;
+        }
+
+        Path file = Paths.get("trace-" + traceId + ".json");
+        try {
+            Files.write(file, response.getString("data").getBytes(StandardCharsets.UTF_8));
+            ClientLogger.log("Trace written to " + file.toAbsolutePath());
+        } catch (IOException e) {
+            ClientLogger.logError("Error writing trace: " + e.getMessage());
+        }
     }
 }
@@ -1,23 +1,47 @@
+import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.net.UnknownHostException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.NavigableSet;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The main entrypoint for the client
  */
 public class ClientApp {
+    private static final int IMPORT_CHUNK_SIZE = 1000;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String CLIENT_ID = UUID.randomUUID().toString();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final NavigableSet<Long> OUTSTANDING = new ConcurrentSkipListSet<>();
+    private static final int CACHE_SIZE = Integer.getInteger("client.cacheSize", 1000);
+    private static final long CACHE_MAX_STALENESS_MILLIS =
+            Long.getLong("client.cacheMaxStalenessMillis", 1000);
+    private static final ConcurrentHashMap<ReplicaInterface, ReadCache> CACHES =
+            new ConcurrentHashMap<>();
+
     /**
      * The starting point for the client.
      *
@@ -99,8 +123,23 @@ public class ClientApp {
 
             ClientLogger.log("Input format is: METHOD KEY [VALUE]");
             ClientLogger.log("Example: put key value");
+            ClientLogger.log("Example: putex <key> <seconds> <value>");
             ClientLogger.log("Example: get key");
             ClientLogger.log("Example: del key");
+            ClientLogger.log("Example: cas <key> <version> <value>");
+            ClientLogger.log("Example: putnx key value");
+            ClientLogger.log("Example: delv <key> <version>");
+            ClientLogger.log("Example: txn if a 2; put a 1; del b");
+            ClientLogger.log("Example: scan <from> [to]");
+            ClientLogger.log("Example: prefix <prefix> [cursor]");
+            ClientLogger.log("Example: watch <key|prefix> <key or prefix> [position]");
+            ClientLogger.log("Example: import <file of sorted key<TAB>value lines>");
+            ClientLogger.log("Example: backup");
+            ClientLogger.log("Example: restore <backup file>");
+            ClientLogger.log("Example: reconfig remove <host:port>");
+            ClientLogger.log("Example: trace <trace id>");
+            ClientLogger.log("Example: stats");
+            ClientLogger.log("Example: topology");
 
             System.out.println();
 
@@ -111,6 +150,10 @@ public class ClientApp {
                     System.out.print("Enter command : ");
 
                     String input = scanner.nextLine().trim();
+                    if (input.toUpperCase().startsWith("IMPORT ")) {
+                        importFile(stub, Paths.get(input.substring("IMPORT ".length()).trim()));
+                        continue;
+                    }
                     String request = Client.formatInput(input);
                     if (request == null) {
                         continue;
@@ -118,12 +161,23 @@ public class ClientApp {
                     ClientLogger.log("Request to server: " + request);
 
                     // Send the request to the server
-                    String resString = stub.generateResponse(request);
+                    String resString = sendRequest(stub, request);
 
                     // Get the response from the server
                     if (resString != null) {
                         try {
                             Client.formatResponse(resString);
+                            if (input.toUpperCase().startsWith("TRACE ")) {
+                                Client.saveTrace(input.split(" ")[1], resString);
+                            } else if (input.toUpperCase().startsWith("SCAN ") ||
+                                    input.toUpperCase().startsWith("PREFIX ")) {
+                                Client.formatPage(resString);
+                            } else if (input.toUpperCase().startsWith("WATCH ")) {
+                                Client.formatChanges(resString);
+                            } else if (input.equalsIgnoreCase("STATS") &&
+                                    cacheFor(stub) != null) {
+                                ClientLogger.logInfo("Read cache: " + cacheFor(stub).getStats());
+                            }
                         } catch (JSONException e) {
                             ClientLogger.logError("Error parsing JSON: " + e.getMessage());
                         }
@@ -211,7 +265,7 @@ public class ClientApp {
             executorService.submit(() -> {
                 try {
                     //ClientLogger.logInfo("Command: " + command);
-                    String response = server.generateResponse(command);
+                    String response = sendRequest(server, command);
                     Client.formatResponse(response);
                 } catch (RemoteException e) {
                     throw new RuntimeException(e);
@@ -259,7 +313,7 @@ public class ClientApp {
         for (String command : commands) {
             try {
                 String request = Client.formatInput(command);
-                String resString = stub.generateResponse(request);
+                String resString = sendRequest(stub, request);
                 Client.formatResponse(resString);
             } catch (RemoteException e) {
                 ClientLogger.logError("Client remote exception: " + e.getMessage());
@@ -267,6 +321,192 @@ public class ClientApp {
         }
     }
 
+    /**
+     * Imports a file of key value pairs, one "key<TAB>value" line per pair in sorted key order.
+     * The pairs are streamed to the server in chunks and committed together by a single command,
+     * instead of a PUT for each pair.
+     *
+     * @param stub an instance of the remote interface
+     * @param file the file to import
+     */
+    private static void importFile(ReplicaInterface stub, Path file) {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JSONObject response = sendImport(stub, new JSONObject().put("op", "BEGIN"));
+            if (response == null) {
+                return;
+            }
+            String importId = response.getString("data");
+
+            int chunk = 0;
+            long pairs = 0;
+            JSONArray entries = new JSONArray();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    ClientLogger.logError("Invalid line " + (pairs + 1) +
+                            ", expected key<TAB>value");
+                    return;
+                }
+                entries.put(new JSONArray().put(line.substring(0, tab))
+                        .put(line.substring(tab + 1)));
+                pairs++;
+                if (entries.length() == IMPORT_CHUNK_SIZE) {
+                    if (sendImport(stub, new JSONObject().put("op", "CHUNK").put("id", importId)
+                            .put("chunk", chunk++).put("entries", entries)) == null) {
+                        return;
+                    }
+                    entries = new JSONArray();
+                    ClientLogger.logInfo("Sent " + pairs + " pairs");
+                }
+            }
+            if (!entries.isEmpty() && sendImport(stub, new JSONObject().put("op", "CHUNK")
+                    .put("id", importId).put("chunk", chunk).put("entries", entries)) == null) {
+                return;
+            }
+
+            response = sendImport(stub, new JSONObject().put("op", "COMMIT").put("id", importId));
+            if (response != null) {
+                Client.formatResponse(response.toString());
+            }
+        } catch (IOException e) {
+            ClientLogger.logError("Could not import " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends a request to the server, tagged with the id of this client and the next sequence
+     * number. The request is retried with the same tags if the call fails or the server turned
+     * it away as busy, so the replicas can tell a retried write from a new one and apply it
+     * once. A busy server is retried after the time it asked for, with some jitter so turned
+     * away clients do not all retry together. A GET takes the binary read fast path instead,
+     * and a write drops the keys it writes from the read cache before and after it is sent.
+     *
+     * @param stub    an instance of the remote interface
+     * @param request the formatted request
+     * @return the response from the server
+     * @throws RemoteException If there is an error during the remote call on the last attempt
+     */
+    private static String sendRequest(ReplicaInterface stub, String request)
+            throws RemoteException {
+        JSONObject parsed = new JSONObject(request);
+        if (parsed.getString("method").equals("GET")) {
+            return readKey(stub, parsed.getString("data"));
+        }
+
+        ReadCache cache = cacheFor(stub);
+        if (cache != null) {
+            cache.invalidateWrites(parsed);
+        }
+        long seq = SEQUENCE.incrementAndGet();
+        OUTSTANDING.add(seq);
+        try {
+            String tagged = parsed.put("clientId", CLIENT_ID).put("seq", seq)
+                    .put("ack", OUTSTANDING.first()).toString();
+            for (int attempt = 1; ; attempt++) {
+                String resString;
+                try {
+                    resString = stub.generateResponse(tagged);
+                } catch (RemoteException e) {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    ClientLogger.logWarning("Request failed, retrying: " + e.getMessage());
+                    continue;
+                }
+
+                JSONObject response = new JSONObject(resString);
+                if (!response.optBoolean("busy") || attempt >= MAX_ATTEMPTS) {
+                    return resString;
+                }
+                long retryAfter = response.optLong("retryAfterMillis", 100);
+                try {
+                    Thread.sleep(retryAfter +
+                            ThreadLocalRandom.current().nextLong(retryAfter + 1));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return resString;
+                }
+            }
+        } finally {
+            OUTSTANDING.remove(seq);
+            if (cache != null) {
+                cache.invalidateWrites(parsed);
+            }
+        }
+    }
+
+    /**
+     * Gets a key from the read cache of the server, or through its binary read fast path if the
+     * key is not cached, retrying if the call fails
+     *
+     * @param stub an instance of the remote interface
+     * @param key  the key to get
+     * @return the response in the JSON format of a GET response
+     * @throws RemoteException If there is an error during the remote call on the last attempt
+     */
+    private static String readKey(ReplicaInterface stub, String key) throws RemoteException {
+        ReadCache cache = cacheFor(stub);
+        BinaryProtocol.Found cached = cache != null ? cache.get(key) : null;
+        if (cached != null) {
+            return BinaryProtocol.toJsonResponse(key, cached);
+        }
+
+        Object placeholder = cache != null ? cache.startFill(key) : null;
+        byte[] request = BinaryProtocol.encodeGet(key);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                byte[] response = stub.read(request);
+                if (placeholder != null) {
+                    cache.finishFill(key, placeholder, BinaryProtocol.decodeFound(response));
+                }
+                return BinaryProtocol.toJsonResponse(key, response);
+            } catch (RemoteException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                ClientLogger.logWarning("Request failed, retrying: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the read cache of a server, creating it on first use
+     *
+     * @param stub an instance of the remote interface
+     * @return the read cache, or null if caching is turned off
+     */
+    private static ReadCache cacheFor(ReplicaInterface stub) {
+        if (CACHE_SIZE <= 0) {
+            return null;
+        }
+        return CACHES.computeIfAbsent(stub,
+                s -> new ReadCache(s, CACHE_SIZE, CACHE_MAX_STALENESS_MILLIS));
+    }
+
+    /**
+     * Sends one step of an import to the server
+     *
+     * @param stub an instance of the remote interface
+     * @param data the step and its parameters
+     * @return the response, or null if the step failed
+     * @throws RemoteException If there is an error during the remote call
+     */
+    private static JSONObject sendImport(ReplicaInterface stub, JSONObject data)
+            throws RemoteException {
+        JSONObject request = new JSONObject().put("method", "IMPORT").put("data", data);
+        JSONObject response = new JSONObject(stub.generateResponse(request.toString()));
+        ReadCache cache = cacheFor(stub);
+        if (cache != null && data.getString("op").equals("COMMIT")) {
+            cache.invalidateWrites(request);
+        }
+        if (!response.getString("status").equals("200")) {
+            Client.formatResponse(response.toString());
+            return null;
+        }
+        return response;
+    }
+
     /**
      * Automatically performs 5 of each type of operation (GET, PUT and DEL)
      *
@@ -280,7 +520,7 @@ public class ClientApp {
         for (String command : putCommands) {
             try {
                 String request = Client.formatInput(command);
-                String resString = stub.generateResponse(request);
+                String resString = sendRequest(stub, request);
                 Client.formatResponse(resString);
             } catch (RemoteException e) {
                 ClientLogger.logError("Client remote exception: " + e.getMessage());
@@ -294,7 +534,7 @@ public class ClientApp {
         for (String command : getCommands) {
             try {
                 String request = Client.formatInput(command);
-                String resString = stub.generateResponse(request);
+                String resString = sendRequest(stub, request);
                 Client.formatResponse(resString);
             } catch (RemoteException e) {
                 ClientLogger.logError("Client remote exception: " + e.getMessage());
@@ -308,7 +548,7 @@ public class ClientApp {
         for (String command : delCommands) {
             try {
                 String request = Client.formatInput(command);
-                String resString = stub.generateResponse(request);
+                String resString = sendRequest(stub, request);
                 Client.formatResponse(resString);
             } catch (RemoteException e) {
                 ClientLogger.logError("Client remote exception: " + e.getMessage());
@@ -0,0 +1,260 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the values of the keys a client reads most recently from one replica, so reads of
+ * hot keys are answered without calling the replica at all. The cache holds at most a fixed
+ * number of keys and drops the least recently read one beyond it.
+ *
+ * <p>The cache is kept up to date by the applied command stream of the replica: a thread
+ * watches every key from the position the cache has seen changes up to, and drops each key that
+ * changed to anything other than the version and value cached for it. A key that is read while
+ * it is not cached gets a placeholder before the read is sent, and the value read only replaces
+ * the placeholder if no change to the key came in meanwhile, so a read that raced with a write
+ * is never cached. If the watch falls behind what the replica retains or fails, the whole cache
+ * is dropped.
+ *
+ * <p>Values are only served while the watch has caught up with the replica within the staleness
+ * bound, so a value is never served if the cache may have missed a change to it for longer than
+ * that. Writes sent by this client drop the keys they write, so the client reads its own writes.
+ */
+class ReadCache {
+
+    private static final int MAX_CHANGES = 1000;
+    private final ReplicaInterface stub;
+    private final int maxKeys;
+    private final long maxStalenessMillis;
+    private final LinkedHashMap<String, Entry> entries; // Key, Entry, least recently read first
+    private long syncedAt; // The time the cache was last known to have seen every change
+    private boolean watching; // Whether the cache has a position in the replica's stream
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates a cache for a replica and starts watching it.
+     *
+     * @param stub               the replica to cache reads from
+     * @param maxKeys            the maximum number of keys to cache
+     * @param maxStalenessMillis how long ago the cache may have last caught up with the replica
+     *                           for it to still serve values
+     */
+    public ReadCache(ReplicaInterface stub, int maxKeys, long maxStalenessMillis) {
+        this.stub = stub;
+        this.maxKeys = maxKeys;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ReadCache.this.maxKeys;
+            }
+        };
+
+        Thread watcher = new Thread(this::watch, "read-cache");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Gets the cached value of a key, if it is cached and the cache is recent enough.
+     *
+     * @param key the key
+     * @return the value, or null if it has to be read from the replica
+     */
+    public synchronized BinaryProtocol.Found get(String key) {
+        Entry entry = this.entries.get(key);
+        long now = System.currentTimeMillis();
+        if (entry == null || entry.found == null || now - this.syncedAt > this.maxStalenessMillis) {
+            this.misses++;
+            return null;
+        } else if (entry.found.expiresAt != 0 && now >= entry.found.expiresAt) {
+            this.entries.remove(key);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.found;
+    }
+
+    /**
+     * Puts a placeholder for a key that is about to be read from the replica.
+     *
+     * @param key the key
+     * @return the placeholder to pass to {@link #finishFill(String, Object,
+     * BinaryProtocol.Found)}, or null if the cache has no position in the stream to fill from
+     */
+    public synchronized Object startFill(String key) {
+        if (!this.watching) {
+            return null;
+        }
+        Entry placeholder = new Entry(null);
+        this.entries.put(key, placeholder);
+        return placeholder;
+    }
+
+    /**
+     * Caches the value read for a key, unless the key changed since its placeholder was put.
+     *
+     * @param key         the key
+     * @param placeholder the placeholder returned by {@link #startFill(String)}
+     * @param found       the value read, or null if the key was not found
+     */
+    public synchronized void finishFill(String key, Object placeholder,
+                                        BinaryProtocol.Found found) {
+        if (this.entries.get(key) != placeholder) {
+            return;
+        }
+        if (found != null) {
+            this.entries.put(key, new Entry(found));
+        } else {
+            this.entries.remove(key);
+        }
+    }
+
+    /**
+     * Drops the keys a request is about to write, or every key if it replaces the whole store.
+     *
+     * @param request the request in JSON format
+     */
+    public synchronized void invalidateWrites(JSONObject request) {
+        Object data = request.opt("data");
+        switch (request.getString("method")) {
+            case "PUT":
+                for (String key : ((JSONObject) data).keySet()) {
+                    this.entries.remove(key);
+                }
+                break;
+            case "DEL":
+                this.entries.remove((String) data);
+                break;
+            case "CAS":
+            case "PUTNX":
+            case "DELV":
+                this.entries.remove(((JSONObject) data).getString("key"));
+                break;
+            case "TXN":
+                JSONArray ops = ((JSONObject) data).getJSONArray("ops");
+                for (int i = 0; i < ops.length(); i++) {
+                    this.entries.remove(ops.getJSONObject(i).getString("key"));
+                }
+                break;
+            case "RESTORE":
+            case "IMPORT":
+                this.entries.clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the number of reads served from the cache and sent to the replica.
+     *
+     * @return the hit and miss counts
+     */
+    public synchronized String getStats() {
+        return "hits=" + this.hits + ", misses=" + this.misses + ", keys=" + this.entries.size();
+    }
+
+    /**
+     * Watches every key on the replica for as long as the client runs, dropping the cached keys
+     * that change. Each watch waits at most half the staleness bound, so the cache catches up
+     * often enough to keep serving while nothing changes.
+     */
+    private void watch() {
+        long pollMillis = Math.max(1, this.maxStalenessMillis / 2);
+        long position = -1;
+        while (true) {
+            long sentAt = System.currentTimeMillis();
+            JSONObject data = new JSONObject().put("prefix", "").put("limit", MAX_CHANGES);
+            if (position >= 0) {
+                data.put("from", position).put("timeout", pollMillis);
+            } else {
+                // Take the current position without waiting, so the cache can start filling
+                data.put("timeout", 0);
+            }
+
+            JSONObject response;
+            try {
+                response = new JSONObject(this.stub.generateResponse(
+                        new JSONObject().put("method", "WATCH").put("data", data).toString()));
+            } catch (RemoteException e) {
+                ClientLogger.logWarning("Read cache lost its watch: " + e.getMessage());
+                reset();
+                position = -1;
+                if (!sleep(pollMillis)) {
+                    return;
+                }
+                continue;
+            }
+
+            JSONObject batch = response.isNull("data") ? null :
+                    new JSONObject(response.getString("data"));
+            if (batch == null || !batch.has("next")) {
+                reset();
+                position = -1;
+                if (!sleep(pollMillis)) {
+                    return;
+                }
+            } else if (!response.getString("status").equals("200")) {
+                // Changes since the position are no longer retained, so start over from next
+                reset();
+                position = batch.getLong("next");
+                synced(sentAt);
+            } else {
+                JSONArray changes = batch.getJSONArray("changes");
+                for (int i = 0; i < changes.length(); i++) {
+                    invalidate(changes.getJSONObject(i));
+                }
+                position = batch.getLong("next");
+                if (changes.length() < MAX_CHANGES) {
+                    synced(sentAt);
+                }
+            }
+        }
+    }
+
+    private synchronized void invalidate(JSONObject change) {
+        String key = change.getString("key");
+        Entry entry = this.entries.get(key);
+        if (entry != null && (entry.found == null || !change.getString("op").equals("PUT") ||
+                entry.found.version != change.getLong("version") ||
+                !entry.found.value.equals(change.getString("value")))) {
+            this.entries.remove(key);
+        }
+    }
+
+    private synchronized void synced(long at) {
+        this.syncedAt = at;
+        this.watching = true;
+    }
+
+    private synchronized void reset() {
+        this.entries.clear();
+        this.watching = false;
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A cached value, or a placeholder for a key that is being read.
+     */
+    private static class Entry {
+        final BinaryProtocol.Found found;
+
+        Entry(BinaryProtocol.Found found) {
+            this.found = found;
+        }
+    }
+}
@@ -14,4 +14,14 @@ public interface ReplicaInterface extends Remote {
      * @throws RemoteException If there is an error during the remote call
      */
     String generateResponse(String requestStr) throws RemoteException;
+
+    /**
+     * Serves a read in the binary format of {@link BinaryProtocol}, without the JSON handling
+     * and logging of {@link #generateResponse(String)}
+     *
+     * @param request The request in the binary format
+     * @return The response in the binary format
+     * @throws RemoteException If there is an error during the remote call
+     */
+    byte[] read(byte[] request) throws RemoteException;
 }
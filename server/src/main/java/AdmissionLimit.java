@@ -0,0 +1,112 @@
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of client writes a replica has in flight, so that under overload new writes
+ * are turned away at once with a hint of when to retry, instead of queueing until every write
+ * times out.
+ *
+ * <p>The limit adapts to the commit latency with additive increase and multiplicative decrease.
+ * Each write that commits within the target latency while the limit is being used raises the
+ * limit by about one per limit's worth of writes, and a write that commits late, or that the
+ * leader turned away as busy, cuts it by a tenth. Cuts are at most one per target latency, so a
+ * burst of late writes counts as a single sign of overload.
+ */
+class AdmissionLimit {
+
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final long MIN_RETRY_AFTER_MS = 10;
+    private static final long MAX_RETRY_AFTER_MS = 5000;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private double limit;
+    private int inFlight;
+    private long admitted;
+    private long rejected;
+    private double smoothedLatencyNanos;
+    private long lastDecrease;
+
+    /**
+     * Creates a limit that starts at a quarter of its maximum.
+     *
+     * @param maxLimit     the most writes allowed in flight
+     * @param targetMillis the commit latency above which the limit is cut
+     */
+    public AdmissionLimit(int maxLimit, long targetMillis) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.min(this.maxLimit, 4);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.limit = Math.max(this.minLimit, this.maxLimit / 4);
+        this.lastDecrease = System.nanoTime() - this.targetNanos;
+    }
+
+    /**
+     * Admits a write if fewer writes than the limit are in flight. An admitted write has to be
+     * released with {@link #release(long, boolean)} once it completes.
+     *
+     * @return true if the write was admitted
+     */
+    public synchronized boolean tryAcquire() {
+        if (this.inFlight >= (int) this.limit) {
+            this.rejected++;
+            return false;
+        }
+        this.inFlight++;
+        this.admitted++;
+        return true;
+    }
+
+    /**
+     * Releases an admitted write and adjusts the limit to how long it took.
+     *
+     * @param latencyNanos how long the write took to complete
+     * @param overloaded   true if the write was turned away by a busy leader
+     */
+    public synchronized void release(long latencyNanos, boolean overloaded) {
+        boolean saturated = this.inFlight >= (int) this.limit / 2;
+        this.inFlight--;
+        this.smoothedLatencyNanos = this.smoothedLatencyNanos == 0 ? latencyNanos :
+                this.smoothedLatencyNanos * 0.9 + latencyNanos * 0.1;
+
+        long now = System.nanoTime();
+        if (overloaded || latencyNanos > this.targetNanos) {
+            if (now - this.lastDecrease >= this.targetNanos) {
+                this.limit = Math.max(this.minLimit, this.limit * DECREASE_FACTOR);
+                this.lastDecrease = now;
+            }
+        } else if (saturated) {
+            // Only grow while the writes use the limit, so an idle replica keeps a tested limit
+            this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+        }
+    }
+
+    /**
+     * Suggests how long a turned away client should wait before retrying, about the time the
+     * writes in flight take to commit.
+     *
+     * @return the time to wait in milliseconds
+     */
+    public synchronized long retryAfterMillis() {
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis((long) this.smoothedLatencyNanos);
+        return Math.min(MAX_RETRY_AFTER_MS, Math.max(MIN_RETRY_AFTER_MS, latencyMillis));
+    }
+
+    /**
+     * Returns the current limit and the counters kept since it was created.
+     *
+     * @return the limit, the writes in flight, the admitted and rejected writes and the smoothed
+     * commit latency
+     */
+    public synchronized JSONObject getStats() {
+        return new JSONObject()
+                .put("limit", (int) this.limit)
+                .put("maxLimit", this.maxLimit)
+                .put("inFlight", this.inFlight)
+                .put("admitted", this.admitted)
+                .put("rejected", this.rejected)
+                .put("latencyMillis",
+                        TimeUnit.NANOSECONDS.toMillis((long) this.smoothedLatencyNanos));
+    }
+}
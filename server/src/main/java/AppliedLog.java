@@ -0,0 +1,139 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A class that numbers the commands applied by a replica and keeps the most recent ones. The
+ * applied index tags snapshots, and the retained tail lets a lagging replica catch up and
+ * duplicate commands be recognised.
+ */
+class AppliedLog {
+
+    private static final int MAX_TAIL = 1000;
+    private final TreeMap<Long, String> tail; // Applied index, Command
+    private final Map<String, Long> commandIndexes; // Command ID, Applied index
+    private long appliedIndex;
+
+    /**
+     * Creates an empty applied log.
+     */
+    public AppliedLog() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * Creates an applied log from a previously saved tail.
+     *
+     * @param savedTail The saved tail, mapping applied indexes to commands.
+     */
+    public AppliedLog(Map<Long, String> savedTail) {
+        this.tail = new TreeMap<>();
+        this.commandIndexes = new HashMap<>();
+        this.appliedIndex = 0;
+        for (Map.Entry<Long, String> entry : new TreeMap<>(savedTail).entrySet()) {
+            append(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Extracts the unique id of a command.
+     *
+     * @param command The command as a JSON string.
+     * @return The id of the command, or null if it has none.
+     */
+    public static String commandIdOf(String command) {
+        try {
+            return new JSONObject(command).optString("commandId", null);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the index of the last applied command.
+     *
+     * @return The applied index.
+     */
+    public synchronized long getAppliedIndex() {
+        return this.appliedIndex;
+    }
+
+    /**
+     * Returns the index of the oldest command still in the tail. A command before it can no
+     * longer be recognised as a duplicate or pulled by a lagging replica.
+     *
+     * @return The oldest retained index, or the next index if the tail is empty.
+     */
+    public synchronized long getFirstIndex() {
+        return this.tail.isEmpty() ? this.appliedIndex + 1 : this.tail.firstKey();
+    }
+
+    /**
+     * Checks if a command was applied recently enough to still be in the tail.
+     *
+     * @param commandId The id of the command.
+     * @return True if the command was already applied, otherwise false.
+     */
+    public synchronized boolean contains(String commandId) {
+        return commandId != null && this.commandIndexes.containsKey(commandId);
+    }
+
+    /**
+     * Records a command as applied at the next index.
+     *
+     * @param command The command that was applied.
+     * @return The index the command was applied at.
+     */
+    public synchronized long append(String command) {
+        append(this.appliedIndex + 1, command);
+        return this.appliedIndex;
+    }
+
+    /**
+     * Records a command at a given index, evicting the oldest command if the tail is full.
+     *
+     * @param index   The index the command was applied at.
+     * @param command The command that was applied.
+     */
+    private void append(long index, String command) {
+        this.appliedIndex = index;
+        this.tail.put(index, command);
+        String commandId = commandIdOf(command);
+        if (commandId != null) {
+            this.commandIndexes.put(commandId, index);
+        }
+
+        if (this.tail.size() > MAX_TAIL) {
+            Map.Entry<Long, String> oldest = this.tail.pollFirstEntry();
+            this.commandIndexes.remove(commandIdOf(oldest.getValue()));
+        }
+    }
+
+    /**
+     * Retrieves the commands applied after an index.
+     *
+     * @param index The index to start after.
+     * @return The commands keyed by applied index, or null if the tail no longer reaches back to
+     * the index.
+     */
+    public synchronized SortedMap<Long, String> since(long index) {
+        if (index < this.appliedIndex &&
+                (this.tail.isEmpty() || this.tail.firstKey() > index + 1)) {
+            return null;
+        }
+        return new TreeMap<>(this.tail.tailMap(index, false));
+    }
+
+    /**
+     * Returns a copy of the retained tail, for saving and for snapshots.
+     *
+     * @return The tail, mapping applied indexes to commands.
+     */
+    public synchronized Map<Long, String> toMap() {
+        return new HashMap<>(this.tail);
+    }
+}
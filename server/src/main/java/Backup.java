@@ -0,0 +1,135 @@
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A class for writing and reading backups of the key value store. A backup is a text file with
+ * one JSON value per line: a header with the applied index the backup was taken at, then chunks
+ * of [key, value] pairs in key order, then a trailer with the number of pairs, which tells a
+ * complete backup from one that was cut short.
+ *
+ * <p>The values are stored as the storage engine holds them, with their versions and expiry
+ * times, so a restored store is the same as the one that was backed up.
+ */
+class Backup {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * Writes a backup. The file is written under a temporary name and moved into place once
+     * complete.
+     *
+     * @param path    the file to write the backup to
+     * @param header  the header, with the applied index the pairs were read at
+     * @param entries the stored key value pairs, in key order
+     * @return the number of pairs written
+     * @throws IOException If an I/O error occurs.
+     */
+    public static long write(Path path, JSONObject header,
+                             Iterator<Map.Entry<String, String>> entries) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tempFilePath = Files.createTempFile(path.getParent(), path.getFileName().toString(),
+                null);
+        long count = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFilePath,
+                StandardCharsets.UTF_8)) {
+            writer.write(header.toString());
+            writer.newLine();
+
+            JSONArray chunk = new JSONArray();
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                chunk.put(new JSONArray().put(entry.getKey()).put(entry.getValue()));
+                count++;
+                if (chunk.length() == CHUNK_SIZE || !entries.hasNext()) {
+                    writer.write(chunk.toString());
+                    writer.newLine();
+                    chunk = new JSONArray();
+                }
+            }
+            writer.write(new JSONObject().put("entries", count).toString());
+            writer.newLine();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFilePath);
+            throw e;
+        }
+
+        try {
+            Files.move(tempFilePath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFilePath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    /**
+     * Reads a backup one chunk at a time.
+     *
+     * @param path   the file of the backup
+     * @param reader receives the header and then each chunk
+     * @return the number of pairs read
+     * @throws IOException If an I/O error occurs or the backup is incomplete.
+     */
+    public static long read(Path path, Reader reader) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("Backup " + path.getFileName() + " is empty");
+            }
+            reader.header(new JSONObject(line));
+
+            long count = 0;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("{")) {
+                    long expected = new JSONObject(line).getLong("entries");
+                    if (expected != count) {
+                        throw new IOException("Backup " + path.getFileName() + " has " + count +
+                                " pairs but expected " + expected);
+                    }
+                    return count;
+                }
+                JSONArray chunk = new JSONArray(line);
+                reader.chunk(chunk);
+                count += chunk.length();
+            }
+            throw new IOException("Backup " + path.getFileName() + " is incomplete");
+        } catch (JSONException e) {
+            throw new IOException("Backup " + path.getFileName() + " is corrupt: " +
+                    e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Receives the contents of a backup as it is read.
+     */
+    interface Reader {
+
+        /**
+         * Receives the header of the backup.
+         *
+         * @param header the header
+         * @throws IOException If the header cannot be used.
+         */
+        void header(JSONObject header) throws IOException;
+
+        /**
+         * Receives the next chunk of [key, value] pairs, in key order.
+         *
+         * @param chunk the pairs
+         * @throws IOException If the chunk cannot be used.
+         */
+        void chunk(JSONArray chunk) throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The binary format of the read fast path, which serves GETs without building or parsing any
+ * JSON. A request is the format version, the operation and the key in UTF-8. A response is a
+ * status, followed for a key that was found by its version, the time it expires (0 if it does
+ * not) and its value in UTF-8:
+ *
+ * <pre>
+ * request:  [version: 1 byte][op: 1 byte][key]
+ * response: [status: 1 byte]([version: 8 bytes][expiresAt: 8 bytes][value])?
+ * </pre>
+ *
+ * <p>Responses are assembled in a buffer kept by each thread and copied out once, so a read
+ * allocates nothing but the array that is sent.
+ */
+class BinaryProtocol {
+
+    static final byte FORMAT_VERSION = 1;
+    static final byte OP_GET = 1;
+    static final byte FOUND = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte BAD_REQUEST = 2;
+    private static final int HEADER_BYTES = 1 + Long.BYTES + Long.BYTES;
+    private static final int POOLED_BUFFER_BYTES = 64 * 1024;
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Reads the key of a GET request.
+     *
+     * @param request the request
+     * @return the key
+     * @throws IllegalArgumentException If the request is not a GET in a known format.
+     */
+    public static String decodeGet(byte[] request) {
+        if (request == null || request.length < 2 || request[0] != FORMAT_VERSION ||
+                request[1] != OP_GET) {
+            throw new IllegalArgumentException("Not a GET request");
+        }
+        return new String(request, 2, request.length - 2, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates the response for a key that was found.
+     *
+     * @param version   the version of the key
+     * @param expiresAt the time the key expires in milliseconds, or 0 if it doesn't expire
+     * @param value     the value of the key
+     * @return the response
+     */
+    public static byte[] encodeFound(long version, long expiresAt, String value) {
+        Buffers buffers = BUFFERS.get();
+        long maxBytes = HEADER_BYTES + (long) value.length() * 3;
+        ByteBuffer out = maxBytes <= POOLED_BUFFER_BYTES ? buffers.buffer :
+                ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, maxBytes));
+        out.clear();
+        out.put(FOUND).putLong(version).putLong(expiresAt);
+        CharsetEncoder encoder = buffers.encoder.reset();
+        encoder.encode(CharBuffer.wrap(value), out, true);
+        encoder.flush(out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Creates a response that only has a status.
+     *
+     * @param status {@link #NOT_FOUND} or {@link #BAD_REQUEST}
+     * @return the response
+     */
+    public static byte[] encodeStatus(byte status) {
+        return new byte[]{status};
+    }
+
+    /**
+     * The buffer and encoder a thread reuses for its responses.
+     */
+    private static class Buffers {
+        final ByteBuffer buffer = ByteBuffer.allocate(POOLED_BUFFER_BYTES);
+        final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A bloom filter over string keys, used to skip SSTables that cannot contain a key.
+ */
+class BloomFilter {
+    private final long[] bits;
+    private final int numHashes;
+
+    /**
+     * Creates a filter sized for a number of keys and a false positive rate.
+     *
+     * @param expectedKeys      the number of keys that will be added
+     * @param falsePositiveRate the acceptable rate of false positives
+     */
+    public BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int n = Math.max(1, expectedKeys);
+        long numBits =
+                (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bits = new long[(int) Math.max(1, (numBits + 63) / 64)];
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+    }
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Adds a key to the filter.
+     *
+     * @param key the key to add
+     */
+    public void add(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        long numBits = (long) this.bits.length * 64;
+        for (int i = 0; i < this.numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            this.bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks if a key may have been added to the filter.
+     *
+     * @param key the key to check
+     * @return false if the key was definitely not added, true if it may have been
+     */
+    public boolean mightContain(String key) {
+        int h1 = key.hashCode();
+        int h2 = secondHash(key);
+        long numBits = (long) this.bits.length * 64;
+        for (int i = 0; i < this.numHashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, numBits);
+            if ((this.bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter to an output.
+     *
+     * @param out the output to write to
+     * @throws IOException If an I/O error occurs.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.numHashes);
+        out.writeInt(this.bits.length);
+        for (long word : this.bits) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #write(DataOutput)}.
+     *
+     * @param in the input to read from
+     * @return the filter
+     * @throws IOException If an I/O error occurs.
+     */
+    public static BloomFilter read(DataInput in) throws IOException {
+        int numHashes = in.readInt();
+        long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = in.readLong();
+        }
+        return new BloomFilter(bits, numHashes);
+    }
+
+    /**
+     * Computes an FNV-1a hash of a key, independent of {@link String#hashCode()}.
+     *
+     * @param key the key to hash
+     * @return the hash, forced to be odd so every probe lands on a different bit
+     */
+    private static int secondHash(String key) {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        return hash | 1;
+    }
+}
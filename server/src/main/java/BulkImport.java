@@ -0,0 +1,334 @@
+import org.json.JSONArray;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A class that stages bulk imports on disk. A client streams a sorted list of key value pairs
+ * to one replica in chunks, every other replica pulls the chunks from it, and a single command
+ * in the log then ingests the staged pairs into the key value store.
+ *
+ * <p>Each chunk is a JSON array of [key, value] pairs in its own file, named after its index,
+ * in a directory named after the import. Staged imports are kept for at least an hour, and
+ * for as long as a command that references them may still be applied or pulled by a replica,
+ * so replicas that apply the command late can still pull the chunks.
+ *
+ * <p>The same stage holds large values, which are split into pieces of text staged as the
+ * chunks of a blob, so a write only has to carry the id of the blob through Paxos.
+ */
+class BulkImport {
+
+    static final int MAX_CHUNK_ENTRIES = 10000;
+    static final long CLEAN_UP_INTERVAL_MS = 5 * 60 * 1000;
+    private static final int BLOB_PIECE_SIZE = 1024 * 1024;
+    private static final long RETENTION_MILLIS = 60 * 60 * 1000;
+    private final Path dir;
+    private final Map<String, Staging> open; // Import ID, Import still being written
+
+    /**
+     * Creates a stage for imports in a directory.
+     *
+     * @param dir the directory imports are staged in
+     */
+    public BulkImport(Path dir) {
+        this.dir = dir;
+        this.open = new HashMap<>();
+    }
+
+    /**
+     * Starts a new import.
+     *
+     * @return the id of the import
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized String begin() throws IOException {
+        String importId = UUID.randomUUID().toString();
+        Files.createDirectories(this.dir.resolve(importId));
+        this.open.put(importId, new Staging());
+        return importId;
+    }
+
+    /**
+     * Adds the next chunk to an import. The keys must be in strictly increasing order, across
+     * chunks as well as within them.
+     *
+     * @param importId the id of the import
+     * @param chunk    the index of the chunk, one after the previous chunk
+     * @param entries  the [key, value] pairs of the chunk
+     * @throws IOException              If an I/O error occurs.
+     * @throws IllegalArgumentException If the chunk is out of order or its keys are not sorted.
+     */
+    public synchronized void writeChunk(String importId, int chunk, JSONArray entries)
+            throws IOException {
+        Staging staging = this.open.get(importId);
+        if (staging == null) {
+            throw new IllegalArgumentException("Unknown import " + importId);
+        } else if (chunk != staging.chunks) {
+            throw new IllegalArgumentException("Expected chunk " + staging.chunks + " but got " +
+                    chunk);
+        } else if (entries.length() > MAX_CHUNK_ENTRIES) {
+            throw new IllegalArgumentException("A chunk can hold at most " + MAX_CHUNK_ENTRIES +
+                    " pairs");
+        }
+
+        String lastKey = staging.lastKey;
+        for (int i = 0; i < entries.length(); i++) {
+            JSONArray entry = entries.optJSONArray(i);
+            if (entry == null || entry.length() != 2 || !(entry.opt(0) instanceof String) ||
+                    !(entry.opt(1) instanceof String)) {
+                throw new IllegalArgumentException("Invalid pair " + entries.opt(i) +
+                        ", expected [key, value]");
+            }
+            String key = entry.getString(0);
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new IllegalArgumentException("Keys are not sorted, '" + key +
+                        "' comes after '" + lastKey + "'");
+            }
+            lastKey = key;
+        }
+
+        writeChunkFile(importId, chunk, entries.toString());
+        staging.chunks++;
+        staging.entries += entries.length();
+        staging.lastKey = lastKey;
+    }
+
+    /**
+     * Stops adding chunks to an import.
+     *
+     * @param importId the id of the import
+     * @return the number of chunks and of key value pairs in the import
+     * @throws IllegalArgumentException If the import is unknown or was already finished.
+     */
+    public synchronized int[] finish(String importId) {
+        Staging staging = this.open.remove(importId);
+        if (staging == null) {
+            throw new IllegalArgumentException("Unknown import " + importId);
+        }
+        return new int[]{staging.chunks, staging.entries};
+    }
+
+    /**
+     * Abandons an import that is still being written and deletes its chunks.
+     *
+     * @param importId the id of the import
+     */
+    public synchronized void abort(String importId) {
+        if (this.open.remove(importId) != null) {
+            try {
+                delete(this.dir.resolve(importId));
+            } catch (IOException e) {
+                ServerLogger.logError("Error deleting import " + importId + ": " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads one chunk of a staged import.
+     *
+     * @param importId the id of the import
+     * @param chunk    the index of the chunk
+     * @return the [key, value] pairs of the chunk as a JSON string
+     * @throws IOException If the chunk is not staged or an I/O error occurs.
+     */
+    public String readChunk(String importId, int chunk) throws IOException {
+        return new String(Files.readAllBytes(chunkPath(importId, chunk)),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks if every chunk of an import is staged on this replica.
+     *
+     * @param importId the id of the import
+     * @param chunks   the number of chunks in the import
+     * @return true if every chunk is staged
+     */
+    public boolean isStaged(String importId, int chunks) {
+        for (int i = 0; i < chunks; i++) {
+            if (!Files.exists(chunkPath(importId, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pulls the chunks of an import that are not staged yet from another replica.
+     *
+     * @param importId the id of the import
+     * @param chunks   the number of chunks in the import
+     * @param source   the replica the import was streamed to
+     * @throws IOException If an I/O error occurs or the chunks could not be pulled.
+     */
+    public void stage(String importId, int chunks, ReplicaInterface source) throws IOException {
+        Files.createDirectories(this.dir.resolve(importId));
+        for (int i = 0; i < chunks; i++) {
+            if (!Files.exists(chunkPath(importId, i))) {
+                writeChunkFile(importId, i, source.getImportChunk(importId, i));
+            }
+        }
+    }
+
+    /**
+     * Stages a large value as a blob, split into pieces small enough to pull one at a time.
+     *
+     * @param value the value
+     * @return the id of the blob and the number of pieces it was split into
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized Map.Entry<String, Integer> writeBlob(String value) throws IOException {
+        String blobId = UUID.randomUUID().toString();
+        Files.createDirectories(this.dir.resolve(blobId));
+        int chunks = 0;
+        for (int start = 0; start < value.length(); chunks++) {
+            int end = Math.min(value.length(), start + BLOB_PIECE_SIZE);
+            if (end < value.length() && Character.isHighSurrogate(value.charAt(end - 1))) {
+                end--; // Keep surrogate pairs in one piece so each piece is valid UTF-8
+            }
+            writeChunkFile(blobId, chunks, value.substring(start, end));
+            start = end;
+        }
+        return new AbstractMap.SimpleImmutableEntry<>(blobId, chunks);
+    }
+
+    /**
+     * Reads a staged blob back into one value.
+     *
+     * @param blobId the id of the blob
+     * @param chunks the number of pieces in the blob
+     * @return the value
+     * @throws IOException If a piece is not staged or an I/O error occurs.
+     */
+    public String readBlob(String blobId, int chunks) throws IOException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < chunks; i++) {
+            value.append(readChunk(blobId, i));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Iterates over the key value pairs of a staged import, in key order.
+     *
+     * @param importId the id of the import
+     * @param chunks   the number of chunks in the import
+     * @return an iterator reading the chunks one at a time
+     */
+    public Iterator<Map.Entry<String, String>> entries(String importId, int chunks) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int chunk = 0;
+            private JSONArray current = new JSONArray();
+            private int position = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (this.position >= this.current.length() && this.chunk < chunks) {
+                    try {
+                        this.current = new JSONArray(readChunk(importId, this.chunk++));
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Error reading import " + importId +
+                                ": " + e.getMessage(), e);
+                    }
+                    this.position = 0;
+                }
+                return this.position < this.current.length();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                JSONArray entry = this.current.getJSONArray(this.position++);
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getString(0),
+                        entry.getString(1));
+            }
+        };
+    }
+
+    /**
+     * Deletes the staged imports and blobs older than the retention period, except the ones
+     * still referenced.
+     *
+     * @param referenced the ids of the imports and blobs that committed commands still reference
+     */
+    public synchronized void cleanUp(Set<String> referenced) {
+        if (!Files.isDirectory(this.dir)) {
+            return;
+        }
+        FileTime cutoff = FileTime.fromMillis(System.currentTimeMillis() - RETENTION_MILLIS);
+        try (DirectoryStream<Path> imports = Files.newDirectoryStream(this.dir)) {
+            for (Path staged : imports) {
+                String stagedId = staged.getFileName().toString();
+                if (!this.open.containsKey(stagedId) && !referenced.contains(stagedId) &&
+                        Files.getLastModifiedTime(staged).compareTo(cutoff) < 0) {
+                    delete(staged);
+                }
+            }
+        } catch (IOException e) {
+            ServerLogger.logError("Error cleaning up staged imports: " + e.getMessage());
+        }
+    }
+
+    private static void delete(Path staged) throws IOException {
+        try (Stream<Path> files = Files.walk(staged)) {
+            Iterator<Path> paths = files.sorted(Comparator.reverseOrder()).iterator();
+            while (paths.hasNext()) {
+                Files.delete(paths.next());
+            }
+        }
+    }
+
+    /**
+     * Writes a chunk under a temporary name, forces it to disk and moves it into place, so a
+     * chunk file is only ever seen complete and a staged chunk survives a crash.
+     */
+    private void writeChunkFile(String importId, int chunk, String entries) throws IOException {
+        Path path = chunkPath(importId, chunk);
+        Path tempFilePath = Files.createTempFile(path.getParent(), path.getFileName().toString(),
+                null);
+        try (FileOutputStream out = new FileOutputStream(tempFilePath.toFile())) {
+            out.write(entries.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        try {
+            Files.move(tempFilePath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFilePath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path chunkPath(String importId, int chunk) {
+        if (!importId.matches("[0-9a-f-]+")) {
+            throw new IllegalArgumentException("Invalid import id " + importId);
+        }
+        return this.dir.resolve(importId).resolve(String.format("%08d.json", chunk));
+    }
+
+    /**
+     * The progress of an import that is still being written.
+     */
+    private static class Staging {
+        int chunks;
+        int entries;
+        String lastKey;
+    }
+}
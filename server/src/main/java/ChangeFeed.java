@@ -0,0 +1,193 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A class that keeps the most recent changes to the key value store, tagged with the applied
+ * index of the command that made them, so clients can watch a key or a prefix instead of
+ * polling it. A watcher passes the position it has seen changes up to and waits for changes
+ * after it, which lets it resume where it left off as long as the changes are still retained.
+ *
+ * <p>Positions are applied indexes of the replica the watch is sent to, so a watcher resumes on
+ * the same replica.
+ */
+class ChangeFeed {
+
+    private static final int MAX_CHANGES = 10000;
+    private final Deque<Change> changes;
+    private final Map<Thread, List<Change>> pending; // Thread applying a command, Its changes
+    private long firstIndex; // The oldest index whose changes are all retained
+    private long lastIndex;
+
+    /**
+     * Creates an empty feed that starts after an applied index.
+     *
+     * @param appliedIndex the index of the last command applied before the feed started
+     */
+    public ChangeFeed(long appliedIndex) {
+        this.changes = new ArrayDeque<>();
+        this.pending = new HashMap<>();
+        reset(appliedIndex);
+    }
+
+    /**
+     * Records a change made by the command the calling thread is applying. It is published, and
+     * becomes visible to watchers, once the command is committed with {@link #commit(long)}.
+     *
+     * @param key     the key that changed
+     * @param value   the new value, or null if the key was deleted
+     * @param version the version of the key after the change
+     */
+    public synchronized void record(String key, String value, long version) {
+        this.pending.computeIfAbsent(Thread.currentThread(), thread -> new ArrayList<>())
+                .add(new Change(0, key, value, version));
+    }
+
+    /**
+     * Takes the changes the calling thread recorded since its last commit, so a command applied
+     * by one thread can be committed by another with {@link #commit(long, List)}.
+     *
+     * @return the changes, in the order they were made
+     */
+    public synchronized List<Change> takePending() {
+        List<Change> taken = this.pending.remove(Thread.currentThread());
+        return taken == null ? new ArrayList<>() : taken;
+    }
+
+    /**
+     * Publishes the changes the calling thread recorded since its last commit, tagged with the
+     * index of the command that made them, and wakes up the watchers.
+     *
+     * @param index the applied index of the command
+     */
+    public synchronized void commit(long index) {
+        commit(index, takePending());
+    }
+
+    /**
+     * Publishes the changes made by a command, tagged with its index, and wakes up the watchers.
+     * Commands are committed in index order.
+     *
+     * @param index   the applied index of the command
+     * @param changes the changes taken with {@link #takePending()} from the thread that applied it
+     */
+    public synchronized void commit(long index, List<Change> changes) {
+        for (Change change : changes) {
+            this.changes.addLast(new Change(index, change.key, change.value, change.version));
+        }
+        this.lastIndex = index;
+
+        while (this.changes.size() > MAX_CHANGES) {
+            // Only keep whole commands, so a watcher never sees part of a transaction
+            long evicted = this.changes.removeFirst().index;
+            while (!this.changes.isEmpty() && this.changes.peekFirst().index == evicted) {
+                this.changes.removeFirst();
+            }
+            this.firstIndex = evicted + 1;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Drops every retained change, for example after the store was replaced by a snapshot, so
+     * watchers from before have to read the current values again.
+     *
+     * @param appliedIndex the index of the last command applied to the store
+     */
+    public synchronized void reset(long appliedIndex) {
+        this.changes.clear();
+        this.pending.clear();
+        this.firstIndex = appliedIndex + 1;
+        this.lastIndex = appliedIndex;
+        notifyAll();
+    }
+
+    /**
+     * Returns the index of the last command published to the feed.
+     *
+     * @return the last index
+     */
+    public synchronized long getLastIndex() {
+        return this.lastIndex;
+    }
+
+    /**
+     * Waits for changes to a key range after a position.
+     *
+     * @param position      the index the watcher has seen changes up to
+     * @param fromKey       the first key of the range (inclusive)
+     * @param toKey         the end of the range (exclusive), or null for no end
+     * @param limit         the maximum number of changes to return
+     * @param timeoutMillis how long to wait for a change in the range
+     * @return the changes in index order, with the position to watch from next, or null if
+     * changes after the position are no longer retained
+     * @throws InterruptedException If the thread was interrupted while waiting.
+     */
+    public synchronized Batch since(long position, String fromKey, String toKey, int limit,
+                                    long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            if (position + 1 < this.firstIndex) {
+                return null;
+            }
+            List<Change> matching = new ArrayList<>();
+            for (Change change : this.changes) {
+                if (change.index <= position || !inRange(change.key, fromKey, toKey)) {
+                    continue;
+                }
+                // Stop at a command boundary once the limit is reached
+                if (matching.size() >= limit &&
+                        matching.get(matching.size() - 1).index != change.index) {
+                    break;
+                }
+                matching.add(change);
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (!matching.isEmpty()) {
+                return new Batch(matching, matching.get(matching.size() - 1).index);
+            } else if (remaining <= 0) {
+                // Nothing in the range changed up to the last index
+                return new Batch(matching, Math.max(position, this.lastIndex));
+            }
+            wait(remaining);
+        }
+    }
+
+    private static boolean inRange(String key, String fromKey, String toKey) {
+        return key.compareTo(fromKey) >= 0 && (toKey == null || key.compareTo(toKey) < 0);
+    }
+
+    /**
+     * The changes returned to a watcher and the position to continue watching from.
+     */
+    static class Batch {
+        final List<Change> changes;
+        final long next;
+
+        Batch(List<Change> changes, long next) {
+            this.changes = changes;
+            this.next = next;
+        }
+    }
+
+    /**
+     * A change to a key, made by the command applied at an index.
+     */
+    static class Change {
+        final long index;
+        final String key;
+        final String value;
+        final long version;
+
+        Change(long index, String key, String value, long version) {
+            this.index = index;
+            this.key = key;
+            this.value = value;
+            this.version = version;
+        }
+    }
+}
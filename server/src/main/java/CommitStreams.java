@@ -0,0 +1,240 @@
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The streams of commits a replica sends to the other members, one per member. The commands a
+ * replica proposes are numbered in the order it applies them, and each stream delivers them to
+ * its member in that order, one at a time, retrying a delivery until it succeeds. A member that
+ * is down or slow therefore gets every commit once it is back, in the order the proposer applied
+ * them, while the other streams carry on.
+ *
+ * <p>A stream keeps at most {@link #MAX_QUEUED} commits. Beyond that the oldest are dropped, and
+ * the member sees a gap in the numbers of the commits it receives. The numbers start over when
+ * the replica restarts, so they are sent with the time the replica started, and the commits
+ * still queued are lost. Each commit therefore also carries its applied index on this replica
+ * and the applied index the stream has delivered up to, which is saved with the state of the
+ * replica. A member that sees a gap or a new stream pulls what it missed since that index from
+ * the applied log of this replica.
+ */
+class CommitStreams {
+
+    static final int MAX_QUEUED = 10000;
+    private static final long MAX_RETRY_MILLIS = 1000;
+    private final String self;
+    private final long epoch;
+    private final Map<String, Stream> streams; // Member name, Stream to it
+    private final Map<String, Long> savedIndexes; // Member name, Index delivered before a restart
+    private long lastSeq;
+
+    /**
+     * Creates the streams of a replica, which are started as members are sent commits.
+     *
+     * @param self             the name of this replica
+     * @param deliveredIndexes the applied indexes delivered to each member before the replica
+     *                         restarted, as returned by {@link #getDeliveredIndexes()}
+     */
+    public CommitStreams(String self, Map<String, Long> deliveredIndexes) {
+        this.self = self;
+        this.epoch = System.currentTimeMillis();
+        this.streams = new HashMap<>();
+        this.savedIndexes = new HashMap<>(deliveredIndexes);
+    }
+
+    /**
+     * Numbers a commit and queues it on the stream to every other member. Streams to replicas
+     * that are no longer members are stopped. Commits have to be sent in the order they were
+     * applied, so this is called while holding the lock they were applied under.
+     *
+     * @param command      the committed command
+     * @param appliedIndex the applied index of the command on this replica
+     * @param members      the current members, keyed by name
+     */
+    public synchronized void send(String command, long appliedIndex,
+                                  Map<String, ReplicaInterface> members) {
+        long seq = ++this.lastSeq;
+        for (Map.Entry<String, ReplicaInterface> member : members.entrySet()) {
+            if (member.getKey().equals(this.self)) {
+                continue;
+            }
+            // A stream to a new member starts from the commit it is created for
+            this.streams.computeIfAbsent(member.getKey(), name -> new Stream(name,
+                    this.savedIndexes.getOrDefault(name, appliedIndex - 1)))
+                    .offer(new Commit(seq, appliedIndex, command), member.getValue());
+        }
+
+        Iterator<Map.Entry<String, Stream>> stale = this.streams.entrySet().iterator();
+        while (stale.hasNext()) {
+            Map.Entry<String, Stream> stream = stale.next();
+            if (!members.containsKey(stream.getKey())) {
+                stream.getValue().stop();
+                stale.remove();
+                this.savedIndexes.remove(stream.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns the commits waiting to be delivered, over every stream.
+     *
+     * @return the queued commands, in no particular order
+     */
+    public synchronized List<String> getQueuedCommands() {
+        List<String> commands = new ArrayList<>();
+        for (Stream stream : this.streams.values()) {
+            stream.addCommandsTo(commands);
+        }
+        return commands;
+    }
+
+    /**
+     * Returns the applied index each stream has delivered every commit up to, to save with the
+     * state of the replica.
+     *
+     * @return the delivered indexes, keyed by member name
+     */
+    public synchronized Map<String, Long> getDeliveredIndexes() {
+        Map<String, Long> indexes = new HashMap<>(this.savedIndexes);
+        for (Map.Entry<String, Stream> stream : this.streams.entrySet()) {
+            indexes.put(stream.getKey(), stream.getValue().deliveredIndex());
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the number of commits waiting to be delivered, over every stream.
+     *
+     * @return the number of queued commits
+     */
+    public synchronized int getQueued() {
+        int queued = 0;
+        for (Stream stream : this.streams.values()) {
+            queued += stream.size();
+        }
+        return queued;
+    }
+
+    /**
+     * The commits waiting to be delivered to one member, with the thread delivering them.
+     */
+    private class Stream {
+        private final String member;
+        private final Deque<Commit> queue;
+        private ReplicaInterface stub;
+        private long deliveredIndex; // The member has every commit applied up to it
+        private boolean stopped;
+
+        Stream(String member, long deliveredIndex) {
+            this.member = member;
+            this.queue = new ArrayDeque<>();
+            this.deliveredIndex = deliveredIndex;
+            Thread thread = new Thread(this::deliver, "commits-" + member);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized void offer(Commit commit, ReplicaInterface stub) {
+            if (this.queue.size() >= MAX_QUEUED) {
+                // The member will see the gap and catch up with a snapshot
+                this.queue.removeFirst();
+            }
+            this.queue.addLast(commit);
+            this.stub = stub;
+            notifyAll();
+        }
+
+        synchronized long deliveredIndex() {
+            return this.deliveredIndex;
+        }
+
+        synchronized int size() {
+            return this.queue.size();
+        }
+
+        synchronized void addCommandsTo(List<String> commands) {
+            for (Commit commit : this.queue) {
+                commands.add(commit.command);
+            }
+        }
+
+        synchronized void stop() {
+            this.stopped = true;
+            this.queue.clear();
+            notifyAll();
+        }
+
+        private synchronized Commit next() throws InterruptedException {
+            while (this.queue.isEmpty() && !this.stopped) {
+                wait();
+            }
+            return this.stopped ? null : this.queue.peekFirst();
+        }
+
+        private synchronized void delivered(Commit commit) {
+            if (this.queue.peekFirst() == commit) {
+                this.queue.removeFirst();
+            }
+            this.deliveredIndex = commit.appliedIndex;
+        }
+
+        private synchronized ReplicaInterface stub() {
+            return this.stub;
+        }
+
+        private void deliver() {
+            long retryMillis = 10;
+            boolean failing = false;
+            while (true) {
+                Commit commit;
+                try {
+                    commit = next();
+                    if (commit == null) {
+                        return;
+                    }
+                    stub().commit(self, epoch, commit.seq, deliveredIndex(), commit.appliedIndex,
+                            commit.command);
+                    delivered(commit);
+                    if (failing) {
+                        ServerLogger.log("Delivering commits to " + this.member + " again");
+                    }
+                    failing = false;
+                    retryMillis = 10;
+                } catch (RemoteException | RuntimeException e) {
+                    if (!failing) {
+                        ServerLogger.logWarning("Could not deliver commits to " + this.member +
+                                ", retrying: " + e.getMessage());
+                    }
+                    failing = true;
+                    try {
+                        Thread.sleep(retryMillis);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    retryMillis = Math.min(MAX_RETRY_MILLIS, retryMillis * 2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A commit, its number in the stream and its applied index on this replica.
+     */
+    private static class Commit {
+        final long seq;
+        final long appliedIndex;
+        final String command;
+
+        Commit(long seq, long appliedIndex, String command) {
+            this.seq = seq;
+            this.appliedIndex = appliedIndex;
+            this.command = command;
+        }
+    }
+}
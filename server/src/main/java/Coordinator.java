@@ -1,8 +1,8 @@
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A class representing a coordinator for the replica servers in the Paxos consensus algorithm.
@@ -11,15 +11,17 @@ public class Coordinator implements CoordinatorInterface {
     private final Map<Integer, ReplicaInterface> replicas;
 
     /**
-     * A constructor for the coordinator that initializes the list of replicas
+     * A constructor for the coordinator that initializes the list of replicas. RMI calls from
+     * the replicas arrive on several threads, so the list is a concurrent map.
      */
     public Coordinator() {
-        this.replicas = new HashMap<>();
+        this.replicas = new ConcurrentHashMap<>();
     }
 
 
     /**
-     * Adds a replica to the coordinator.
+     * Adds a replica to the coordinator. A replica that registers again after a restart
+     * replaces its previous stub.
      *
      * @param replicaId The ID of the replica to be added.
      * @param replica   The ReplicaInterface representing the replica to be added.
@@ -28,9 +30,10 @@ public class Coordinator implements CoordinatorInterface {
      */
     @Override
     public void addReplica(int replicaId, ReplicaInterface replica) throws RemoteException {
-        if (!this.replicas.containsKey(replicaId)) {
-            this.replicas.put(replicaId, replica);
+        if (this.replicas.put(replicaId, replica) == null) {
             ServerLogger.log("Added replica " + this.replicas.size());
+        } else {
+            ServerLogger.log("Replaced replica " + replicaId);
         }
     }
 
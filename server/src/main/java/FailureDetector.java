@@ -0,0 +1,285 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A phi accrual failure detector. Every replica is sent a heartbeat at a fixed interval, and the
+ * arrival times of the replies are used to compute how suspicious the silence of a replica is,
+ * rather than declaring it dead after a fixed timeout. The round trip times of the heartbeats
+ * give each replica an adaptive RPC timeout and a latency ranking.
+ *
+ * <p>The detector also elects the leader, which is the available replica with the lowest name.
+ * Every replica computes the same leader once their views of the live replicas agree.
+ */
+class FailureDetector {
+
+    private static final long HEARTBEAT_INTERVAL_MS = 500;
+    private static final double PHI_THRESHOLD = 8.0;
+    private static final int WINDOW_SIZE = 100;
+    private static final long MIN_RPC_TIMEOUT_MS = 250;
+    private static final long MAX_RPC_TIMEOUT_MS = 5000;
+    private final String self;
+    private final Supplier<Map<String, ReplicaInterface>> members;
+    private final Map<String, PeerState> peerStates; // Replica name, Heartbeat history
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService heartbeatExecutor;
+    private volatile String leader;
+
+    /**
+     * Creates a failure detector for the members of a replica's configuration.
+     *
+     * @param self    The name of the replica running the detector.
+     * @param members Supplies the current configuration, keyed by replica name.
+     */
+    public FailureDetector(String self, Supplier<Map<String, ReplicaInterface>> members) {
+        this.self = self;
+        this.members = members;
+        this.peerStates = new ConcurrentHashMap<>();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "failure-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeatExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.leader = self;
+    }
+
+    /**
+     * Starts sending heartbeats.
+     */
+    public void start() {
+        this.scheduler.scheduleAtFixedRate(this::heartbeatRound, HEARTBEAT_INTERVAL_MS,
+                HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends a heartbeat to every other member that has no heartbeat in flight, then re-elects
+     * the leader.
+     */
+    private void heartbeatRound() {
+        Map<String, ReplicaInterface> current = this.members.get();
+        for (Map.Entry<String, ReplicaInterface> member : current.entrySet()) {
+            String name = member.getKey();
+            if (name.equals(this.self)) {
+                continue;
+            }
+            PeerState state = this.peerStates.computeIfAbsent(name, n -> new PeerState());
+            if (state.tryStartHeartbeat()) {
+                this.heartbeatExecutor.submit(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        member.getValue().heartbeat();
+                        state.recordHeartbeat(System.nanoTime(), System.nanoTime() - start);
+                    } catch (Exception e) {
+                        // A missed heartbeat only raises the suspicion level of the replica
+                    } finally {
+                        state.finishHeartbeat();
+                    }
+                });
+            }
+        }
+        this.peerStates.keySet().retainAll(current.keySet());
+        electLeader(current.keySet());
+    }
+
+    /**
+     * Elects the available replica with the lowest name as the leader. A replica that is not a
+     * member, such as a learner, only elects itself if no member is available.
+     *
+     * @param names The names of the members of the configuration.
+     */
+    private void electLeader(Collection<String> names) {
+        String elected = names.contains(this.self) ? this.self : null;
+        for (String name : names) {
+            if (isAvailable(name) && (elected == null || name.compareTo(elected) < 0)) {
+                elected = name;
+            }
+        }
+        if (elected == null) {
+            elected = this.self;
+        }
+        if (!elected.equals(this.leader)) {
+            ServerLogger.log("Leader changed from " + this.leader + " to " + elected);
+            this.leader = elected;
+        }
+    }
+
+    /**
+     * Returns the current leader.
+     *
+     * @return The name of the leader.
+     */
+    public String getLeader() {
+        return this.leader;
+    }
+
+    /**
+     * Computes the suspicion level of a replica. A phi of 1 means a 10% chance the replica is
+     * still alive given how long it has been silent, 2 means 1%, and so on.
+     *
+     * @param name The name of the replica.
+     * @return The suspicion level of the replica.
+     */
+    public double phi(String name) {
+        PeerState state = this.peerStates.get(name);
+        return state == null ? 0.0 : state.phi(System.nanoTime());
+    }
+
+    /**
+     * Checks if a replica is considered alive.
+     *
+     * @param name The name of the replica.
+     * @return True if the suspicion level of the replica is below the threshold.
+     */
+    public boolean isAvailable(String name) {
+        return name.equals(this.self) || phi(name) < PHI_THRESHOLD;
+    }
+
+    /**
+     * Computes the RPC timeout for a replica from the round trip times of its heartbeats, in
+     * the same way TCP computes its retransmission timeout.
+     *
+     * @param name The name of the replica.
+     * @return The timeout in milliseconds.
+     */
+    public long rpcTimeoutMillis(String name) {
+        PeerState state = this.peerStates.get(name);
+        if (state == null) {
+            return MAX_RPC_TIMEOUT_MS;
+        }
+        long timeout = MIN_RPC_TIMEOUT_MS + (long) state.rtoMillis();
+        return Math.min(timeout, MAX_RPC_TIMEOUT_MS);
+    }
+
+    /**
+     * Orders replicas from the lowest to the highest smoothed round trip time. The replica
+     * running the detector comes first, and replicas without a measurement come last.
+     *
+     * @param names The names of the replicas to rank.
+     * @return The names ordered by latency.
+     */
+    public List<String> rankByLatency(Collection<String> names) {
+        List<String> ranked = new ArrayList<>(names);
+        ranked.sort(Comparator.comparingDouble(this::smoothedRttMillis));
+        return ranked;
+    }
+
+    /**
+     * Returns the smoothed round trip time of a replica.
+     *
+     * @param name The name of the replica.
+     * @return The smoothed round trip time in milliseconds.
+     */
+    private double smoothedRttMillis(String name) {
+        if (name.equals(this.self)) {
+            return 0.0;
+        }
+        PeerState state = this.peerStates.get(name);
+        return state == null ? Double.MAX_VALUE : state.smoothedRttMillis();
+    }
+
+    /**
+     * The heartbeat history of a single replica.
+     */
+    private static class PeerState {
+        private final Deque<Double> intervals; // Heartbeat inter-arrival times in milliseconds
+        private long lastArrivalNanos;
+        private double smoothedRtt;
+        private double rttVariance;
+        private boolean heartbeatInFlight;
+
+        /**
+         * Creates the history with one expected interval, so a replica that never replies is
+         * suspected after the same silence as one that stopped replying.
+         */
+        PeerState() {
+            this.intervals = new ArrayDeque<>();
+            this.intervals.add((double) HEARTBEAT_INTERVAL_MS);
+            this.lastArrivalNanos = System.nanoTime();
+            this.smoothedRtt = -1;
+        }
+
+        synchronized boolean tryStartHeartbeat() {
+            if (this.heartbeatInFlight) {
+                return false;
+            }
+            this.heartbeatInFlight = true;
+            return true;
+        }
+
+        synchronized void finishHeartbeat() {
+            this.heartbeatInFlight = false;
+        }
+
+        synchronized void recordHeartbeat(long arrivalNanos, long rttNanos) {
+            this.intervals.addLast((arrivalNanos - this.lastArrivalNanos) / 1e6);
+            if (this.intervals.size() > WINDOW_SIZE) {
+                this.intervals.removeFirst();
+            }
+            this.lastArrivalNanos = arrivalNanos;
+
+            double rtt = rttNanos / 1e6;
+            if (this.smoothedRtt < 0) {
+                this.smoothedRtt = rtt;
+                this.rttVariance = rtt / 2;
+            } else {
+                this.rttVariance =
+                        0.75 * this.rttVariance + 0.25 * Math.abs(this.smoothedRtt - rtt);
+                this.smoothedRtt = 0.875 * this.smoothedRtt + 0.125 * rtt;
+            }
+        }
+
+        synchronized double smoothedRttMillis() {
+            return this.smoothedRtt < 0 ? Double.MAX_VALUE : this.smoothedRtt;
+        }
+
+        synchronized double rtoMillis() {
+            if (this.smoothedRtt < 0) {
+                return MAX_RPC_TIMEOUT_MS;
+            }
+            return this.smoothedRtt + 4 * this.rttVariance;
+        }
+
+        /**
+         * Computes phi using a logistic approximation of the normal distribution fitted to the
+         * heartbeat inter-arrival times.
+         */
+        synchronized double phi(long nowNanos) {
+            double mean = 0;
+            for (double interval : this.intervals) {
+                mean += interval;
+            }
+            mean /= this.intervals.size();
+            double variance = 0;
+            for (double interval : this.intervals) {
+                variance += (interval - mean) * (interval - mean);
+            }
+            variance /= this.intervals.size();
+            // Keep a minimum deviation so a perfectly regular history does not make any delay
+            // look like a failure
+            double stdDev = Math.max(Math.sqrt(variance), HEARTBEAT_INTERVAL_MS / 4.0);
+
+            double elapsed = (nowNanos - this.lastArrivalNanos) / 1e6;
+            double y = (elapsed - mean) / stdDev;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (elapsed > mean) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
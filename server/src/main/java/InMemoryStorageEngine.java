@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A storage engine that keeps every key value pair in a concurrent skip list on the heap, so
+ * keys are ordered for range scans. The replica saves the whole map with its state after each
+ * write.
+ *
+ * <p>A view is taken without copying the map, the way the LSM engine freezes its memtable: the
+ * map is frozen and new writes go to a layer above it, with deletes marked by
+ * {@link LsmStorageEngine#TOMBSTONE}. Reads check the layers from newest to oldest. Once the
+ * last view is closed, the layers are folded back into the oldest one, in time proportional to
+ * the writes made while views were open.
+ */
+class InMemoryStorageEngine implements StorageEngine {
+    private final ReentrantReadWriteLock layerLock; // Writes share it, swapping layers does not
+    private volatile List<ConcurrentSkipListMap<String, String>> layers; // Newest first
+    private int openViews; // Guarded by the write lock
+
+    /**
+     * Creates an empty engine.
+     */
+    public InMemoryStorageEngine() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * Creates an engine holding previously saved key value pairs.
+     *
+     * @param loadedStore the saved key value pairs
+     */
+    public InMemoryStorageEngine(Map<String, String> loadedStore) {
+        this.layerLock = new ReentrantReadWriteLock();
+        this.layers = List.of(new ConcurrentSkipListMap<>(loadedStore));
+    }
+
+    @Override
+    public String get(String key) {
+        for (ConcurrentSkipListMap<String, String> layer : this.layers) {
+            String value = layer.get(key);
+            if (value != null) {
+                return LsmStorageEngine.isTombstone(value) ? null : value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(String key, String value) {
+        this.layerLock.readLock().lock();
+        try {
+            this.layers.get(0).put(key, value);
+        } finally {
+            this.layerLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String key) {
+        this.layerLock.readLock().lock();
+        try {
+            List<ConcurrentSkipListMap<String, String>> current = this.layers;
+            if (current.size() == 1) {
+                return current.get(0).remove(key) != null;
+            } else if (get(key) == null) {
+                return false;
+            }
+            // A frozen layer may still hold the key
+            current.get(0).put(key, LsmStorageEngine.TOMBSTONE);
+            return true;
+        } finally {
+            this.layerLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Builds a new layer from the batch and swaps it in above the others, so readers see either
+     * none or all of the batch.
+     */
+    @Override
+    public void ingest(Iterator<Map.Entry<String, String>> entries, int expectedKeys,
+                       boolean replace) {
+        ConcurrentSkipListMap<String, String> batch = new ConcurrentSkipListMap<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            batch.put(entry.getKey(), entry.getValue());
+        }
+        this.layerLock.writeLock().lock();
+        try {
+            if (replace) {
+                // Views read the layers they pinned, so the old ones are left as they are
+                this.layers = List.of(batch);
+            } else {
+                List<ConcurrentSkipListMap<String, String>> pushed = new ArrayList<>();
+                pushed.add(new ConcurrentSkipListMap<>());
+                pushed.add(batch);
+                pushed.addAll(this.layers);
+                this.layers = pushed;
+                foldLayers();
+            }
+        } finally {
+            this.layerLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        return scan(this.layers, fromKey, toKey);
+    }
+
+    /**
+     * Freezes the current layers for the view and starts a new one for later writes, which
+     * takes the same time however many pairs are stored.
+     */
+    @Override
+    public View openView() {
+        List<ConcurrentSkipListMap<String, String>> pinned;
+        this.layerLock.writeLock().lock();
+        try {
+            pinned = this.layers;
+            List<ConcurrentSkipListMap<String, String>> pushed = new ArrayList<>();
+            pushed.add(new ConcurrentSkipListMap<>());
+            pushed.addAll(pinned);
+            this.layers = pushed;
+            this.openViews++;
+        } finally {
+            this.layerLock.writeLock().unlock();
+        }
+        return new View() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return scan(pinned, null, null);
+            }
+
+            @Override
+            public void close() {
+                closeView();
+            }
+        };
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        Map<String, String> copy = new HashMap<>();
+        Iterator<Map.Entry<String, String>> entries = scan(null, null);
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    @Override
+    public void clear() {
+        this.layerLock.writeLock().lock();
+        try {
+            this.layers = List.of(new ConcurrentSkipListMap<>());
+        } finally {
+            this.layerLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean isDurable() {
+        return false;
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Releases a view, folding the layers back into one once no view reads them.
+     */
+    private void closeView() {
+        this.layerLock.writeLock().lock();
+        try {
+            this.openViews--;
+            foldLayers();
+        } finally {
+            this.layerLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the newer layers into the oldest one, from oldest to newest, if no view reads the
+     * layers. Must be called holding the write lock. A reader that still holds the old list of
+     * layers finds the same values, since the oldest layer only takes values a newer layer
+     * already shows.
+     */
+    private void foldLayers() {
+        List<ConcurrentSkipListMap<String, String>> current = this.layers;
+        if (this.openViews > 0 || current.size() == 1) {
+            return;
+        }
+        ConcurrentSkipListMap<String, String> base = current.get(current.size() - 1);
+        for (int i = current.size() - 2; i >= 0; i--) {
+            for (Map.Entry<String, String> entry : current.get(i).entrySet()) {
+                if (LsmStorageEngine.isTombstone(entry.getValue())) {
+                    base.remove(entry.getKey());
+                } else {
+                    base.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        this.layers = List.of(base);
+    }
+
+    /**
+     * Iterates over the key value pairs of layers in a key range, the newest layer holding a key
+     * winning.
+     */
+    private static Iterator<Map.Entry<String, String>> scan(
+            List<ConcurrentSkipListMap<String, String>> layers, String fromKey, String toKey) {
+        if (layers.size() == 1) {
+            ConcurrentNavigableMap<String, String> range = layers.get(0);
+            if (fromKey != null) {
+                range = range.tailMap(fromKey, true);
+            }
+            if (toKey != null) {
+                range = range.headMap(toKey, false);
+            }
+            return range.entrySet().iterator();
+        }
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        for (ConcurrentSkipListMap<String, String> layer : layers) {
+            sources.add((fromKey == null ? layer : layer.tailMap(fromKey)).entrySet().iterator());
+        }
+        return LsmStorageEngine.skipTombstones(
+                new LsmStorageEngine.MergingIterator(sources, toKey));
+    }
+}
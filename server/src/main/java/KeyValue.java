@@ -1,22 +1,72 @@
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.NoSuchElementException;
 
 /**
- * A class for creating and performing operations on a Key Value Store.
+ * A class for creating and performing operations on a Key Value Store. The key value pairs are
+ * held by a {@link StorageEngine}, selected with the {@code paxos.storage} system property.
+ *
+ * <p>Every key has a version that starts at 1 and goes up by one on each write, and is 0 while
+ * the key does not exist. The version is stored in front of the value in the engine, as
+ * {@code \u0001<version>\u0001<value>}; values saved before versions were added read as
+ * version 1. A key written with a time to live also stores the time it expires, as
+ * {@code \u0001<version>:<expiresAt>\u0001<value>}. An expired key is hidden from
+ * {@link #get(String)}, {@link #getVersioned(String)} and {@link #scan(String, String)} until
+ * it is deleted, but keeps its version so conditional writes give the same result on every
+ * replica. A value that was compressed with {@link ValueCodec} is stored compressed, marked
+ * with a {@code z} at the end of the header, and decompressed when it is read.
+ *
+ * <p>A deleted key is kept as a tombstone, {@code \u0001<version>d\u0001}, so its version
+ * is not lost: the key reads as missing, at version 0, but the next write to it continues from
+ * the version of the delete instead of starting over at 1. A client holding the version it last
+ * read therefore never mistakes a key that was deleted and written again for the one it read.
+ * Tombstones travel with snapshots and backups like any other stored value, until they are
+ * removed with {@link #purge(String, long)} once no client is expected to hold a version from
+ * before the delete.
  */
 class KeyValue {
-    public ConcurrentMap<String, String> KVStore;
+    private static final char VERSION_MARK = '\u0001';
+    private final StorageEngine engine;
+    private ChangeListener changeListener;
 
     /**
-     * Create a new KV store in the form of a hashmap.
+     * Create a new KV store in the form of an ordered map.
      */
     public KeyValue() {
-        KVStore = new ConcurrentHashMap<>();
+        this(new InMemoryStorageEngine());
     }
 
     public KeyValue(Map<String, String> loadedKVStore) {
-        KVStore = new ConcurrentHashMap<>(loadedKVStore);
+        this(new InMemoryStorageEngine(loadedKVStore));
+    }
+
+    /**
+     * Create a KV store backed by a storage engine.
+     *
+     * @param engine the engine holding the key value pairs
+     */
+    public KeyValue(StorageEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Opens the KV store with the configured storage engine. The in-memory engine starts from
+     * the key value pairs saved with the replica state, while a durable engine recovers its own
+     * files.
+     *
+     * @param savedKVStore the key value pairs saved with the replica state
+     * @return the opened KV store
+     * @throws IOException If the storage engine could not be opened.
+     */
+    public static KeyValue open(Map<String, String> savedKVStore) throws IOException {
+        if (ServerConfig.getStorageEngine().equalsIgnoreCase("lsm")) {
+            return new KeyValue(new LsmStorageEngine(PersistState.getStorageDir("lsm")));
+        }
+        return new KeyValue(savedKVStore);
     }
 
     /**
@@ -26,7 +76,64 @@ class KeyValue {
      * @return the value if the key exists or null if it doesn't.
      */
     public String get(String key) {
-        return this.KVStore.getOrDefault(key, null);
+        Versioned versioned = getVersioned(key);
+        return versioned == null ? null : versioned.value;
+    }
+
+    /**
+     * Get the value of a key together with its version, read at the same time
+     *
+     * @param key the key to get the value of
+     * @return the value and version of the key, or null if it doesn't exist
+     */
+    public Versioned getVersioned(String key) {
+        String stored = this.engine.get(key);
+        if (stored == null) {
+            return null;
+        }
+        Versioned versioned = decode(stored, true);
+        return versioned.deleted || versioned.isExpired(System.currentTimeMillis()) ? null :
+                versioned;
+    }
+
+    /**
+     * Get the version of a key
+     *
+     * @param key the key to get the version of
+     * @return the version of the key, or 0 if it doesn't exist or was deleted
+     */
+    public long getVersion(String key) {
+        String stored = this.engine.get(key);
+        if (stored == null) {
+            return 0;
+        }
+        Versioned versioned = decode(stored, false);
+        return versioned.deleted ? 0 : versioned.version;
+    }
+
+    /**
+     * Get the version of the tombstone a deleted key left
+     *
+     * @param key the key to get the tombstone version of
+     * @return the version of the delete, or 0 if the key is not deleted
+     */
+    public long getTombstoneVersion(String key) {
+        String stored = this.engine.get(key);
+        if (stored == null) {
+            return 0;
+        }
+        Versioned versioned = decode(stored, false);
+        return versioned.deleted ? versioned.version : 0;
+    }
+
+    /**
+     * Get the version the next write to a key is at, which follows the version of a delete
+     *
+     * @param key the key to be written
+     */
+    private long nextVersion(String key) {
+        String stored = this.engine.get(key);
+        return stored == null ? 1 : decode(stored, false).version + 1;
     }
 
     /**
@@ -37,21 +144,362 @@ class KeyValue {
      * @return true if the operation was successful and false otherwise
      */
     public boolean put(String key, String value) {
-        this.KVStore.put(key, value);
-        return this.KVStore.containsKey(key);
+        return put(key, value, 0);
+    }
+
+    /**
+     * Put a key value pair into the Key Value store that expires at a point in time
+     *
+     * @param key       the key to insert
+     * @param value     the corresponding value
+     * @param expiresAt the time the key expires in milliseconds, or 0 if it doesn't expire
+     * @return true if the operation was successful and false otherwise
+     */
+    public boolean put(String key, String value, long expiresAt) {
+        return put(key, value, expiresAt, false);
+    }
+
+    /**
+     * Put a key value pair into the Key Value store, keeping a compressed value compressed
+     *
+     * @param key        the key to insert
+     * @param value      the corresponding value, compressed if {@code compressed} is true
+     * @param expiresAt  the time the key expires in milliseconds, or 0 if it doesn't expire
+     * @param compressed true if the value was compressed with {@link ValueCodec#compress}
+     * @return true if the operation was successful and false otherwise
+     */
+    public boolean put(String key, String value, long expiresAt, boolean compressed) {
+        long version = nextVersion(key);
+        this.engine.put(key, encode(version, expiresAt, compressed, value));
+        if (this.changeListener != null) {
+            this.changeListener.onChange(key, compressed ? ValueCodec.decompress(value) : value,
+                    version);
+        }
+        return this.engine.get(key) != null;
     }
 
     /**
-     * Delete a Key value pair from the Key Value store
+     * Delete a Key value pair from the Key Value store, leaving a tombstone with the next version
      *
      * @param key the key to delete from the Key value store if it exists
      * @return true if the delete was a success and false otherwise
      */
     public boolean delete(String key) {
-        if (this.KVStore.containsKey(key)) {
-            this.KVStore.remove(key);
-            return true;
+        String stored = this.engine.get(key);
+        if (stored == null) {
+            return false;
+        }
+        Versioned versioned = decode(stored, false);
+        if (versioned.deleted) {
+            return false;
+        }
+        this.engine.put(key, VERSION_MARK + Long.toString(versioned.version + 1) + "d" +
+                VERSION_MARK);
+        if (this.changeListener != null) {
+            this.changeListener.onChange(key, null, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the tombstone of a deleted key, so the next write to it starts over at version 1.
+     * The key is left alone if it was written or deleted again since. The change is not reported
+     * to the change listener, as the key already reads as missing.
+     *
+     * @param key     the deleted key
+     * @param version the version of its tombstone
+     * @return true if the tombstone was removed and false otherwise
+     */
+    public boolean purge(String key, long version) {
+        if (version == 0 || getTombstoneVersion(key) != version) {
+            return false;
+        }
+        this.engine.delete(key);
+        return true;
+    }
+
+    /**
+     * Put a batch of key value pairs into the Key Value store, which become visible all at once.
+     * Each key's version goes up by one, and any time to live it had is removed. The batch is
+     * not reported to the change listener.
+     *
+     * @param entries      the key value pairs, in strictly increasing key order
+     * @param expectedKeys the approximate number of pairs
+     */
+    public void ingest(Iterator<Map.Entry<String, String>> entries, int expectedKeys) {
+        this.engine.ingest(new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                Map.Entry<String, String> entry = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                        encode(nextVersion(entry.getKey()), 0, false, entry.getValue()));
+            }
+        }, expectedKeys, false);
+    }
+
+    /**
+     * Replace the contents of the Key Value store with a backup, all at once
+     *
+     * @param entries      the stored key value pairs, with their versions, in strictly
+     *                     increasing key order, as read from a view
+     * @param expectedKeys the approximate number of pairs
+     */
+    public void restore(Iterator<Map.Entry<String, String>> entries, int expectedKeys) {
+        this.engine.ingest(entries, expectedKeys, true);
+    }
+
+    /**
+     * Take a view of the stored key value pairs, with their versions, at a point in time, for
+     * example to back them up while writes continue
+     *
+     * @return the view, which has to be closed once it has been read
+     */
+    public StorageEngine.View openView() {
+        return this.engine.openView();
+    }
+
+    /**
+     * Set the listener told about every put and delete. Replacing the whole store with
+     * {@link #replaceAll(Map)} is not reported.
+     *
+     * @param changeListener the listener, or null for none
+     */
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Iterate over the key value pairs in a key range, in key order
+     *
+     * @param fromKey the first key of the range (inclusive), or null to start at the first key
+     * @param toKey   the end of the range (exclusive), or null to continue to the last key
+     * @return an iterator over the key value pairs in the range
+     */
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        Iterator<Map.Entry<String, String>> stored = this.engine.scan(fromKey, toKey);
+        long now = System.currentTimeMillis();
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (stored.hasNext()) {
+                    Map.Entry<String, String> entry = stored.next();
+                    Versioned versioned = decode(entry.getValue(), false);
+                    if (!versioned.deleted && !versioned.isExpired(now)) {
+                        return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(),
+                                decode(entry.getValue(), true).value);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = this.next;
+                this.next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Find every key that was written with a time to live, for example to schedule the
+     * expiries again after a restart
+     *
+     * @return the versions and expiry times of the keys, including ones that already expired
+     * but not deleted ones, whose tombstones never expire
+     */
+    public Map<String, Versioned> getExpiring() {
+        Map<String, Versioned> expiring = new HashMap<>();
+        Iterator<Map.Entry<String, String>> stored = this.engine.scan(null, null);
+        while (stored.hasNext()) {
+            Map.Entry<String, String> entry = stored.next();
+            Versioned versioned = decode(entry.getValue(), false);
+            if (versioned.expiresAt != 0) {
+                expiring.put(entry.getKey(), versioned);
+            }
+        }
+        return expiring;
+    }
+
+    /**
+     * Find every deleted key, for example to purge their tombstones again after a restart
+     *
+     * @return the versions of the tombstones keyed by deleted key
+     */
+    public Map<String, Long> getTombstones() {
+        Map<String, Long> tombstones = new HashMap<>();
+        Iterator<Map.Entry<String, String>> stored = this.engine.scan(null, null);
+        while (stored.hasNext()) {
+            Map.Entry<String, String> entry = stored.next();
+            Versioned versioned = decode(entry.getValue(), false);
+            if (versioned.deleted) {
+                tombstones.put(entry.getKey(), versioned.version);
+            }
+        }
+        return tombstones;
+    }
+
+    /**
+     * Copy all the key value pairs in the Key Value store, with their versions, in the form
+     * {@link #replaceAll(Map)} takes
+     *
+     * @return a copy of the stored key value pairs
+     */
+    public Map<String, String> snapshot() {
+        return this.engine.snapshot();
+    }
+
+    /**
+     * Replace the contents of the Key Value store, for example with a snapshot from another
+     * replica
+     *
+     * @param contents the stored key value pairs to hold, as returned by {@link #snapshot()}
+     */
+    public void replaceAll(Map<String, String> contents) {
+        this.engine.clear();
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            this.engine.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Read the stored values of keys, with their versions, for example to put them back with
+     * {@link #restoreStored(Map)} if the writes that follow have to be undone
+     *
+     * @param keys the keys to read
+     * @return the stored value of each key, or null for a key that is not stored
+     */
+    public Map<String, String> getStored(Collection<String> keys) {
+        Map<String, String> stored = new HashMap<>();
+        for (String key : keys) {
+            stored.put(key, this.engine.get(key));
+        }
+        return stored;
+    }
+
+    /**
+     * Put back stored values read with {@link #getStored(Collection)}. The change is not reported
+     * to the change listener.
+     *
+     * @param stored the stored value of each key, or null to remove the key
+     */
+    public void restoreStored(Map<String, String> stored) {
+        for (Map.Entry<String, String> entry : stored.entrySet()) {
+            if (entry.getValue() == null) {
+                this.engine.delete(entry.getKey());
+            } else {
+                this.engine.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Check if the storage engine persists its own writes
+     *
+     * @return true if the engine is durable, false if the store has to be saved by the replica
+     */
+    public boolean isDurable() {
+        return this.engine.isDurable();
+    }
+
+    /**
+     * Forces the writes made so far to stable storage, if the storage engine is durable.
+     */
+    public void sync() {
+        this.engine.sync();
+    }
+
+    /**
+     * A listener for the changes made to the Key Value store.
+     */
+    interface ChangeListener {
+
+        /**
+         * Called after a key was put or deleted.
+         *
+         * @param key     the key that changed
+         * @param value   the new value, or null if the key was deleted
+         * @param version the version of the key after the change
+         */
+        void onChange(String key, String value, long version);
+    }
+
+    /**
+     * A value with the version of the key it was read from and the time the key expires.
+     */
+    static class Versioned {
+        final String value;
+        final long version;
+        final long expiresAt;
+        final boolean deleted;
+
+        Versioned(String value, long version, long expiresAt) {
+            this(value, version, expiresAt, false);
+        }
+
+        Versioned(String value, long version, long expiresAt, boolean deleted) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+            this.deleted = deleted;
+        }
+
+        boolean isExpired(long nowMillis) {
+            return this.expiresAt != 0 && this.expiresAt <= nowMillis;
+        }
+    }
+
+    private static String encode(long version, long expiresAt, boolean compressed,
+                                 String value) {
+        return VERSION_MARK + Long.toString(version) + (expiresAt != 0 ? ":" + expiresAt : "") +
+                (compressed ? "z" : "") + VERSION_MARK + value;
+    }
+
+    /**
+     * Splits a stored value into its header and value.
+     *
+     * @param stored    the value as the engine holds it
+     * @param withValue false to only read the header, leaving the value null
+     */
+    private static Versioned decode(String stored, boolean withValue) {
+        if (stored.isEmpty() || stored.charAt(0) != VERSION_MARK) {
+            return new Versioned(stored, 1, 0);
+        }
+        int end = stored.indexOf(VERSION_MARK, 1);
+        String header = stored.substring(1, end);
+        if (header.endsWith("d")) {
+            return new Versioned(null, Long.parseLong(header.substring(0, header.length() - 1)),
+                    0, true);
+        }
+        boolean compressed = header.endsWith("z");
+        if (compressed) {
+            header = header.substring(0, header.length() - 1);
+        }
+        String value = null;
+        if (withValue) {
+            value = compressed ? ValueCodec.decompress(stored.substring(end + 1)) :
+                    stored.substring(end + 1);
+        }
+
+        int colon = header.indexOf(':');
+        if (colon < 0) {
+            return new Versioned(value, Long.parseLong(header), 0);
         }
-        return false;
+        return new Versioned(value, Long.parseLong(header.substring(0, colon)),
+                Long.parseLong(header.substring(colon + 1)));
     }
 }
@@ -0,0 +1,69 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * A stub for a replica that is looked up in its RMI registry on first use, and again after a
+ * call to it fails. A configuration can then name replicas that are not reachable yet, such as
+ * the seeds of a cluster that is still starting, and they count towards the majorities and are
+ * skipped by the failure detector until they come up, without anyone having to resolve them
+ * again.
+ */
+class LazyReplica implements InvocationHandler {
+
+    private final String name;
+    private volatile ReplicaInterface stub;
+
+    private LazyReplica(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates a stub for a replica.
+     *
+     * @param name the name of the replica, in the form host:port
+     * @return the stub, which resolves the replica when it is called
+     */
+    public static ReplicaInterface create(String name) {
+        return (ReplicaInterface) Proxy.newProxyInstance(ReplicaInterface.class.getClassLoader(),
+                new Class<?>[]{ReplicaInterface.class}, new LazyReplica(name));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "LazyReplica[" + this.name + "]";
+            }
+        } else if (method.getName().equals("getName") && method.getParameterCount() == 0) {
+            return this.name;
+        }
+
+        ReplicaInterface current = this.stub;
+        if (current == null) {
+            try {
+                current = Replica.resolveReplica(this.name);
+            } catch (NotBoundException e) {
+                throw new RemoteException("Replica " + this.name + " is not bound", e);
+            }
+            this.stub = current;
+        }
+        try {
+            return method.invoke(current, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RemoteException) {
+                // The replica may have restarted with a new stub, so look it up again next time
+                this.stub = null;
+            }
+            throw e.getCause();
+        }
+    }
+}
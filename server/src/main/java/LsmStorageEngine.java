@@ -0,0 +1,581 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A disk-backed storage engine built as a log-structured merge tree. Writes are appended to a
+ * write-ahead log and kept in a sorted memtable; when the memtable is full it is written out as
+ * an SSTable. Lookups check the memtable and then the SSTables from newest to oldest, and a
+ * background thread merges the SSTables once there are too many of them.
+ *
+ * <p>Only the memtable, the sparse indexes and the bloom filters are held on the heap, so the
+ * store can grow beyond it, and every write to disk is sequential.
+ *
+ * <p>Puts and deletes are made one at a time under the monitor of the engine, since each is
+ * appended to the single write-ahead log, so threads writing at once wait for each other. Reads
+ * do not take the monitor.
+ *
+ * <p>The write-ahead log is forced to disk when the engine is synced, and SSTables are forced
+ * to disk before they replace the log or the tables they were merged from.
+ */
+class LsmStorageEngine implements StorageEngine {
+
+    /**
+     * The value marking a deleted key. It is compared by reference, so no stored value can be
+     * mistaken for it.
+     */
+    static final String TOMBSTONE = new String("tombstone");
+    private static final long MEMTABLE_LIMIT_BYTES = 4L * 1024 * 1024;
+    private static final int COMPACTION_THRESHOLD = 4;
+    private static final long DELETE_DELAY_SECONDS = 30;
+    private static final String WAL_FILE = "wal.log";
+    private static final String TABLE_SUFFIX = ".sst";
+    private final Path dir;
+    private final ScheduledExecutorService compactionExecutor;
+    private final AtomicBoolean compacting;
+    private final AtomicLong nextTableNumber;
+    private volatile ConcurrentSkipListMap<String, String> memtable;
+    private volatile List<SSTable> tables; // Newest first
+    private long memtableBytes;
+    private FileChannel walChannel;
+    private DataOutputStream wal;
+
+    /**
+     * Opens the engine stored in a directory, recovering the SSTables and replaying the
+     * write-ahead log into the memtable.
+     *
+     * @param dir the directory the engine stores its files in
+     * @throws IOException If an I/O error occurs.
+     */
+    public LsmStorageEngine(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.compactionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lsm-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compacting = new AtomicBoolean(false);
+        this.tables = loadTables();
+        long highest = 0;
+        for (SSTable table : this.tables) {
+            highest = Math.max(highest, tableNumber(table.getPath()));
+        }
+        this.nextTableNumber = new AtomicLong(highest + 1);
+        this.memtable = new ConcurrentSkipListMap<>();
+        replayWal();
+        this.wal = openWal();
+        ServerLogger.logInfo("Opened LSM store with " + this.tables.size() + " SSTables and " +
+                this.memtable.size() + " memtable entries");
+    }
+
+    /**
+     * Checks if a value is the tombstone of a deleted key.
+     *
+     * @param value the value to check
+     * @return true if the value marks a deleted key
+     */
+    static boolean isTombstone(String value) {
+        return value == TOMBSTONE;
+    }
+
+    @Override
+    public String get(String key) {
+        String value = this.memtable.get(key);
+        if (value != null) {
+            return isTombstone(value) ? null : value;
+        }
+        while (true) {
+            List<SSTable> current = this.tables;
+            try {
+                for (SSTable table : current) {
+                    value = table.get(key);
+                    if (value != null) {
+                        return isTombstone(value) ? null : value;
+                    }
+                }
+                return null;
+            } catch (IOException e) {
+                // A compaction closed one of the tables, so read the new ones
+                if (current == this.tables) {
+                    throw new IllegalStateException("Error reading SSTables", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        write(key, value);
+    }
+
+    @Override
+    public synchronized boolean delete(String key) {
+        if (get(key) == null) {
+            return false;
+        }
+        write(key, TOMBSTONE);
+        return true;
+    }
+
+    /**
+     * Appends a write to the write-ahead log and the memtable, and flushes the memtable once it
+     * is full.
+     */
+    private void write(String key, String value) {
+        try {
+            SSTable.writeEntry(this.wal, key, value);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error writing to the write-ahead log", e);
+        }
+        this.memtable.put(key, value);
+        this.memtableBytes += 2L * (key.length() + (isTombstone(value) ? 0 : value.length())) + 32;
+        if (this.memtableBytes >= MEMTABLE_LIMIT_BYTES) {
+            flushMemtable();
+        }
+    }
+
+    /**
+     * Writes the batch straight to a new SSTable instead of through the write-ahead log and the
+     * memtable, and publishes it as the newest table. The memtable is flushed first, since the
+     * batch has to take precedence over every earlier write.
+     *
+     * <p>A batch that replaces the store is written as a table of a higher generation than any
+     * other, like a compacted table, so the tables it replaced are never loaded again even if
+     * the engine stops before they are deleted.
+     */
+    @Override
+    public synchronized void ingest(Iterator<Map.Entry<String, String>> entries,
+                                   int expectedKeys, boolean replace) {
+        if (!replace && !this.memtable.isEmpty()) {
+            flushMemtable();
+        }
+        try {
+            int generation = 0;
+            if (replace) {
+                for (SSTable table : this.tables) {
+                    generation = Math.max(generation, tableGeneration(table.getPath()));
+                }
+                generation++;
+            }
+            Path path = this.dir.resolve(tableName(this.nextTableNumber.getAndIncrement(),
+                    generation));
+            SSTable table = SSTable.write(path, entries, expectedKeys);
+            List<SSTable> replaced = replace ? this.tables : new ArrayList<>();
+            List<SSTable> newTables = new ArrayList<>();
+            newTables.add(table);
+            if (!replace) {
+                newTables.addAll(this.tables);
+            }
+            this.tables = newTables;
+            if (replace) {
+                this.memtable = new ConcurrentSkipListMap<>();
+                this.memtableBytes = 0;
+                this.wal.close();
+                Files.deleteIfExists(this.dir.resolve(WAL_FILE));
+                this.wal = openWal();
+                this.compactionExecutor.schedule(() -> releaseTables(replaced),
+                        DELETE_DELAY_SECONDS, TimeUnit.SECONDS);
+            }
+            ServerLogger.logInfo("Ingested " + table.getEntryCount() + " entries into " +
+                    path.getFileName());
+        } catch (IOException e) {
+            throw new IllegalStateException("Error ingesting into the LSM store", e);
+        }
+
+        if (this.tables.size() >= COMPACTION_THRESHOLD &&
+                this.compacting.compareAndSet(false, true)) {
+            this.compactionExecutor.submit(this::compact);
+        }
+    }
+
+    /**
+     * Writes the memtable out as a new SSTable and starts a new write-ahead log. The new table
+     * is published before the memtable is replaced, so readers always find every key.
+     */
+    private void flushMemtable() {
+        try {
+            Path path = this.dir.resolve(tableName(this.nextTableNumber.getAndIncrement(), 0));
+            SSTable table = SSTable.write(path, this.memtable.entrySet().iterator(),
+                    this.memtable.size());
+            List<SSTable> newTables = new ArrayList<>();
+            newTables.add(table);
+            newTables.addAll(this.tables);
+            this.tables = newTables;
+
+            this.memtable = new ConcurrentSkipListMap<>();
+            this.memtableBytes = 0;
+            this.wal.close();
+            Files.delete(this.dir.resolve(WAL_FILE));
+            this.wal = openWal();
+            ServerLogger.logInfo("Flushed memtable to " + path.getFileName());
+        } catch (IOException e) {
+            throw new IllegalStateException("Error flushing the memtable", e);
+        }
+
+        if (this.tables.size() >= COMPACTION_THRESHOLD &&
+                this.compacting.compareAndSet(false, true)) {
+            this.compactionExecutor.submit(this::compact);
+        }
+    }
+
+    /**
+     * Merges every SSTable into one. Since the merged tables hold the whole history below the
+     * memtable, deleted keys are dropped. Tables flushed while the merge runs are kept in front
+     * of the merged table.
+     */
+    private void compact() {
+        try {
+            List<SSTable> inputs = this.tables;
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            long newestNumber = 0;
+            int generation = 0;
+            int entryCount = 0;
+            for (SSTable table : inputs) {
+                sources.add(table.iterator(null));
+                newestNumber = Math.max(newestNumber, tableNumber(table.getPath()));
+                generation = Math.max(generation, tableGeneration(table.getPath()));
+                entryCount += table.getEntryCount();
+            }
+
+            Iterator<Map.Entry<String, String>> live =
+                    skipTombstones(new MergingIterator(sources, null));
+            Path path = this.dir.resolve(tableName(newestNumber, generation + 1));
+            SSTable merged = SSTable.write(path, live, entryCount);
+
+            synchronized (this) {
+                if (!this.tables.containsAll(inputs)) {
+                    // The store was cleared or replaced during the merge
+                    merged.release();
+                    return;
+                }
+                List<SSTable> newTables = new ArrayList<>(this.tables);
+                newTables.removeAll(inputs);
+                newTables.add(merged);
+                this.tables = newTables;
+            }
+            // Scans that started before the merge may still be reading the old tables
+            this.compactionExecutor.schedule(() -> releaseTables(inputs), DELETE_DELAY_SECONDS,
+                    TimeUnit.SECONDS);
+            ServerLogger.logInfo("Compacted " + inputs.size() + " SSTables into " +
+                    path.getFileName());
+        } catch (Exception e) {
+            ServerLogger.logError("Error compacting SSTables: " + e.getMessage());
+        } finally {
+            this.compacting.set(false);
+        }
+    }
+
+    /**
+     * Releases SSTables that were replaced, deleting the ones no view still reads.
+     */
+    private void releaseTables(List<SSTable> replaced) {
+        for (SSTable table : replaced) {
+            try {
+                table.release();
+            } catch (IOException e) {
+                ServerLogger.logError("Error deleting " + table.getPath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        ConcurrentSkipListMap<String, String> currentMemtable = this.memtable;
+        sources.add((fromKey == null ? currentMemtable : currentMemtable.tailMap(fromKey))
+                .entrySet().iterator());
+        for (SSTable table : this.tables) {
+            sources.add(table.iterator(fromKey));
+        }
+        return skipTombstones(new MergingIterator(sources, toKey));
+    }
+
+    /**
+     * Flushes the memtable so the view only has to read SSTables, which never change, and keeps
+     * those tables from being deleted until the view is closed.
+     */
+    @Override
+    public synchronized View openView() {
+        if (!this.memtable.isEmpty()) {
+            flushMemtable();
+        }
+        List<SSTable> pinned = this.tables;
+        for (SSTable table : pinned) {
+            table.retain();
+        }
+        return new View() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+                for (SSTable table : pinned) {
+                    sources.add(table.iterator(null));
+                }
+                return skipTombstones(new MergingIterator(sources, null));
+            }
+
+            @Override
+            public void close() {
+                releaseTables(pinned);
+            }
+        };
+    }
+
+    @Override
+    public Map<String, String> snapshot() {
+        Map<String, String> copy = new TreeMap<>();
+        Iterator<Map.Entry<String, String>> entries = scan(null, null);
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            copy.put(entry.getKey(), entry.getValue());
+        }
+        return copy;
+    }
+
+    @Override
+    public synchronized void clear() {
+        try {
+            for (SSTable table : this.tables) {
+                table.release();
+            }
+            this.tables = new ArrayList<>();
+            this.memtable = new ConcurrentSkipListMap<>();
+            this.memtableBytes = 0;
+            this.wal.close();
+            Files.deleteIfExists(this.dir.resolve(WAL_FILE));
+            this.wal = openWal();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error clearing the LSM store", e);
+        }
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    /**
+     * Flushes the write-ahead log and forces it to disk, so the writes made since the last sync
+     * share a single fsync.
+     */
+    @Override
+    public synchronized void sync() {
+        try {
+            this.wal.flush();
+            this.walChannel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error syncing the write-ahead log", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        this.compactionExecutor.shutdown();
+        try {
+            this.wal.close();
+            for (SSTable table : this.tables) {
+                table.close();
+            }
+        } catch (IOException e) {
+            ServerLogger.logError("Error closing the LSM store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the SSTables in the directory, newest first. A compacted table replaces every table
+     * up to its number, so tables left behind by a compaction that was interrupted before it
+     * deleted its inputs are removed.
+     */
+    private List<SSTable> loadTables() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir,
+                "*" + TABLE_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(Comparator.comparingLong(LsmStorageEngine::tableNumber)
+                .thenComparingInt(LsmStorageEngine::tableGeneration).reversed());
+
+        List<SSTable> loaded = new ArrayList<>();
+        long compactedUpTo = -1;
+        int compactedGeneration = 0;
+        for (Path path : paths) {
+            if (tableNumber(path) <= compactedUpTo &&
+                    tableGeneration(path) < compactedGeneration) {
+                Files.delete(path);
+                continue;
+            }
+            if (tableGeneration(path) > 0 && compactedUpTo < 0) {
+                compactedUpTo = tableNumber(path);
+                compactedGeneration = tableGeneration(path);
+            }
+            loaded.add(SSTable.open(path));
+        }
+        return loaded;
+    }
+
+    /**
+     * Replays the write-ahead log into the memtable. A record cut short by a crash ends the
+     * replay.
+     */
+    private void replayWal() throws IOException {
+        Path walPath = this.dir.resolve(WAL_FILE);
+        if (!Files.exists(walPath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(walPath)))) {
+            while (true) {
+                String key = SSTable.readString(in);
+                String value = in.readBoolean() ? TOMBSTONE : SSTable.readString(in);
+                this.memtable.put(key, value);
+                this.memtableBytes += 2L * (key.length() + value.length()) + 32;
+            }
+        } catch (EOFException e) {
+            // Reached the end of the log
+        }
+    }
+
+    private DataOutputStream openWal() throws IOException {
+        this.walChannel = FileChannel.open(this.dir.resolve(WAL_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        return new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(this.walChannel)));
+    }
+
+    private static String tableName(long number, int generation) {
+        return String.format("%020d-%d%s", number, generation, TABLE_SUFFIX);
+    }
+
+    private static long tableNumber(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.indexOf('-')));
+    }
+
+    private static int tableGeneration(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+    }
+
+    /**
+     * Filters the tombstones out of a sorted stream of entries.
+     */
+    static Iterator<Map.Entry<String, String>> skipTombstones(
+            Iterator<Map.Entry<String, String>> entries) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Map.Entry<String, String> next = advance();
+
+            private Map.Entry<String, String> advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<String, String> entry = entries.next();
+                    if (!isTombstone(entry.getValue())) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> current = this.next;
+                this.next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Merges sorted streams of entries into one sorted stream. When several streams have the
+     * same key, the entry from the earliest stream wins, so streams are given newest first.
+     */
+    static class MergingIterator implements Iterator<Map.Entry<String, String>> {
+        private final List<Iterator<Map.Entry<String, String>>> sources;
+        private final PriorityQueue<Head> heads;
+        private final String toKey;
+
+        MergingIterator(List<Iterator<Map.Entry<String, String>>> sources, String toKey) {
+            this.sources = sources;
+            this.toKey = toKey;
+            this.heads = new PriorityQueue<>(
+                    Comparator.comparing((Head head) -> head.entry.getKey())
+                            .thenComparingInt(head -> head.source));
+            for (int i = 0; i < sources.size(); i++) {
+                pull(i);
+            }
+        }
+
+        private void pull(int source) {
+            Iterator<Map.Entry<String, String>> iterator = this.sources.get(source);
+            if (iterator.hasNext()) {
+                Map.Entry<String, String> entry = iterator.next();
+                if (this.toKey == null || entry.getKey().compareTo(this.toKey) < 0) {
+                    this.heads.add(
+                            new Head(new AbstractMap.SimpleImmutableEntry<>(entry), source));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !this.heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            Head winner = this.heads.poll();
+            if (winner == null) {
+                throw new NoSuchElementException();
+            }
+            pull(winner.source);
+            // Older versions of the same key are skipped
+            while (!this.heads.isEmpty() &&
+                    this.heads.peek().entry.getKey().equals(winner.entry.getKey())) {
+                pull(this.heads.poll().source);
+            }
+            return winner.entry;
+        }
+
+        private static class Head {
+            final Map.Entry<String, String> entry;
+            final int source;
+
+            Head(Map.Entry<String, String> entry, int source) {
+                this.entry = entry;
+                this.source = source;
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A pool of workers that apply committed commands in parallel, partitioned by the hash of the
+ * keys they write. Each partition has a single worker that takes its commands in the order they
+ * were submitted. The commands on a key are therefore applied in log order, while commands on
+ * keys in other partitions are applied at the same time. A command whose keys fall in more than
+ * one partition has no partition, and the caller applies it itself once every partition has
+ * caught up with it.
+ *
+ * <p>The workers only change the key value store. The caller publishes each command, numbering
+ * it in the applied log, in log order as the commands finish.
+ *
+ * <p>What runs in parallel is decoding the commands, checking their conditions and versions and
+ * building their responses. The writes themselves still go through the storage engine, and
+ * the LSM engine takes its monitor for each put or delete, because every write is appended to
+ * its single write-ahead log in order. Workers therefore only wait on each other for the
+ * write itself.
+ */
+class PartitionedApplier {
+
+    private final ExecutorService[] workers;
+
+    /**
+     * Creates a pool with one worker thread per partition.
+     *
+     * @param partitions the number of partitions
+     */
+    public PartitionedApplier(int partitions) {
+        this.workers = new ExecutorService[partitions];
+        for (int i = 0; i < partitions; i++) {
+            String name = "apply-" + (i + 1);
+            this.workers[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Finds the partition of a command from its keys.
+     *
+     * @param keys the keys the command reads or writes
+     * @return the partition all the keys fall in, or -1 if they fall in more than one or there
+     * are none
+     */
+    public int partitionOf(Collection<String> keys) {
+        int partition = -1;
+        for (String key : keys) {
+            int keyPartition = Math.floorMod(key.hashCode(), this.workers.length);
+            if (partition >= 0 && keyPartition != partition) {
+                return -1;
+            }
+            partition = keyPartition;
+        }
+        return partition;
+    }
+
+    /**
+     * Queues a command on the worker of a partition, after the commands already queued on it.
+     *
+     * @param partition the partition of the command
+     * @param task      the task applying the command
+     * @param <T>       the result of the task
+     * @return the result of the task, once the worker has run it
+     */
+    public <T> Future<T> submit(int partition, Callable<T> task) {
+        return this.workers[partition].submit(task);
+    }
+
+    /**
+     * Returns the number of partitions.
+     *
+     * @return the number of partitions
+     */
+    public int size() {
+        return this.workers.length;
+    }
+}
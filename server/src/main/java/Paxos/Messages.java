@@ -13,12 +13,15 @@ public class Messages {
      *
      * @param proposalNumber The proposal number associated with the prepare request.
      * @param instanceNumber The instance number associated with the prepare request.
+     * @param traceId        The id of the trace the request belongs to, may be null.
      * @return A JSONObject representing the prepare request message.
      */
-    public static JSONObject PrepareRequest(long proposalNumber, int instanceNumber) {
+    public static JSONObject PrepareRequest(long proposalNumber, int instanceNumber,
+                                            String traceId) {
         JSONObject prepareRequest = new JSONObject();
         prepareRequest.put("proposalNumber", proposalNumber);
         prepareRequest.put("instanceNumber", instanceNumber);
+        prepareRequest.put("traceId", traceId);
 
         return prepareRequest;
     }
@@ -48,13 +51,16 @@ public class Messages {
      * @param proposalNumber The proposal number associated with the accept request.
      * @param instanceNumber The instance number associated with the accept request.
      * @param value          The value to be accepted.
+     * @param traceId        The id of the trace the request belongs to, may be null.
      * @return A JSONObject representing the accept request message.
      */
-    public static JSONObject AcceptRequest(long proposalNumber, int instanceNumber, String value) {
+    public static JSONObject AcceptRequest(long proposalNumber, int instanceNumber, String value,
+                                           String traceId) {
         JSONObject acceptRequest = new JSONObject();
         acceptRequest.put("proposalNumber", proposalNumber);
         acceptRequest.put("instanceNumber", instanceNumber);
         acceptRequest.put("value", value);
+        acceptRequest.put("traceId", traceId);
 
         return acceptRequest;
     }
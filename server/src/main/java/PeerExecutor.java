@@ -0,0 +1,122 @@
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of worker threads for the remote calls a replica makes to its peers. The number
+ * of threads and the length of the queue of waiting calls are both fixed, so a burst of client
+ * requests queues up calls instead of starting a thread for each one, and once the queue is full
+ * new calls are rejected with a {@link RejectedExecutionException} for the caller to handle as a
+ * failed call.
+ *
+ * <p>The pool counts the calls it rejected and measures how long calls waited in the queue, so
+ * an overloaded replica can be spotted before calls start timing out.
+ */
+class PeerExecutor extends ThreadPoolExecutor {
+
+    private final LongAdder rejected;
+    private final LongAdder started;
+    private final LongAdder queueWaitNanos;
+    private final AtomicInteger maxQueued;
+
+    /**
+     * Creates a pool whose threads are started when needed and stop after a minute idle.
+     *
+     * @param name          the prefix of the names of the threads
+     * @param threads       the maximum number of threads
+     * @param queueCapacity the maximum number of calls waiting for a thread
+     */
+    public PeerExecutor(String name, int threads, int queueCapacity) {
+        super(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity),
+                new NamedThreadFactory(name), new AbortPolicy());
+        allowCoreThreadTimeOut(true);
+        this.rejected = new LongAdder();
+        this.started = new LongAdder();
+        this.queueWaitNanos = new LongAdder();
+        this.maxQueued = new AtomicInteger();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        try {
+            super.execute(new Queued(command));
+        } catch (RejectedExecutionException e) {
+            this.rejected.increment();
+            throw e;
+        }
+        this.maxQueued.accumulateAndGet(getQueue().size(), Math::max);
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        super.beforeExecute(thread, runnable);
+        if (runnable instanceof Queued) {
+            this.queueWaitNanos.add(System.nanoTime() - ((Queued) runnable).queuedAt);
+            this.started.increment();
+        }
+    }
+
+    /**
+     * Returns the current state of the pool and the counters kept since it was created.
+     *
+     * @return the number of threads, active threads, queued calls, the most calls ever queued,
+     * completed and rejected calls, and the average time calls waited in the queue
+     */
+    public JSONObject getStats() {
+        long started = this.started.sum();
+        return new JSONObject()
+                .put("threads", getPoolSize())
+                .put("maxThreads", getMaximumPoolSize())
+                .put("active", getActiveCount())
+                .put("queued", getQueue().size())
+                .put("maxQueued", this.maxQueued.get())
+                .put("queueCapacity", getQueue().size() + getQueue().remainingCapacity())
+                .put("completed", getCompletedTaskCount())
+                .put("rejected", this.rejected.sum())
+                .put("avgQueueWaitMicros", started == 0 ? 0 :
+                        TimeUnit.NANOSECONDS.toMicros(this.queueWaitNanos.sum() / started));
+    }
+
+    /**
+     * A call with the time it was queued at.
+     */
+    private static class Queued implements Runnable {
+        private final Runnable command;
+        private final long queuedAt;
+
+        Queued(Runnable command) {
+            this.command = command;
+            this.queuedAt = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            this.command.run();
+        }
+    }
+
+    /**
+     * Creates daemon threads numbered after a prefix.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.name + "-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -19,19 +19,32 @@ public class PersistState {
     private static final String KV_STORE_FILE = "KVStore.dat";
     private static final String ACCEPTED_PROPOSAL_NUMBERS_FILE = "acceptedProposalNumbers.dat";
     private static final String ACCEPTED_VALUES_FILE = "acceptedValues.dat";
+    private static final String APPLIED_LOG_FILE = "appliedLog.dat";
+    private static final String SESSIONS_FILE = "sessions.dat";
+    private static final String DELIVERED_INDEXES_FILE = "deliveredIndexes.dat";
     private static final Path SAVE_DIR = FileSystems.getDefault().getPath("data");
 
     /**
-     * Checks if the saved state files exist.
+     * Checks if the saved state files exist. The key-value store file is not required, since a
+     * durable storage engine keeps the store in its own directory.
      *
      * @return True if the saved state files exist; false otherwise.
      */
     public static boolean checkForSavedState() {
-        return Files.exists(SAVE_DIR.resolve(KV_STORE_FILE)) &&
-                Files.exists(SAVE_DIR.resolve(ACCEPTED_PROPOSAL_NUMBERS_FILE)) &&
+        return Files.exists(SAVE_DIR.resolve(ACCEPTED_PROPOSAL_NUMBERS_FILE)) &&
                 Files.exists(SAVE_DIR.resolve(ACCEPTED_VALUES_FILE));
     }
 
+    /**
+     * Returns the directory a storage engine keeps its files in.
+     *
+     * @param name The name of the storage engine.
+     * @return The directory for the storage engine, inside the save directory.
+     */
+    public static Path getStorageDir(String name) {
+        return SAVE_DIR.resolve(name);
+    }
+
     /**
      * Persists a HashMap to a file.
      *
@@ -130,6 +143,73 @@ public class PersistState {
         persistHashMap(acceptedValues, SAVE_DIR, ACCEPTED_VALUES_FILE);
     }
 
+    /**
+     * Loads the tail of the applied log from a file.
+     *
+     * @return The loaded applied log tail.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    public static Map<Long, String> loadAppliedLog() throws IOException, ClassNotFoundException {
+        return loadHashMap(SAVE_DIR, APPLIED_LOG_FILE);
+    }
+
+    /**
+     * Saves the tail of the applied log to a file.
+     *
+     * @param appliedLog The applied log tail to save.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void saveAppliedLog(Map<Long, String> appliedLog) throws IOException {
+        persistHashMap(appliedLog, SAVE_DIR, APPLIED_LOG_FILE);
+    }
+
+    /**
+     * Loads the client session table from a file.
+     *
+     * @return The loaded sessions, or an empty map if none were saved.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    public static Map<String, String> loadSessions() throws IOException, ClassNotFoundException {
+        return loadHashMap(SAVE_DIR, SESSIONS_FILE);
+    }
+
+    /**
+     * Saves the client session table to a file.
+     *
+     * @param sessions The sessions to save.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void saveSessions(Map<String, String> sessions) throws IOException {
+        persistHashMap(sessions, SAVE_DIR, SESSIONS_FILE);
+    }
+
+    /**
+     * Loads the applied indexes the streams of commits to the other replicas have delivered up
+     * to.
+     *
+     * @return The loaded indexes, or an empty map if none were saved.
+     * @throws IOException            If an I/O error occurs.
+     * @throws ClassNotFoundException If the class of a serialized object cannot be found.
+     */
+    public static Map<String, Long> loadDeliveredIndexes()
+            throws IOException, ClassNotFoundException {
+        return loadHashMap(SAVE_DIR, DELIVERED_INDEXES_FILE);
+    }
+
+    /**
+     * Saves the applied indexes the streams of commits to the other replicas have delivered up
+     * to.
+     *
+     * @param deliveredIndexes The indexes to save, keyed by replica name.
+     * @throws IOException If an I/O error occurs.
+     */
+    public static void saveDeliveredIndexes(Map<String, Long> deliveredIndexes)
+            throws IOException {
+        persistHashMap(deliveredIndexes, SAVE_DIR, DELIVERED_INDEXES_FILE);
+    }
+
     /**
      * Loads a HashMap from a file.
      *
@@ -1,18 +1,41 @@
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
 import java.rmi.server.RemoteServer;
 import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,11 +47,46 @@ import Paxos.Messages;
 public class Replica extends UnicastRemoteObject implements ReplicaInterface {
 
     private static final AtomicInteger counter = new AtomicInteger(0);
+    private static final int DEFAULT_SCAN_LIMIT = 100;
+    private static final int MAX_SCAN_LIMIT = 1000;
+    private static final int MAX_EXPIRE_BATCH = 1000;
+    private static final long PURGE_INTERVAL_MS = 1000;
+    private static final long DEFAULT_WATCH_TIMEOUT_MS = 30000;
+    private static final long MAX_WATCH_TIMEOUT_MS = 60000;
+    private static final long STAGE_TIMEOUT_MINUTES = 10;
+    private static final int PARALLEL_APPLY_MIN_COMMANDS = 64;
     private final ReentrantLock lock;
     private final int serverId;
-    private final ExecutorService executorService;
+    private final PeerExecutor executorService;
+    private final AdmissionLimit admissionLimit;
+    private final Tracer tracer;
+    private final FailureDetector failureDetector;
+    private final String serverName;
+    private final ReentrantLock reconfigLock;
+    private final Map<Long, Snapshot> snapshots; // Snapshot ID, Snapshot being transferred
+    private final List<String> catchUpBuffer;
+    private final TimerWheel expiryWheel;
+    private final Map<String, Long> dueExpiries; // Key, Version that expired
+    private final Queue<Tombstone> tombstones; // Deleted keys, in the order they were deleted
+    private final ScheduledExecutorService reaper;
+    private final Topology topology;
+    private final ScheduledExecutorService gossiper;
+    private final Map<String, ReplicaInterface> gossipStubs; // Replica name, Replica stub
+    private final ChangeFeed changeFeed;
+    private final BulkImport bulkImport;
+    private final PartitionedApplier applier; // Null if batches are applied on one thread
+    private final CommitStreams commitStreams;
+    private final Map<String, long[]> commitPositions; // Origin, Epoch and last commit learnt
+    private volatile Map<String, ReplicaInterface> members; // Replica name, Replica stub
+    private volatile boolean catchingUp;
+    private volatile boolean learner;
+    private String learnSource; // The member a learner pulls the applied log from
+    private ScheduledExecutorService logPuller;
+    private AppliedLog appliedLog;
+    private SessionTable sessions;
     KeyValue kvs;
-    List<ReplicaInterface> peers;
+    volatile List<ReplicaInterface> peers;
+    CoordinatorInterface coordinator;
     int instanceNumber;
     double FAILURE_THRESHOLD = 0.25;
     private Map<Integer, Long> highestPromisedProposals; // Iteration Number, Proposal Number
@@ -38,25 +96,239 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
     /**
      * Initializes the replica server with a key-value store and a lock.
      *
-     * @param serverId The ID of the server.
+     * @param serverId   The ID of the server.
+     * @param serverName The name of the server, used to tag its trace spans.
      * @throws RemoteException If there is an issue with remote communication.
      */
-    public Replica(int serverId) throws RemoteException {
+    public Replica(int serverId, String serverName) throws RemoteException {
         super();
 
         if (PersistState.checkForSavedState() && loadState()) {
             ServerLogger.log("Loading from previous state");
         } else {
-            this.kvs = new KeyValue();
+            try {
+                this.kvs = KeyValue.open(new HashMap<>());
+            } catch (IOException e) {
+                throw new RemoteException("Could not open the key-value store", e);
+            }
             this.highestPromisedProposals = new HashMap<>();
             this.acceptedValues = new HashMap<>();
+            this.appliedLog = new AppliedLog();
+            this.sessions = new SessionTable();
         }
         this.lock = new ReentrantLock();
         this.peers = new ArrayList<>();
+        this.members = new LinkedHashMap<>();
+        this.reconfigLock = new ReentrantLock();
+        this.snapshots = new ConcurrentHashMap<>();
+        this.catchUpBuffer = new ArrayList<>();
         this.proposalNumber = generateProposalId();
         this.serverId = serverId;
-        this.executorService = Executors.newCachedThreadPool();
+        this.serverName = serverName;
+        this.executorService = new PeerExecutor("peer-io", ServerConfig.getPeerThreads(),
+                ServerConfig.getPeerQueueSize());
+        this.admissionLimit = new AdmissionLimit(ServerConfig.getMaxInFlightWrites(),
+                ServerConfig.getTargetCommitMillis());
+        this.tracer = new Tracer(serverName);
+        this.failureDetector = new FailureDetector(serverName, () -> this.members);
+        this.failureDetector.start();
         this.instanceNumber = counter.get();
+        this.changeFeed = new ChangeFeed(this.appliedLog.getAppliedIndex());
+        this.tombstones = new ConcurrentLinkedQueue<>();
+        trackTombstones();
+        this.kvs.setChangeListener(this::recordChange);
+        this.bulkImport = new BulkImport(PersistState.getStorageDir("imports"));
+        int applyThreads = ServerConfig.getApplyThreads();
+        this.applier = applyThreads > 1 ? new PartitionedApplier(applyThreads) : null;
+        this.expiryWheel = new TimerWheel(System.currentTimeMillis());
+        this.dueExpiries = new ConcurrentHashMap<>();
+        scheduleExpiries();
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "expiry-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.reaper.scheduleWithFixedDelay(this::reapExpiredKeys, TimerWheel.TICK_MILLIS,
+                TimerWheel.TICK_MILLIS, TimeUnit.MILLISECONDS);
+        this.reaper.scheduleWithFixedDelay(this::purgeTombstones, PURGE_INTERVAL_MS,
+                PURGE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.reaper.scheduleWithFixedDelay(this::closeIdleSnapshots, Snapshot.IDLE_TIMEOUT_MS,
+                Snapshot.IDLE_TIMEOUT_MS / 4, TimeUnit.MILLISECONDS);
+        this.reaper.scheduleWithFixedDelay(this::cleanUpStage, BulkImport.CLEAN_UP_INTERVAL_MS,
+                BulkImport.CLEAN_UP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        this.commitStreams = new CommitStreams(serverName, loadDeliveredIndexes());
+        this.commitPositions = new HashMap<>();
+        this.topology = new Topology(serverName);
+        this.gossipStubs = new ConcurrentHashMap<>();
+        this.gossiper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gossip");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.gossiper.scheduleWithFixedDelay(this::gossipRound, Topology.GOSSIP_INTERVAL_MS,
+                Topology.GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the tracer that records the spans of this replica.
+     *
+     * @return The tracer of this replica.
+     */
+    public Tracer getTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * Replies to a heartbeat from the failure detector of another replica.
+     *
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public void heartbeat() throws RemoteException {
+    }
+
+    /**
+     * Returns the name the replica is registered under, in the form host:port.
+     *
+     * @return The name of the replica.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String getName() throws RemoteException {
+        return this.serverName;
+    }
+
+    /**
+     * Returns the names of the replicas in the current configuration.
+     *
+     * @return The replica names as a JSON array string.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String getMembers() throws RemoteException {
+        return new JSONArray(this.members.keySet()).toString();
+    }
+
+    /**
+     * Replaces the current configuration with the given replicas. The list of peers used for
+     * the consensus rounds is swapped in one step, so rounds in flight keep using the
+     * configuration they started with.
+     *
+     * @param replicas The replicas in the new configuration.
+     * @throws RemoteException If the name of a replica could not be retrieved.
+     */
+    public void setMembers(List<ReplicaInterface> replicas) throws RemoteException {
+        Map<String, ReplicaInterface> newMembers = new LinkedHashMap<>();
+        for (ReplicaInterface replica : replicas) {
+            newMembers.put(replica.getName(), replica);
+        }
+        publishMembers(newMembers);
+    }
+
+    /**
+     * Replaces the current configuration with the named replicas. The other replicas are looked
+     * up when they are first called, so the configuration can name replicas that are not
+     * reachable yet.
+     *
+     * @param names The names of the replicas in the new configuration.
+     */
+    public void setMemberNames(List<String> names) {
+        Map<String, ReplicaInterface> newMembers = new LinkedHashMap<>();
+        for (String name : names) {
+            newMembers.put(name, name.equals(this.serverName) ? this : LazyReplica.create(name));
+        }
+        publishMembers(newMembers);
+    }
+
+    /**
+     * Makes this replica a learner of a configuration it is not a member of. A learner has no
+     * vote: it is not sent prepare, accept or learn requests and does not count towards any
+     * majority, so adding learners does not slow writes down. Instead it installs a snapshot
+     * from a member and then pulls the commands that member applied since, at a fixed interval,
+     * applying them in the same order. It serves reads from its own store, which lag the
+     * members by about the poll interval, and forwards writes to the leader.
+     *
+     * @param names The names of the replicas in the configuration.
+     */
+    public void startLearning(List<String> names) {
+        this.learner = true;
+        setMemberNames(names);
+        this.logPuller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "log-puller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.logPuller.scheduleWithFixedDelay(this::pullLog, 0,
+                ServerConfig.getLearnerPollMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds replicas to gossip with, such as the seeds of the cluster.
+     *
+     * @param names The names of the replicas.
+     */
+    public void addSeeds(Collection<String> names) {
+        this.topology.addAll(names);
+    }
+
+    /**
+     * Publishes a new configuration and the list of peers derived from it.
+     *
+     * @param newMembers The replicas in the new configuration, keyed by name.
+     */
+    private void publishMembers(Map<String, ReplicaInterface> newMembers) {
+        this.members = newMembers;
+        this.peers = new ArrayList<>(newMembers.values());
+        ServerLogger.log("Configuration updated, members: " + newMembers.keySet() +
+                ", quorums: " + quorumSize(1, newMembers.size()) + " to prepare, " +
+                quorumSize(2, newMembers.size()) + " to accept");
+        int phase1 = ServerConfig.getPhase1Quorum();
+        if (phase1 > 0 && phase1 < quorumSize(1, newMembers.size())) {
+            ServerLogger.logWarning("Phase 1 quorum of " + phase1 + " does not overlap the " +
+                    "phase 2 quorum, raised to " + quorumSize(1, newMembers.size()));
+        }
+    }
+
+    /**
+     * Looks up the stub of a replica in the RMI registry it is bound to.
+     *
+     * @param name The name of the replica, in the form host:port.
+     * @return The stub of the replica.
+     * @throws RemoteException   If the registry could not be reached.
+     * @throws NotBoundException If no replica is bound under that name.
+     */
+    public static ReplicaInterface resolveReplica(String name)
+            throws RemoteException, NotBoundException {
+        String[] hostPort = name.split(":");
+        Registry registry = LocateRegistry.getRegistry(hostPort[0], Integer.parseInt(hostPort[1]));
+        return (ReplicaInterface) registry.lookup(name);
+    }
+
+    /**
+     * Returns the host of the replica making the current remote call.
+     *
+     * @return The host of the caller, or "local" if the call was made without RMI.
+     */
+    private static String callerHost() {
+        try {
+            return RemoteServer.getClientHost();
+        } catch (ServerNotActiveException e) {
+            return "local";
+        }
+    }
+
+    /**
+     * Extracts the trace id carried by a message.
+     *
+     * @param messageStr The message as a JSON string.
+     * @return The trace id, or null if the message is not traced.
+     */
+    private static String traceIdOf(String messageStr) {
+        try {
+            return new JSONObject(messageStr).optString("traceId", null);
+        } catch (JSONException e) {
+            return null;
+        }
     }
 
     /**
@@ -120,28 +392,93 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
         // Process request
         String method = request.getString("method");
 
+        boolean isRead = method.equalsIgnoreCase("GET") || method.equalsIgnoreCase("SCAN") ||
+                method.equalsIgnoreCase("PREFIX") || method.equalsIgnoreCase("WATCH") ||
+                method.equalsIgnoreCase("BACKUP") || method.equalsIgnoreCase("STATS") ||
+                method.equalsIgnoreCase("TOPOLOGY");
+        if (this.peers.isEmpty() && !isRead) {
+            response = jsonResponse("400", "Replica has not joined the cluster yet", null);
+            ServerLogger.log("Sent response to " + clientName + ": " + response);
+            return response.toString();
+        }
+        if (this.learner && (method.equalsIgnoreCase("IMPORT") ||
+                method.equalsIgnoreCase("RESTORE") || method.equalsIgnoreCase("RECONFIG"))) {
+            // These stage data on or change the members, so they have to start at a member
+            response = jsonResponse("400", "Replica is a learner, send " +
+                    method.toUpperCase() + " to a member", null);
+            ServerLogger.log("Sent response to " + clientName + ": " + response);
+            return response.toString();
+        }
+
         switch (method.toUpperCase()) {
             case "GET":
                 String getKey = request.getString("data");
                 response = handleGet(getKey);
                 break;
+            case "SCAN":
+                JSONObject scan = request.getJSONObject("data");
+                response = handleScan(scan.optString("from", null), scan.optString("to", null),
+                        scan.optInt("limit", DEFAULT_SCAN_LIMIT));
+                break;
+            case "PREFIX":
+                JSONObject prefix = request.getJSONObject("data");
+                String prefixKey = prefix.getString("prefix");
+                // A page after the first starts from the cursor returned with the previous page
+                response = handleScan(prefix.optString("from", prefixKey), prefixEnd(prefixKey),
+                        prefix.optInt("limit", DEFAULT_SCAN_LIMIT));
+                break;
+            case "WATCH":
+                response = handleWatch(request.getJSONObject("data"));
+                break;
             case "PUT":
             case "DEL":
-                instanceNumber = serverId + counter.incrementAndGet();
-                if (this.propose(requestStr, instanceNumber)) {
-
-                    //ServerLogger.logInfo("Send Learn requests");
-                    String resString = this.sendLearnRequests(requestStr);
-                    if (resString != null) response = new JSONObject(resString);
-                    else response =
-                            jsonResponse("400", "Error, operation could not be completed", null);
-                } else {
-                    response = jsonResponse("400", "Consensus could not be reached", null);
-                }
+                response = admitWrite(request);
+                break;
+            case "CAS":
+            case "PUTNX":
+            case "DELV":
+                String malformed = validateConditionalWrite(method.toUpperCase(),
+                        request.optJSONObject("data"));
+                response = malformed != null ? jsonResponse("400", malformed, null) :
+                        admitWrite(request);
+                break;
+            case "EXPIRE": // Issued by the expiry reaper of the leader
+            case "PURGE": // Issued by the leader once tombstones are old enough
+            case "INGEST": // Issued by the replica an IMPORT was streamed to
+                response = handleWrite(request);
+                break;
+            case "TXN":
+                String invalid = validateTransaction(request.getJSONObject("data"));
+                response = invalid != null ? jsonResponse("400", invalid, null) :
+                        admitWrite(request);
+                break;
+            case "IMPORT":
+                response = handleImport(request.getJSONObject("data"));
+                break;
+            case "BACKUP":
+                response = handleBackup();
+                break;
+            case "RESTORE":
+                response = handleRestore(request.getString("data"));
+                break;
+            case "RECONFIG":
+                response = proposeReconfig(request);
+                break;
+            case "TRACE":
+                response = handleTrace(request.getString("data"));
+                break;
+            case "STATS":
+                response = handleStats();
+                break;
+            case "TOPOLOGY":
+                response = handleTopology();
                 break;
             default:
                 response = jsonResponse("400",
-                        "Invalid method. Valid methods are " + "GET, PUT and DEL", null);
+                        "Invalid method. Valid methods are " +
+                                "GET, SCAN, PREFIX, WATCH, PUT, DEL, CAS, PUTNX, DELV, TXN, " +
+                                "IMPORT, BACKUP, RESTORE, RECONFIG, TRACE, STATS and TOPOLOGY",
+                        null);
                 break;
         }
 
@@ -150,6 +487,347 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
         return response.toString();
     }
 
+    /**
+     * Serves a GET in the binary format of {@link BinaryProtocol}. This is the fast path for
+     * reads, so it skips the client lookup, the logging and the JSON that
+     * {@link #generateResponse(String)} goes through.
+     *
+     * @param request The request in the binary format.
+     * @return The response in the binary format.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public byte[] read(byte[] request) throws RemoteException {
+        String key;
+        try {
+            key = BinaryProtocol.decodeGet(request);
+        } catch (IllegalArgumentException e) {
+            return BinaryProtocol.encodeStatus(BinaryProtocol.BAD_REQUEST);
+        }
+        KeyValue.Versioned versioned = this.kvs.getVersioned(key);
+        if (versioned == null) {
+            return BinaryProtocol.encodeStatus(BinaryProtocol.NOT_FOUND);
+        }
+        return BinaryProtocol.encodeFound(versioned.version, versioned.expiresAt,
+                versioned.value);
+    }
+
+    /**
+     * Commits a client write if this replica has room for another write in flight, and turns it
+     * away as busy otherwise, with the time to wait before retrying. A write forwarded to the
+     * leader is admitted by both replicas, and a busy leader lowers the limit of the replica
+     * that forwarded it.
+     *
+     * @param request The write request.
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    private JSONObject admitWrite(JSONObject request) throws RemoteException {
+        // A retry of a write this replica already applied costs a lookup instead of a round
+        String clientId = request.optString("clientId", null);
+        String cached = clientId == null ? null :
+                this.sessions.lookup(clientId, request.optLong("seq", -1));
+        if (cached != null) {
+            return new JSONObject(cached);
+        }
+
+        if (!this.admissionLimit.tryAcquire()) {
+            long retryAfter = this.admissionLimit.retryAfterMillis();
+            ServerLogger.logWarning("Too many writes in flight, turned away a " +
+                    request.getString("method").toUpperCase());
+            return jsonResponse("400", "Replica is busy, retry after " + retryAfter + " ms",
+                    null).put("busy", true).put("retryAfterMillis", retryAfter);
+        }
+
+        long start = System.nanoTime();
+        boolean overloaded = true;
+        try {
+            JSONObject response = handleWrite(request);
+            overloaded = response.optBoolean("busy");
+            return response;
+        } finally {
+            this.admissionLimit.release(System.nanoTime() - start, overloaded);
+        }
+    }
+
+    /**
+     * Commits a write (PUT, DEL or a conditional write) through a Paxos round. Writes received
+     * by a replica that is not the leader are forwarded to the leader once, so a single proposer
+     * handles the writes while the leader is stable; if the leader cannot be reached the write
+     * is proposed locally. Large values are packed by the replica that received the write,
+     * before it is forwarded, see {@link #packValue(JSONObject)}.
+     *
+     * @param request The write request.
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @SuppressWarnings("try") // Spans are only opened and closed around their sections
+    private JSONObject handleWrite(JSONObject request) throws RemoteException {
+        if (this.learner) {
+            return forwardFromLearner(request);
+        }
+
+        JSONObject response;
+        String traceId = request.optString("traceId", null);
+        if (traceId == null) {
+            traceId = Tracer.newTraceId();
+            request.put("traceId", traceId);
+        }
+        // A client may name its own trace, so only a write forwarded by the replica that
+        // received it already has its command id and packed value
+        if (!request.optBoolean("forwarded") || !request.has("commandId")) {
+            request.put("commandId", UUID.randomUUID().toString());
+            packValue(request);
+        }
+        if (request.has("ttl") && !request.has("expiresAt")) {
+            // Fixed once here so every replica applies the same expiry time
+            request.put("expiresAt", System.currentTimeMillis() + request.getLong("ttl") * 1000);
+        }
+
+        String leader = this.failureDetector.getLeader();
+        ReplicaInterface leaderStub = this.members.get(leader);
+        if (!leader.equals(this.serverName) && leaderStub != null &&
+                !request.optBoolean("forwarded")) {
+            request.put("forwarded", true);
+            try (Tracer.Span ignored = tracer.start(traceId, "forwardToLeader")) {
+                return new JSONObject(leaderStub.generateResponse(request.toString()));
+            } catch (RemoteException e) {
+                ServerLogger.logWarning("Could not forward to leader " + leader + ": " +
+                        e.getMessage());
+            }
+        }
+
+        String requestStr = request.toString();
+        try (Tracer.Span ignored = tracer.start(traceId, "generateResponse")) {
+            instanceNumber = serverId + counter.incrementAndGet();
+            if (this.propose(requestStr, instanceNumber)) {
+
+                // The value is chosen once a majority accepted it, so apply it here and reply
+                // without waiting for the other replicas to learn it
+                try (Tracer.Span ignored1 = tracer.start(traceId, "learnLocally")) {
+                    response = new JSONObject(learnAndSend(requestStr));
+                }
+            } else {
+                response = jsonResponse("400", "Consensus could not be reached", null);
+            }
+        }
+        response.put("traceId", traceId);
+        return response;
+    }
+
+    /**
+     * Returns the keys a write reads or writes, which decide the partition it is applied on.
+     *
+     * @param request The write request.
+     * @return The keys, or null if the write is not confined to a set of keys, like a bulk
+     * import or a membership change.
+     */
+    private static List<String> keysOf(JSONObject request) {
+        List<String> keys = new ArrayList<>();
+        switch (request.getString("method").toUpperCase()) {
+            case "PUT":
+                keys.addAll(request.getJSONObject("data").keySet());
+                break;
+            case "DEL":
+                keys.add(request.getString("data"));
+                break;
+            case "CAS":
+            case "PUTNX":
+            case "DELV":
+                keys.add(request.getJSONObject("data").getString("key"));
+                break;
+            case "TXN":
+                JSONObject txn = request.getJSONObject("data");
+                for (String part : new String[]{"conditions", "ops"}) {
+                    JSONArray entries = txn.getJSONArray(part);
+                    for (int i = 0; i < entries.length(); i++) {
+                        keys.add(entries.getJSONObject(i).getString("key"));
+                    }
+                }
+                break;
+            case "EXPIRE":
+            case "PURGE":
+                JSONArray expired = request.getJSONArray("data");
+                for (int i = 0; i < expired.length(); i++) {
+                    keys.add(expired.getJSONObject(i).getString("key"));
+                }
+                break;
+            default:
+                return null;
+        }
+        return keys;
+    }
+
+    /**
+     * Forwards a write received by a learner to the leader, which commits it. The write is sent
+     * as the client sent it, so the leader packs its value and starts its trace.
+     *
+     * @param request The write request.
+     * @return the message to return to the client
+     */
+    private JSONObject forwardFromLearner(JSONObject request) {
+        String leader = this.failureDetector.getLeader();
+        ReplicaInterface leaderStub = this.members.get(leader);
+        if (leaderStub == null) {
+            return jsonResponse("400", "Replica is a learner and no member is available", null);
+        }
+        request.put("forwarded", true);
+        try {
+            return new JSONObject(leaderStub.generateResponse(request.toString()));
+        } catch (RemoteException e) {
+            ServerLogger.logWarning("Could not forward to leader " + leader + ": " +
+                    e.getMessage());
+            return jsonResponse("400", "Replica is a learner and could not reach the leader " +
+                    leader, null);
+        }
+    }
+
+    /**
+     * Shrinks the value of a PUT, CAS or PUTNX before it is proposed, so it is not copied in
+     * full into every Paxos message, accepted value and saved state. A value from the compression
+     * threshold up is compressed, and a value that is still above the large value size is staged
+     * on the replicas as a blob, leaving only a reference to it in the command. The blob is only
+     * referenced once a phase 2 quorum holds it, and is sent inline otherwise.
+     *
+     * @param request The write request, changed in place.
+     */
+    private void packValue(JSONObject request) {
+        String method = request.getString("method").toUpperCase();
+        JSONObject data = request.optJSONObject("data");
+        if ((!method.equals("PUT") && !method.equals("CAS") && !method.equals("PUTNX")) ||
+                data == null || data.isEmpty()) {
+            return;
+        }
+        String field = method.equals("PUT") ? data.keys().next() : "value";
+        if (!(data.opt(field) instanceof String)) {
+            return;
+        }
+
+        String value = data.getString(field);
+        int threshold = ServerConfig.getCompressThreshold();
+        if (threshold > 0 && value.length() >= threshold) {
+            String compressed = ValueCodec.compress(value);
+            if (compressed.length() < value.length()) {
+                value = compressed;
+                data.put(field, value);
+                request.put("compressed", true);
+            }
+        }
+
+        if (value.length() > ServerConfig.getLargeValueSize()) {
+            try {
+                Map.Entry<String, Integer> blob = this.bulkImport.writeBlob(value);
+                List<String> holders = stageOnMembers(blob.getKey(), blob.getValue());
+                int quorum = quorumSize(2, this.members.size());
+                if (holders.size() < quorum) {
+                    ServerLogger.logWarning("A large value was staged on " + holders.size() +
+                            " replicas, " + quorum + " are needed, sending it inline");
+                    return;
+                }
+                data.put(field, "");
+                request.put("blob", new JSONObject().put("id", blob.getKey())
+                        .put("chunks", blob.getValue()).put("source", this.serverName)
+                        .put("holders", new JSONArray(holders)));
+            } catch (IOException e) {
+                ServerLogger.logWarning("Could not stage a large value, sending it inline: " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Puts the value of a write that was staged as a blob back into the command. The blob is
+     * pulled before the lock is taken, and if it could not be, applying the write fails, so it is
+     * delivered again or the replica catches up instead of waiting for it under the lock.
+     *
+     * @param request The write command, changed in place.
+     */
+    private void unpackValue(JSONObject request) {
+        JSONObject blob = request.getJSONObject("blob");
+        String blobId = blob.getString("id");
+        int chunks = blob.getInt("chunks");
+        JSONObject data = request.getJSONObject("data");
+        String field = request.getString("method").equalsIgnoreCase("PUT") ?
+                data.keys().next() : "value";
+        if (!this.bulkImport.isStaged(blobId, chunks)) {
+            throw new IllegalStateException("Blob " + blobId + " is not staged");
+        }
+        try {
+            data.put(field, this.bulkImport.readBlob(blobId, chunks));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read blob " + blobId, e);
+        }
+    }
+
+    /**
+     * Commits a membership change through a Paxos round. Each change adds or removes a single
+     * replica, so the majorities of consecutive configurations always overlap, and only one
+     * change is proposed at a time by a replica.
+     *
+     * @param request The RECONFIG request, with the operation (ADD or REMOVE) and replica name.
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    private JSONObject proposeReconfig(JSONObject request) throws RemoteException {
+        if (!this.reconfigLock.tryLock()) {
+            return jsonResponse("400", "Another membership change is in progress", null);
+        }
+        try {
+            JSONObject data = request.getJSONObject("data");
+            String op = data.getString("op").toUpperCase();
+            String name = data.getString("replica");
+            if (!op.equals("ADD") && !op.equals("REMOVE")) {
+                return jsonResponse("400", "Invalid membership operation '" + op + "'", null);
+            }
+
+            request.put("commandId", UUID.randomUUID().toString());
+            String requestStr = request.toString();
+            instanceNumber = serverId + counter.incrementAndGet();
+            if (!this.propose(requestStr, instanceNumber)) {
+                return jsonResponse("400", "Consensus could not be reached", null);
+            }
+            String resString = this.sendLearnRequests(requestStr);
+            if (resString == null) {
+                return jsonResponse("400", "Error, operation could not be completed", null);
+            }
+
+            if (op.equals("REMOVE") && this.coordinator != null) {
+                this.coordinator.removeReplica(name.hashCode());
+            }
+            return new JSONObject(resString);
+        } finally {
+            this.reconfigLock.unlock();
+        }
+    }
+
+    /**
+     * Applies a committed membership change to the current configuration. Adding a replica that
+     * is already a member replaces its stub with one that is looked up again, which is how a
+     * restarted replica rejoins.
+     *
+     * @param data The operation (ADD or REMOVE) and the name of the replica.
+     * @return the message to return to the client
+     */
+    public JSONObject handleReconfig(JSONObject data) {
+        String op = data.getString("op").toUpperCase();
+        String name = data.getString("replica");
+        Map<String, ReplicaInterface> newMembers = new LinkedHashMap<>(this.members);
+
+        if (op.equals("ADD")) {
+            // The stub is only resolved on first use, so an unreachable replica neither holds up
+            // the apply nor makes this replica apply the change differently from the others
+            newMembers.put(name, name.equals(this.serverName) ? this : LazyReplica.create(name));
+        } else if (newMembers.remove(name) == null) {
+            return jsonResponse("400", "Replica '" + name + "' is not a member", null);
+        }
+
+        publishMembers(newMembers);
+        if (op.equals("REMOVE") && name.equals(this.serverName)) {
+            ServerLogger.logWarning("This replica was removed from the configuration");
+        }
+        return jsonResponse("200", "Configuration is now " + newMembers.keySet(), null);
+    }
+
     /**
      * Proposes a value to be accepted by the majority.
      *
@@ -159,10 +837,12 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
      * @throws RemoteException If there is an issue with remote communication.
      */
     @Override
+    @SuppressWarnings("try") // Spans are only opened and closed around their sections
     public boolean propose(String operation, int instanceNumber) throws RemoteException {
         String value = null;
         boolean consensusReached = false;
         int attempt = 0;
+        String traceId = traceIdOf(operation);
 
         while (!consensusReached) {
             attempt++;
@@ -171,14 +851,16 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
                     "Instance: " + instanceNumber + "; New proposal: " + this.proposalNumber);
 
             JSONObject prepareRequest =
-                    Messages.PrepareRequest(this.proposalNumber, instanceNumber);
+                    Messages.PrepareRequest(this.proposalNumber, instanceNumber, traceId);
             //ServerLogger.logInfo("Send prepare requests");
-            String[] prepareResponses =
-                    sendPrepareRequests(prepareRequest.toString(), instanceNumber);
+            String[] prepareResponses;
+            try (Tracer.Span ignored = tracer.start(traceId, "sendPrepareRequests")) {
+                prepareResponses = sendPrepareRequests(prepareRequest.toString(), instanceNumber);
+            }
 
-            if (isPromisedByMajority(prepareResponses)) {
+            if (isPromisedByQuorum(prepareResponses)) {
                 ServerLogger.logInfo("Instance: " + instanceNumber +
-                        "; Received promises from a majority of replicas for " +
+                        "; Received promises from a quorum of replicas for " +
                         this.proposalNumber);
 
                 long maxPreviousProposal = getMaxPreviousProposal(prepareResponses);
@@ -195,15 +877,18 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
                 }
 
                 JSONObject acceptRequest =
-                        Messages.AcceptRequest(this.proposalNumber, instanceNumber, value);
+                        Messages.AcceptRequest(this.proposalNumber, instanceNumber, value,
+                                traceId);
 
                 //ServerLogger.logInfo("Send Accept requests");
-                String[] acceptResponses =
-                        sendAcceptRequests(acceptRequest.toString(), instanceNumber);
+                String[] acceptResponses;
+                try (Tracer.Span ignored = tracer.start(traceId, "sendAcceptRequests")) {
+                    acceptResponses = sendAcceptRequests(acceptRequest.toString(), instanceNumber);
+                }
 
-                if (isAcceptedByMajority(acceptResponses)) {
+                if (isAcceptedByQuorum(acceptResponses)) {
                     consensusReached = true;
-                    ServerLogger.logInfo("Consensus reached, value accepted by majority");
+                    ServerLogger.logInfo("Consensus reached, value accepted by a quorum");
                 } else {
                     ServerLogger.logWarning(
                             "Consensus could not be reached for proposal " + this.proposalNumber +
@@ -223,10 +908,14 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
      * @throws RemoteException If there is an issue with remote communication.
      */
     @Override
+    @SuppressWarnings("try") // Spans are only opened and closed around their sections
     public String prepare(String requestStr, int instanceNumber) throws RemoteException {
-        lock.lock();
-        try {
-            ServerLogger.logInfo("Received prepare request from: " + RemoteServer.getClientHost());
+        String traceId = traceIdOf(requestStr);
+        try (Tracer.Span ignored = tracer.start(traceId, "prepare.lockWait")) {
+            lock.lock();
+        }
+        try (Tracer.Span ignored = tracer.start(traceId, "prepare")) {
+            ServerLogger.logInfo("Received prepare request from: " + callerHost());
 
             JSONObject request = new JSONObject(requestStr);
             long proposalNumber = request.getLong("proposalNumber");
@@ -245,8 +934,6 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
 
             return Messages.PrepareResponse(promised, previouslyPromisedProposal,
                     previouslyAcceptedValue).toString();
-        } catch (ServerNotActiveException e) {
-            throw new RuntimeException(e);
         } finally {
             lock.unlock();
         }
@@ -261,10 +948,14 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
      * @throws RemoteException If there is an issue with remote communication.
      */
     @Override
+    @SuppressWarnings("try") // Spans are only opened and closed around their sections
     public String accept(String requestStr, int instanceNumber) throws RemoteException {
-        lock.lock();
-        try {
-            ServerLogger.logInfo("Received accept request from: " + RemoteServer.getClientHost());
+        String traceId = traceIdOf(requestStr);
+        try (Tracer.Span ignored = tracer.start(traceId, "accept.lockWait")) {
+            lock.lock();
+        }
+        try (Tracer.Span ignored = tracer.start(traceId, "accept")) {
+            ServerLogger.logInfo("Received accept request from: " + callerHost());
 
             JSONObject request = new JSONObject(requestStr);
             long proposalNumber = request.getLong("proposalNumber");
@@ -283,8 +974,6 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
             }
 
             return Messages.AcceptResponse(accepted).toString();
-        } catch (ServerNotActiveException e) {
-            throw new RuntimeException(e);
         } finally {
             lock.unlock();
         }
@@ -298,12 +987,19 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
      * @throws RemoteException If there is an issue with remote communication.
      */
     @Override
+    @SuppressWarnings("try") // Spans are only opened and closed around their sections
     public String learn(String requestStr) throws RemoteException {
 
-        lock.lock();
-        try {
+        String traceId = traceIdOf(requestStr);
+        try (Tracer.Span ignored = tracer.start(traceId, "learn.stage")) {
+            stageReferenced(requestStr);
+        }
+        try (Tracer.Span ignored = tracer.start(traceId, "learn.lockWait")) {
+            lock.lock();
+        }
+        try (Tracer.Span ignored = tracer.start(traceId, "learn")) {
             ServerLogger.logInfo("Received learn '" + requestStr + "' request from: " +
-                    RemoteServer.getClientHost());
+                    callerHost());
 
             JSONObject request;
             JSONObject response;
@@ -315,30 +1011,23 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
                 return response.toString();
             }
 
-            String method = request.getString("method");
-            // Learner only required for put and delete since they modify the KV store
-            switch (method.toUpperCase()) {
-                case "PUT":
-                    JSONObject data = request.getJSONObject("data");
-                    response = handlePut(data);
-                    break;
-                case "DEL":
-                    String delKey = request.getString("data");
-                    response = handleDelete(delKey);
-                    break;
-                default:
-                    response = jsonResponse("400", "Invalid learn request", null);
-                    break;
+            // Commands learnt while a snapshot is being installed are applied after it
+            if (this.catchingUp) {
+                this.catchUpBuffer.add(requestStr);
+                ServerLogger.logInfo("Buffered while catching up: " + requestStr);
+                return jsonResponse("200", "Learnt, replica is catching up", null).toString();
             }
+
+            response = applyCommand(requestStr, request);
             ServerLogger.logInfo("Learnt: " + requestStr);
-            if (saveState()) {
-                ServerLogger.log("Saved state successfully");
-            } else {
-                ServerLogger.logError("Failed to save state");
+            try (Tracer.Span ignored1 = tracer.start(traceId, "learn.saveState")) {
+                if (saveState()) {
+                    ServerLogger.log("Saved state successfully");
+                } else {
+                    ServerLogger.logError("Failed to save state");
+                }
             }
             return response.toString();
-        } catch (ServerNotActiveException e) {
-            throw new RuntimeException(e);
         } finally {
             lock.unlock();
         }
@@ -346,266 +1035,2084 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
     }
 
     /**
-     * Sends learn requests to all peers in parallel and collects their responses.
+     * Applies a committed command to the state of the replica and records it in the applied log.
+     * A command that is already in the applied log is not applied again.
      *
-     * @param value The value to be learned by the peers.
-     * @return A string representation of the response from the peers, or `null` if an error occurs.
-     * @throws RemoteException If there is an error during the remote call.
+     * @param requestStr The command as a string.
+     * @param request    The parsed command.
+     * @return the message to return to the client
      */
-    private String sendLearnRequests(String value) throws RemoteException {
-        List<Future<String>> futures = new ArrayList<>();
-        for (ReplicaInterface peer : this.peers) {
-            futures.add(executorService.submit(() -> peer.learn(value)));
-        }
-
-        String responseStr = null;
-        for (Future<String> future : futures) {
-            try {
-                JSONObject response = new JSONObject(future.get());
-                responseStr = response.toString();
-                if (response.getString("status").equals("400")) {
-                    return null;
-                }
-            } catch (Exception e) {
-                ServerLogger.logError("Error sending learn requests: " + e.getMessage());
-            }
+    private JSONObject applyCommand(String requestStr, JSONObject request) {
+        JSONObject answered = answerIfApplied(request);
+        if (answered != null) {
+            return answered;
         }
-        return responseStr;
+        return publish(execute(requestStr, request));
     }
 
     /**
-     * Sends prepare requests to the replicas.
+     * Answers a command without applying it if it was applied already, or if it is a write the
+     * client retried.
+     *
+     * @param request The parsed command.
+     * @return the message to return to the client, or null if the command has to be applied
+     */
+    private JSONObject answerIfApplied(JSONObject request) {
+        if (this.appliedLog.contains(request.optString("commandId", null))) {
+            return jsonResponse("200", "Command already applied", null);
+        }
+
+        // A write the client retried is answered the way it was the first time
+        String clientId = request.optString("clientId", null);
+        long seq = request.optLong("seq", -1);
+        if (clientId != null && seq >= 0) {
+            String cached = this.sessions.lookup(clientId, seq);
+            if (cached != null) {
+                ServerLogger.log("Answered retry " + seq + " of client " + clientId +
+                        " from its session");
+                return new JSONObject(cached);
+            } else if (this.sessions.isStale(clientId, seq)) {
+                return jsonResponse("400", "Request " + seq + " is too old to retry", null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Applies a command to the key value store, without recording it. It is run by the thread
+     * holding the lock, or by the worker of the partition of its keys.
+     *
+     * @param requestStr The command as a string.
+     * @param request    The parsed command.
+     * @return the command with its response and the changes it made, to publish
+     */
+    private Applied execute(String requestStr, JSONObject request) {
+        if (request.has("blob")) {
+            unpackValue(request);
+        }
+
+        JSONObject response;
+        String method = request.getString("method");
+        boolean compressed = request.optBoolean("compressed");
+        // Learner only required for writes since they modify the KV store. Conditions are checked
+        // here, against the state every replica reaches after applying the same commands
+        switch (method.toUpperCase()) {
+            case "PUT":
+                JSONObject data = request.getJSONObject("data");
+                response = handlePut(data, request.optLong("expiresAt"), compressed);
+                break;
+            case "DEL":
+                String delKey = request.getString("data");
+                response = handleDelete(delKey);
+                break;
+            case "CAS":
+                JSONObject cas = request.getJSONObject("data");
+                response = handleCompareAndSet(cas.getString("key"), cas.getString("value"),
+                        cas.getLong("version"), request.optLong("expiresAt"), compressed);
+                break;
+            case "PUTNX":
+                JSONObject putnx = request.getJSONObject("data");
+                response = handleCompareAndSet(putnx.getString("key"), putnx.getString("value"),
+                        0, request.optLong("expiresAt"), compressed);
+                break;
+            case "DELV":
+                JSONObject delv = request.getJSONObject("data");
+                response = handleDeleteIfVersion(delv.getString("key"), delv.getLong("version"));
+                break;
+            case "TXN":
+                response = handleTransaction(request.getJSONObject("data"));
+                break;
+            case "EXPIRE":
+                response = handleExpire(request.getJSONArray("data"));
+                break;
+            case "PURGE":
+                response = handlePurge(request.getJSONArray("data"));
+                break;
+            case "INGEST":
+                response = handleIngest(request);
+                break;
+            case "RECONFIG":
+                response = handleReconfig(request.getJSONObject("data"));
+                break;
+            default:
+                return new Applied(requestStr, request,
+                        jsonResponse("400", "Invalid learn request", null), false, false,
+                        this.changeFeed.takePending());
+        }
+        return new Applied(requestStr, request, response, true, true,
+                this.changeFeed.takePending());
+    }
+
+    /**
+     * Records an applied command in the applied log and the session of its client, and
+     * publishes its changes to the watchers. Commands are published in log order.
+     *
+     * @param applied The command with its response and changes.
+     * @return the message to return to the client
+     */
+    private JSONObject publish(Applied applied) {
+        if (!applied.logged) {
+            return applied.response;
+        }
+        long appliedIndex = this.appliedLog.append(applied.command);
+        String clientId = applied.request.optString("clientId", null);
+        long seq = applied.request.optLong("seq", -1);
+        if (applied.recorded && clientId != null && seq >= 0) {
+            this.sessions.record(clientId, seq, applied.request.optLong("ack", 0), appliedIndex,
+                    applied.response);
+        }
+        this.changeFeed.commit(appliedIndex, applied.changes);
+        return applied.response;
+    }
+
+    /**
+     * Takes a snapshot of the key-value store for another replica to pull in chunks. Only a view
+     * of the store is opened while holding the lock, and the chunks are read from it as they are
+     * pulled.
+     *
+     * @return The snapshot header as a JSON string.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String beginSnapshot() throws RemoteException {
+        Snapshot snapshot;
+        lock.lock();
+        try {
+            snapshot = new Snapshot(this.kvs.openView(), this.appliedLog.getAppliedIndex(),
+                    this.appliedLog.toMap(), this.sessions.toMap());
+        } finally {
+            lock.unlock();
+        }
+        this.snapshots.put(snapshot.getSnapshotId(), snapshot);
+        ServerLogger.log("Serving snapshot " + snapshot.getSnapshotId() + " at index " +
+                snapshot.header().getLong("appliedIndex"));
+        return snapshot.header().toString();
+    }
+
+    /**
+     * Returns the next chunk of a snapshot, or the previous one again.
+     *
+     * @param snapshotId The id of the snapshot.
+     * @param chunkIndex The index of the chunk.
+     * @return The key value pairs in the chunk, and whether it is the last one, as a JSON string.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String getSnapshotChunk(long snapshotId, int chunkIndex) throws RemoteException {
+        Snapshot snapshot = this.snapshots.get(snapshotId);
+        if (snapshot == null) {
+            throw new RemoteException("Unknown snapshot " + snapshotId);
+        }
+        try {
+            return snapshot.chunk(chunkIndex).toString();
+        } catch (IllegalStateException e) {
+            throw new RemoteException(e.getMessage());
+        }
+    }
+
+    /**
+     * Runs regularly. Closes and forgets the snapshots that have not been pulled from for a
+     * while, such as those of a replica that failed during the transfer.
+     */
+    private void closeIdleSnapshots() {
+        long now = System.currentTimeMillis();
+        for (Snapshot snapshot : this.snapshots.values()) {
+            if (snapshot.isIdle(now)) {
+                snapshot.close();
+                this.snapshots.remove(snapshot.getSnapshotId());
+                ServerLogger.log("Closed idle snapshot " + snapshot.getSnapshotId());
+            }
+        }
+    }
+
+    /**
+     * Returns the commands applied after an index.
+     *
+     * @param appliedIndex The index to start after.
+     * @return The commands keyed by applied index as a JSON string.
+     * @throws RemoteException If the commands are no longer retained.
+     */
+    @Override
+    public String getLogSince(long appliedIndex) throws RemoteException {
+        Map<Long, String> commands = this.appliedLog.since(appliedIndex);
+        if (commands == null) {
+            throw new RemoteException("Applied log no longer reaches index " + appliedIndex);
+        }
+        return new JSONObject(commands).toString();
+    }
+
+    /**
+     * Returns one chunk of a bulk import staged on this replica.
+     *
+     * @param importId The id of the import.
+     * @param chunk    The index of the chunk.
+     * @return The [key, value] pairs in the chunk as a JSON string.
+     * @throws RemoteException If the chunk is not staged here.
+     */
+    @Override
+    public String getImportChunk(String importId, int chunk) throws RemoteException {
+        try {
+            return this.bulkImport.readChunk(importId, chunk);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RemoteException("Could not read chunk " + chunk + " of import " + importId,
+                    e);
+        }
+    }
+
+    /**
+     * Pulls the chunks of a bulk import from the replica it was streamed to, so the command that
+     * ingests it does not have to wait for the transfer while holding the lock.
+     *
+     * @param importId The id of the import.
+     * @param chunks   The number of chunks in the import.
+     * @param source   The name of the replica the import was streamed to.
+     * @throws RemoteException If the chunks could not be pulled.
+     */
+    @Override
+    public void stageImport(String importId, int chunks, String source) throws RemoteException {
+        ReplicaInterface sourceStub = this.members.get(source);
+        if (sourceStub == null) {
+            throw new RemoteException("Replica " + source + " is not a member");
+        }
+        try {
+            this.bulkImport.stage(importId, chunks, sourceStub);
+        } catch (IOException | IllegalArgumentException e) {
+            throw new RemoteException("Could not stage import " + importId, e);
+        }
+        ServerLogger.log("Staged import " + importId + " in " + chunks + " chunks from " + source);
+    }
+
+    /**
+     * Swaps views of the replicas in the cluster with another replica, as a round of gossip.
+     *
+     * @param view The heartbeat of every replica the caller knows of, as a JSON string.
+     * @return The merged view of this replica as a JSON string.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String exchangeTopology(String view) throws RemoteException {
+        return this.topology.merge(new JSONObject(view)).toString();
+    }
+
+    /**
+     * Runs every gossip interval. Swaps views with one random replica this replica knows of,
+     * including the members of the configuration, so the views spread through the cluster.
+     */
+    private void gossipRound() {
+        this.topology.addAll(this.members.keySet());
+        JSONObject view = this.topology.tick();
+        String name = this.topology.pickPeer();
+        if (name == null) {
+            return;
+        }
+        try {
+            ReplicaInterface peer = this.gossipStubs.computeIfAbsent(name, LazyReplica::create);
+            this.topology.merge(new JSONObject(peer.exchangeTopology(view.toString())));
+        } catch (RemoteException | RuntimeException e) {
+            // A replica that is down only stops its heartbeat from going up
+        }
+    }
+
+    /**
+     * Makes the replica buffer the commands it learns instead of applying them, until
+     * {@link #catchUp(ReplicaInterface)} has installed a snapshot.
+     */
+    public void startCatchUp() {
+        lock.lock();
+        try {
+            this.catchingUp = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Catches up with another replica by pulling a snapshot of its store in chunks, applying
+     * the commands it applied since the snapshot, and then the commands buffered while the
+     * transfer was running. Chunks are pulled one at a time, which keeps the source from
+     * sending faster than they are applied.
+     *
+     * @param source The replica to catch up with.
+     * @return True if the replica caught up, otherwise false.
+     */
+    public boolean catchUp(ReplicaInterface source) {
+        try {
+            JSONObject header = new JSONObject(source.beginSnapshot());
+            long snapshotId = header.getLong("snapshotId");
+            ServerLogger.log("Installing snapshot " + snapshotId + " at index " +
+                    header.getLong("appliedIndex"));
+
+            Map<String, String> kv = new HashMap<>();
+            boolean last = false;
+            for (int i = 0; !last; i++) {
+                JSONObject chunk = new JSONObject(source.getSnapshotChunk(snapshotId, i));
+                JSONObject pairs = chunk.getJSONObject("pairs");
+                for (String key : pairs.keySet()) {
+                    kv.put(key, pairs.getString(key));
+                }
+                last = chunk.getBoolean("last");
+            }
+
+            Map<Long, String> tail = new HashMap<>();
+            JSONObject tailJson = header.getJSONObject("tail");
+            for (String index : tailJson.keySet()) {
+                tail.put(Long.parseLong(index), tailJson.getString(index));
+            }
+            Map<String, String> sessions = new HashMap<>();
+            JSONObject sessionsJson = header.optJSONObject("sessions");
+            for (String clientId : sessionsJson == null ? new ArrayList<String>() :
+                    sessionsJson.keySet()) {
+                sessions.put(clientId, sessionsJson.getString(clientId));
+            }
+            JSONObject since = new JSONObject(source.getLogSince(header.getLong("appliedIndex")));
+            for (String index : since.keySet()) {
+                stageReferenced(since.getString(index));
+            }
+
+            lock.lock();
+            try {
+                this.kvs.replaceAll(kv);
+                scheduleExpiries();
+                this.appliedLog = new AppliedLog(tail);
+                trackTombstones();
+                this.sessions = new SessionTable(sessions);
+                this.changeFeed.reset(this.appliedLog.getAppliedIndex());
+                applyCommands(since);
+                for (String command : this.catchUpBuffer) {
+                    applyCommand(command, new JSONObject(command));
+                }
+                this.catchUpBuffer.clear();
+                ServerLogger.log("Caught up to index " + this.appliedLog.getAppliedIndex());
+                saveState();
+                return true;
+            } finally {
+                finishCatchUp();
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            ServerLogger.logError("Error catching up: " + e.getMessage());
+            finishCatchUp();
+            return false;
+        }
+    }
+
+    /**
+     * Runs every poll interval on a learner. Pulls the commands its source applied since the
+     * applied index of the learner and applies them. Applied indexes are only comparable between
+     * a learner and the replica it copied them from, so a learner without a source, or whose
+     * source is no longer available, installs a snapshot from the leader and learns from it.
+     */
+    private void pullLog() {
+        String source = this.learnSource;
+        ReplicaInterface sourceStub = source == null ? null : this.members.get(source);
+        try {
+            if (sourceStub == null || !this.failureDetector.isAvailable(source)) {
+                String leader = this.failureDetector.getLeader();
+                ReplicaInterface leaderStub = this.members.get(leader);
+                this.learnSource = null;
+                if (leaderStub != null && catchUp(leaderStub)) {
+                    this.learnSource = leader;
+                    ServerLogger.log("Learning the applied log of " + leader);
+                }
+                return;
+            }
+
+            JSONObject commands = new JSONObject(
+                    sourceStub.getLogSince(this.appliedLog.getAppliedIndex()));
+            if (commands.isEmpty()) {
+                return;
+            }
+            for (String index : commands.keySet()) {
+                stageReferenced(commands.getString(index));
+            }
+            lock.lock();
+            try {
+                applyCommands(commands);
+                saveState();
+            } finally {
+                lock.unlock();
+            }
+        } catch (RemoteException | RuntimeException e) {
+            ServerLogger.logWarning("Could not pull the applied log of " + source +
+                    ", installing a snapshot: " + e.getMessage());
+            this.learnSource = null;
+        }
+    }
+
+    /**
+     * Applies commands keyed by applied index in index order.
+     *
+     * @param commands The commands keyed by applied index.
+     */
+    private void applyCommands(JSONObject commands) {
+        Map<Long, String> ordered = new TreeMap<>();
+        for (String index : commands.keySet()) {
+            ordered.put(Long.parseLong(index), commands.getString(index));
+        }
+        if (this.applier != null && ordered.size() >= PARALLEL_APPLY_MIN_COMMANDS) {
+            applyInParallel(ordered.values());
+            return;
+        }
+        for (String command : ordered.values()) {
+            applyCommand(command, new JSONObject(command));
+        }
+    }
+
+    /**
+     * Applies a batch of commands in log order with the same result as applying them one by
+     * one, but with the commands on different partitions of keys applied by different workers
+     * at the same time. Commands are published as soon as every command before them has been,
+     * so the applied index only moves past a command once every partition has applied the
+     * commands up to it.
+     *
+     * <p>A command is applied by this thread alone, after every running command is published,
+     * if its keys fall in more than one partition or its outcome may depend on a running
+     * command: a command with the same id, or a write of the same client whose session a
+     * running command may change. If a worker fails to apply a command, the writes of that
+     * command and of the unpublished commands after it are undone, and the rest of the batch is
+     * applied serially. Called while holding the lock.
+     *
+     * @param commands The commands in log order.
+     */
+    private void applyInParallel(Collection<String> commands) {
+        List<String> batch = new ArrayList<>(commands);
+        Deque<Running> running = new ArrayDeque<>();
+        Set<String> runningIds = new HashSet<>();
+        Map<String, Long> runningSeqs = new HashMap<>(); // Client ID, Highest sequence it affects
+        List<Running> undone = new ArrayList<>();
+        int alone = 0;
+        int next = 0;
+        while (next < batch.size() && undone.isEmpty()) {
+            String command = batch.get(next);
+            JSONObject request = new JSONObject(command);
+            List<String> keys = request.has("blob") ? null : keysOf(request);
+            int partition = keys == null ? -1 : this.applier.partitionOf(keys);
+            String commandId = request.optString("commandId", null);
+            String clientId = request.optString("clientId", null);
+            long seq = request.optLong("seq", -1);
+            boolean hasSession = clientId != null && seq >= 0;
+
+            boolean waits = partition < 0 || runningIds.contains(commandId) ||
+                    (hasSession && (runningSeqs.getOrDefault(clientId, -1L) >= seq ||
+                            this.sessions.size() + runningSeqs.size() >=
+                                    SessionTable.MAX_SESSIONS));
+            if (!waits && answerIfApplied(request) != null) {
+                // Skipped, unless a running command evicts what it was skipped for
+                if (running.isEmpty()) {
+                    next++;
+                    continue;
+                }
+                waits = true;
+            }
+            if (waits) {
+                undone = publishRunning(running, true);
+                if (undone.isEmpty()) {
+                    runningIds.clear();
+                    runningSeqs.clear();
+                    applyCommand(command, request);
+                    alone++;
+                    next++;
+                }
+                continue;
+            }
+
+            Running run = new Running(command, request, keys);
+            run.result = this.applier.submit(partition, run::execute);
+            running.addLast(run);
+            if (commandId != null) {
+                runningIds.add(commandId);
+            }
+            if (hasSession) {
+                // A record can evict the responses up to its sequence number and below its ack
+                runningSeqs.merge(clientId, Math.max(seq, request.optLong("ack", 0) - 1),
+                        Math::max);
+            }
+            next++;
+            undone = publishRunning(running, false);
+        }
+        if (undone.isEmpty()) {
+            undone = publishRunning(running, true);
+        }
+
+        if (!undone.isEmpty()) {
+            // The store is back where the published commands left it, so the rest of the batch
+            // is applied one command at a time, which fails the same way serial apply does
+            ServerLogger.logWarning("A worker failed to apply a command, applying the " +
+                    (undone.size() + batch.size() - next) + " remaining commands serially");
+            for (Running run : undone) {
+                applyCommand(run.command, new JSONObject(run.command));
+            }
+            for (String command : batch.subList(next, batch.size())) {
+                applyCommand(command, new JSONObject(command));
+            }
+            return;
+        }
+        ServerLogger.log("Applied " + commands.size() + " commands on " + this.applier.size() +
+                " partitions, " + alone + " of them alone");
+    }
+
+    /**
+     * Publishes the running commands that finished, in log order. If a command failed, every
+     * command after it is waited for and none of them is published. Their writes are undone
+     * instead, latest first, which puts each of their keys back to the value the last published
+     * command left it at, since the commands on a key run in log order.
+     *
+     * @param running The running commands in log order.
+     * @param all     Whether to wait for every running command to finish.
+     * @return The failed command and the commands after it, or an empty list if none failed.
+     */
+    private List<Running> publishRunning(Deque<Running> running, boolean all) {
+        List<Running> undone = new ArrayList<>();
+        while (!running.isEmpty() && (all || running.peekFirst().result.isDone())) {
+            Running run = running.removeFirst();
+            try {
+                Applied applied = run.await();
+                if (undone.isEmpty()) {
+                    publish(applied);
+                    continue;
+                }
+            } catch (ExecutionException e) {
+                ServerLogger.logError("Could not apply command " +
+                        run.request.optString("commandId") + " in parallel: " +
+                        e.getCause().getMessage());
+            }
+            undone.add(run);
+            all = true;
+        }
+        for (int i = undone.size() - 1; i >= 0; i--) {
+            if (undone.get(i).before != null) {
+                this.kvs.restoreStored(undone.get(i).before);
+            }
+        }
+        return undone;
+    }
+
+    /**
+     * A command applied by a worker, with the stored values of its keys from before it ran so
+     * its writes can be undone.
+     */
+    private class Running {
+        final String command;
+        final JSONObject request;
+        final List<String> keys;
+        volatile Map<String, String> before; // Null until the worker starts on it
+        Future<Applied> result;
+
+        Running(String command, JSONObject request, List<String> keys) {
+            this.command = command;
+            this.request = request;
+            this.keys = keys;
+        }
+
+        /**
+         * Waits for the worker to finish, even if interrupted, since its writes may have to be
+         * undone once it has.
+         */
+        Applied await() throws ExecutionException {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return this.result.get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        Applied execute() {
+            this.before = kvs.getStored(this.keys);
+            try {
+                return Replica.this.execute(this.command, this.request);
+            } catch (RuntimeException e) {
+                // The changes it recorded before failing are never published
+                changeFeed.takePending();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Stops buffering learnt commands. Commands still in the buffer are applied, so a failed
+     * transfer does not lose them.
+     */
+    public void finishCatchUp() {
+        lock.lock();
+        try {
+            if (this.catchingUp) {
+                for (String command : this.catchUpBuffer) {
+                    applyCommand(command, new JSONObject(command));
+                }
+                this.catchUpBuffer.clear();
+                this.catchingUp = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the spans this replica recorded for a trace.
+     *
+     * @param traceId The id of the trace.
+     * @return The spans as a JSON array string.
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    @Override
+    public String getSpans(String traceId) throws RemoteException {
+        return this.tracer.getSpans(traceId).toString();
+    }
+
+    /**
+     * Collects the spans recorded for a trace from every peer and merges them into a single
+     * trace in the Chrome trace event format.
+     *
+     * @param traceId The id of the trace to collect.
+     * @return the message to return to the client along with the trace as a JSON string
+     */
+    public JSONObject handleTrace(String traceId) {
+        List<Future<String>> futures = new ArrayList<>();
+        for (ReplicaInterface peer : this.peers) {
+            try {
+                futures.add(executorService.submit(() -> peer.getSpans(traceId)));
+            } catch (RejectedExecutionException e) {
+                ServerLogger.logWarning("Peer calls are queued up, skipping a replica's spans");
+            }
+        }
+
+        JSONArray spans = new JSONArray();
+        for (Future<String> future : futures) {
+            try {
+                JSONArray peerSpans = new JSONArray(future.get());
+                for (int i = 0; i < peerSpans.length(); i++) {
+                    spans.put(peerSpans.get(i));
+                }
+            } catch (Exception e) {
+                ServerLogger.logError("Error collecting spans: " + e.getMessage());
+            }
+        }
+
+        if (spans.isEmpty()) {
+            return jsonResponse("400", "No spans found for trace '" + traceId + "'", null);
+        }
+        return jsonResponse("200", "Collected " + spans.length() + " spans for trace '" +
+                traceId + "'", Tracer.toTraceEvents(spans).toString());
+    }
+
+    /**
+     * Reports how loaded this replica is, starting with the pool of threads making the remote
+     * calls to the peers.
+     *
+     * @return the message to return to the client along with the statistics as a JSON string
+     */
+    private JSONObject handleStats() {
+        JSONObject peerIo = this.executorService.getStats();
+        JSONObject admission = this.admissionLimit.getStats();
+        JSONObject stats = new JSONObject().put("peerExecutor", peerIo)
+                .put("admission", admission).put("commitsQueued", this.commitStreams.getQueued());
+        return jsonResponse("200", "Peer calls: " + peerIo.getInt("active") + " of " +
+                peerIo.getInt("maxThreads") + " threads busy, " + peerIo.getInt("queued") +
+                " queued (at most " + peerIo.getInt("maxQueued") + "), " +
+                peerIo.getLong("rejected") + " rejected, " +
+                peerIo.getLong("avgQueueWaitMicros") + "us average queue wait. Writes: " +
+                admission.getInt("inFlight") + " in flight of a limit of " +
+                admission.getInt("limit") + ", " + admission.getLong("rejected") +
+                " turned away, " + admission.getLong("latencyMillis") + "ms commit latency, " +
+                this.commitStreams.getQueued() + " commits queued for the other members",
+                stats.toString());
+    }
+
+    /**
+     * Reports the topology of the cluster as this replica sees it: the configuration, the leader
+     * and every replica known through gossip. It is read from memory without calling the other
+     * replicas, so clients can ask for it as often as they like.
+     *
+     * @return the message to return to the client along with the topology as a JSON string
+     */
+    private JSONObject handleTopology() {
+        List<String> up = new ArrayList<>();
+        JSONArray replicas = new JSONArray();
+        for (String name : this.topology.getNames()) {
+            boolean isUp = this.topology.isUp(name);
+            replicas.put(new JSONObject().put("name", name).put("up", isUp)
+                    .put("member", this.members.containsKey(name)));
+            if (isUp) {
+                up.add(name);
+            }
+        }
+        String leader = this.failureDetector.getLeader();
+        JSONObject topology = new JSONObject().put("leader", leader)
+                .put("members", new JSONArray(this.members.keySet())).put("replicas", replicas)
+                .put("learner", this.learner)
+                .put("phase1Quorum", quorumSize(1, this.members.size()))
+                .put("phase2Quorum", quorumSize(2, this.members.size()));
+        return jsonResponse("200", (this.learner ? "Learner of leader " : "Leader ") + leader +
+                ", members " + this.members.keySet() + ", up " + up, topology.toString());
+    }
+
+    /**
+     * Sends learn requests to all peers in parallel and collects their responses.
+     *
+     * @param value The value to be learned by the peers.
+     * @return A string representation of the response from the peers, or `null` if an error occurs.
+     * @throws RemoteException If there is an error during the remote call.
+     */
+    private String sendLearnRequests(String value) throws RemoteException {
+        // Learning applies and persists the value, so it is not bound by the RPC timeout
+        String[] responses = sendToPeers("learn", peer -> peer.learn(value), false);
+
+        String responseStr = null;
+        for (String responseJson : responses) {
+            if (responseJson == null) {
+                continue;
+            }
+            JSONObject response = new JSONObject(responseJson);
+            responseStr = response.toString();
+            if (response.getString("status").equals("400")) {
+                return null;
+            }
+        }
+        return responseStr;
+    }
+
+    /**
+     * Applies a chosen value on this replica and queues it on the stream of commits to every
+     * other member, without waiting for them to learn it. Both happen while holding the lock, so
+     * the members learn the values in the order this replica applied them.
+     *
+     * @param value The chosen value.
+     * @return the response to the value as a JSON string
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    private String learnAndSend(String value) throws RemoteException {
+        stageReferenced(value);
+        lock.lock();
+        try {
+            String response = learn(value);
+            this.commitStreams.send(value, this.appliedLog.getAppliedIndex(), this.members);
+            return response;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Learns a command another replica committed, from its stream of commits to this replica. A
+     * commit that was already learnt, because its delivery was retried, is ignored. Commits before
+     * it may be missing if there is a gap in the numbers, because commits were dropped from the
+     * stream, or if the stream is new, for example because the origin restarted with commits
+     * still queued. This replica then applies what the origin applied after the index the stream
+     * had delivered up to, pulled from the applied log of the origin, and installs a snapshot
+     * from the origin if the log no longer reaches back that far.
+     *
+     * @param origin         The name of the replica that committed the command.
+     * @param epoch          The time the origin started, which the numbers start over from.
+     * @param seq            The number of the commit on the stream of the origin.
+     * @param deliveredIndex The applied index on the origin that every commit up to was
+     *                       delivered to this replica, over every epoch.
+     * @param appliedIndex   The applied index of the command on the origin.
+     * @param command        The committed command.
+     * @return The response to the command as a JSON string.
+     * @throws RemoteException If this replica could not catch up with the origin.
+     */
+    @Override
+    public String commit(String origin, long epoch, long seq, long deliveredIndex,
+                         long appliedIndex, String command) throws RemoteException {
+        stageReferenced(command);
+        lock.lock();
+        try {
+            long[] position = this.commitPositions.get(origin);
+            boolean sameStream = position != null && position[0] == epoch;
+            if (sameStream && seq <= position[1]) {
+                return jsonResponse("200", "Commit " + seq + " from " + origin +
+                        " was already learnt", null).toString();
+            } else if ((sameStream && seq == position[1] + 1) ||
+                    deliveredIndex >= appliedIndex - 1) {
+                // Nothing the origin applied before the command can be missing
+                return learnFromStream(origin, new long[]{epoch, seq}, command);
+            } else if (this.catchingUp) {
+                throw new RemoteException("Catching up, commit " + seq + " has to be resent");
+            }
+            ServerLogger.logWarning((sameStream ? "Commits " + (position[1] + 1) + " to " +
+                    (seq - 1) + " from " + origin + " were dropped" : "New stream of commits " +
+                    "from " + origin + ", commits before it may be missing") + ", pulling what " +
+                    origin + " applied since index " + deliveredIndex);
+        } finally {
+            lock.unlock();
+        }
+
+        ReplicaInterface source = this.members.get(origin);
+        if (source == null) {
+            source = LazyReplica.create(origin);
+        }
+        JSONObject missed = null;
+        try {
+            missed = new JSONObject(source.getLogSince(deliveredIndex));
+        } catch (RemoteException e) {
+            ServerLogger.logWarning("Could not pull the applied log of " + origin +
+                    ", catching up with it: " + e.getMessage());
+        }
+        if (missed != null) {
+            JSONObject before = new JSONObject();
+            for (String index : missed.keySet()) {
+                if (Long.parseLong(index) < appliedIndex) {
+                    stageReferenced(missed.getString(index));
+                    before.put(index, missed.getString(index));
+                }
+            }
+            lock.lock();
+            try {
+                if (this.catchingUp) {
+                    throw new RemoteException("Catching up, commit " + seq + " has to be resent");
+                }
+                // Commands this replica already applied, from any stream, are not applied again
+                applyCommands(before);
+                return learnFromStream(origin, new long[]{epoch, seq}, command);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        startCatchUp();
+        if (!catchUp(source)) {
+            throw new RemoteException("Could not catch up with " + origin);
+        }
+        lock.lock();
+        try {
+            this.commitPositions.put(origin, new long[]{epoch, seq});
+        } finally {
+            lock.unlock();
+        }
+        return jsonResponse("200", "Caught up with " + origin, null).toString();
+    }
+
+    /**
+     * Learns a commit from the stream of an origin and moves the position on the stream to it.
+     * If the command could not be learnt, the position is left where it was, so the commit is
+     * learnt when it is resent. Called while holding the lock.
+     *
+     * @param origin   The name of the replica that committed the command.
+     * @param position The epoch of the stream and the number of the commit.
+     * @param command  The committed command.
+     * @return The response to the command as a JSON string.
+     * @throws RemoteException If the command could not be learnt.
+     */
+    private String learnFromStream(String origin, long[] position, String command)
+            throws RemoteException {
+        long[] previous = this.commitPositions.put(origin, position);
+        try {
+            return learn(command);
+        } catch (RemoteException | RuntimeException e) {
+            if (previous == null) {
+                this.commitPositions.remove(origin);
+            } else {
+                this.commitPositions.put(origin, previous);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sends prepare requests to the replicas.
      *
      * @param request        The request to be sent.
      * @param instanceNumber The instance number.
      * @return An array of prepare responses.
      * @throws RemoteException If there is an issue with remote communication.
      */
-    private String[] sendPrepareRequests(String request, int instanceNumber)
-            throws RemoteException {
-        List<Future<String>> futures = new ArrayList<>();
-        for (ReplicaInterface peer : this.peers) {
-            futures.add(executorService.submit(() -> peer.prepare(request, instanceNumber)));
+    private String[] sendPrepareRequests(String request, int instanceNumber)
+            throws RemoteException {
+        return sendToPeers("prepare", peer -> peer.prepare(request, instanceNumber), true, 1);
+    }
+
+    /**
+     * Sends accept requests to all peers in parallel and collects their responses.
+     *
+     * @param request        The accept request to be sent to peers.
+     * @param instanceNumber The instance number associated with the request.
+     * @return An array containing the responses from all peers.
+     * @throws RemoteException If there is an error during the remote call.
+     */
+    private String[] sendAcceptRequests(String request, int instanceNumber) throws RemoteException {
+        PeerCall accept = peer -> peer.accept(request, instanceNumber);
+        if (!ServerConfig.isThrifty()) {
+            return sendToPeers("accept", accept, true, 2);
+        }
+
+        // Send to the fastest quorum first, and only to the others if it does not accept
+        Map<String, ReplicaInterface> members = this.members;
+        List<String> ranked = this.failureDetector.rankByLatency(members.keySet());
+        int quorum = quorumSize(2, members.size());
+        List<String> fastest = ranked.subList(0, Math.min(quorum, ranked.size()));
+        String[] responses = sendToPeers("accept", accept, true, 2, members, fastest);
+        if (isAcceptedByQuorum(responses)) {
+            return responses;
+        }
+
+        ServerLogger.logWarning("Instance: " + instanceNumber +
+                "; Fastest quorum did not accept, sending to the remaining replicas");
+        List<String> remaining = ranked.subList(fastest.size(), ranked.size());
+        String[] fallback = sendToPeers("accept", accept, true, 2, members, remaining);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i] == null) {
+                responses[i] = fallback[i];
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a request to every peer the failure detector considers alive, in parallel, and
+     * collects the responses. Peers that are skipped, fail, or miss the deadline have a null
+     * response, so they count against the quorum without stalling the round.
+     *
+     * @param phase           The name of the phase, used in the logs.
+     * @param call            The remote call to make on each peer.
+     * @param adaptiveTimeout Whether to stop waiting after the adaptive RPC timeout of the
+     *                        slowest peer contacted.
+     * @return An array containing the responses, one per member of the configuration.
+     */
+    private String[] sendToPeers(String phase, PeerCall call, boolean adaptiveTimeout) {
+        return sendToPeers(phase, call, adaptiveTimeout, 0);
+    }
+
+    /**
+     * Sends a request to every peer the failure detector considers alive, in parallel, and
+     * collects the responses until a quorum of the given Paxos phase has granted the request.
+     *
+     * @param phase           The name of the phase, used in the logs.
+     * @param call            The remote call to make on each peer.
+     * @param adaptiveTimeout Whether to stop waiting after the adaptive RPC timeout of the
+     *                        slowest peer contacted.
+     * @param quorumPhase     The Paxos phase (1 or 2) whose quorum is enough to stop waiting,
+     *                        or 0 to wait for every peer.
+     * @return An array containing the responses, one per member of the configuration.
+     */
+    private String[] sendToPeers(String phase, PeerCall call, boolean adaptiveTimeout,
+                                 int quorumPhase) {
+        // Applying a membership change replaces the members, so use the configuration the round
+        // started with
+        Map<String, ReplicaInterface> members = this.members;
+        return sendToPeers(phase, call, adaptiveTimeout, quorumPhase, members, members.keySet());
+    }
+
+    /**
+     * Sends a request to the given members of a configuration that the failure detector
+     * considers alive, in parallel, and collects the responses. This replica is called directly
+     * instead of through its own RMI stub. Once a quorum has granted the request the round
+     * stops waiting, and the calls still in flight finish in the background with a null
+     * response, so a round is as fast as its quorum rather than its slowest peer.
+     *
+     * @param phase           The name of the phase, used in the logs.
+     * @param call            The remote call to make on each peer.
+     * @param adaptiveTimeout Whether to stop waiting after the adaptive RPC timeout of the
+     *                        slowest peer contacted.
+     * @param quorumPhase     The Paxos phase (1 or 2) whose quorum is enough to stop waiting,
+     *                        or 0 to wait for every peer.
+     * @param members         The configuration the round uses.
+     * @param targets         The names of the members to send the request to.
+     * @return An array containing the responses, one per member of the configuration.
+     */
+    private String[] sendToPeers(String phase, PeerCall call, boolean adaptiveTimeout,
+                                 int quorumPhase, Map<String, ReplicaInterface> members,
+                                 Collection<String> targets) {
+        List<String> names = new ArrayList<>(members.keySet());
+        List<Future<String>> futures = new ArrayList<>();
+        BlockingQueue<Integer> finished = new LinkedBlockingQueue<>(); // Indexes of done calls
+        int pending = 0;
+        long timeoutMillis = 0;
+        for (String name : names) {
+            if (!targets.contains(name) || !this.failureDetector.isAvailable(name)) {
+                futures.add(null);
+                continue;
+            }
+            ReplicaInterface peer = name.equals(this.serverName) ? this : members.get(name);
+            int index = futures.size();
+            try {
+                futures.add(executorService.submit(() -> {
+                    try {
+                        return call.call(peer);
+                    } finally {
+                        finished.add(index);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // The call counts as failed, like a call to an unavailable peer
+                ServerLogger.logWarning("Peer calls are queued up, not sending " + phase +
+                        " request to " + name);
+                futures.add(null);
+                continue;
+            }
+            pending++;
+            timeoutMillis = Math.max(timeoutMillis, this.failureDetector.rpcTimeoutMillis(name));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int quorum = quorumPhase == 0 ? Integer.MAX_VALUE : quorumSize(quorumPhase, names.size());
+        int granted = 0;
+        String[] responses = new String[names.size()];
+        while (pending > 0 && granted < quorum) {
+            Integer i;
+            try {
+                i = adaptiveTimeout ? finished.poll(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS) : finished.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (i == null) {
+                break;
+            }
+            pending--;
+            try {
+                responses[i] = futures.get(i).get();
+                if (quorumPhase != 0 && isGranted(quorumPhase, responses[i])) {
+                    granted++;
+                }
+            } catch (Exception e) {
+                ServerLogger.logError("Error sending " + phase + " requests: " + e.getMessage());
+            }
+        }
+
+        if (granted < quorum) {
+            for (int i = 0; i < names.size(); i++) {
+                Future<String> future = futures.get(i);
+                if (future != null && !future.isDone()) {
+                    future.cancel(true);
+                    ServerLogger.logWarning(
+                            "Timed out sending " + phase + " request to " + names.get(i));
+                }
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * A remote call made on a single peer during a fan-out.
+     */
+    private interface PeerCall {
+        String call(ReplicaInterface peer) throws RemoteException;
+    }
+
+    /**
+     * The tombstone a delete left, with when and at which applied index it was deleted.
+     */
+    private static class Tombstone {
+        final String key;
+        final long version;
+        final long deletedAt;
+        final long index;
+
+        Tombstone(String key, long version, long deletedAt, long index) {
+            this.key = key;
+            this.version = version;
+            this.deletedAt = deletedAt;
+            this.index = index;
+        }
+    }
+
+    /**
+     * A command that was applied to the key value store and is waiting to be published.
+     */
+    private static class Applied {
+        final String command;
+        final JSONObject request;
+        final JSONObject response;
+        final boolean logged; // Whether the command takes an index in the applied log
+        final boolean recorded; // Whether the response is kept in the session of the client
+        final List<ChangeFeed.Change> changes;
+
+        Applied(String command, JSONObject request, JSONObject response, boolean logged,
+                boolean recorded, List<ChangeFeed.Change> changes) {
+            this.command = command;
+            this.request = request;
+            this.response = response;
+            this.logged = logged;
+            this.recorded = recorded;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Checks if a phase 1 quorum of peers have promised a proposal.
+     *
+     * @param responseStrings Array of response strings from peers.
+     * @return True if a quorum of peers have promised, otherwise false.
+     */
+    private boolean isPromisedByQuorum(String[] responseStrings) {
+        return countGranted(1, responseStrings) >= quorumSize(1, responseStrings.length);
+    }
+
+    /**
+     * Returns the number of replicas a Paxos phase needs to hear from in a configuration.
+     * Without a configured quorum size both phases use a simple majority. Otherwise the phase
+     * that is not configured is sized so the quorums of the two phases always overlap, which is
+     * all Paxos needs (Flexible Paxos); if both are configured but do not overlap, the phase 1
+     * quorum is raised until they do, since phase 2 is the one every write waits for.
+     *
+     * @param phase   The Paxos phase, 1 (prepare) or 2 (accept).
+     * @param members The number of members in the configuration.
+     * @return The quorum size of the phase.
+     */
+    static int quorumSize(int phase, int members) {
+        int phase1 = Math.min(ServerConfig.getPhase1Quorum(), members);
+        int phase2 = Math.min(ServerConfig.getPhase2Quorum(), members);
+        if (phase1 <= 0 && phase2 <= 0) {
+            return members / 2 + 1;
+        } else if (phase2 <= 0) {
+            phase2 = members - phase1 + 1;
+        } else if (phase1 <= 0 || phase1 + phase2 <= members) {
+            phase1 = members - phase2 + 1;
+        }
+        return phase == 1 ? phase1 : phase2;
+    }
+
+    /**
+     * Counts the responses that granted the request of a Paxos phase.
+     *
+     * @param phase           The Paxos phase, 1 (prepare) or 2 (accept).
+     * @param responseStrings Array of response strings from peers.
+     * @return The number of promises or acceptances.
+     */
+    private static int countGranted(int phase, String[] responseStrings) {
+        int granted = 0;
+        for (String responseStr : responseStrings) {
+            if (isGranted(phase, responseStr)) {
+                granted++;
+            }
+        }
+        return granted;
+    }
+
+    /**
+     * Checks if a response granted the request of a Paxos phase.
+     *
+     * @param phase       The Paxos phase, 1 (prepare) or 2 (accept).
+     * @param responseStr The response from a peer, or null if there was none.
+     * @return True if the response is a promise (phase 1) or an acceptance (phase 2).
+     */
+    private static boolean isGranted(int phase, String responseStr) {
+        if (responseStr == null) {
+            return false;
+        }
+        try {
+            return new JSONObject(responseStr).getBoolean(phase == 1 ? "promised" : "accepted");
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the maximum previously promised proposal number from the responses.
+     *
+     * @param responseStrings Array of response strings from peers.
+     * @return The maximum previously promised proposal number.
+     */
+    private long getMaxPreviousProposal(String[] responseStrings) {
+        long maxProposal = 0;
+        for (String responseStr : responseStrings) {
+            try {
+                JSONObject response = new JSONObject(responseStr);
+                if (response.has("previouslyPromisedProposal") &&
+                        response.getLong("previouslyPromisedProposal") > maxProposal) {
+                    maxProposal = response.getLong("previouslyPromisedProposal");
+                }
+            } catch (Exception e) {
+                continue;
+            }
+        }
+        return maxProposal;
+    }
+
+    /**
+     * Retrieves the value corresponding to the highest previously promised proposal number.
+     *
+     * @param responseStrings     Array of response strings from peers.
+     * @param maxPreviousProposal The maximum previously promised proposal number.
+     * @return The value associated with the highest previously promised proposal number.
+     */
+    private String getValueFromHighestProposal(String[] responseStrings, long maxPreviousProposal) {
+        for (String responseStr : responseStrings) {
+            try {
+                JSONObject response = new JSONObject(responseStr);
+                if (response.getLong("previouslyPromisedProposal") == maxPreviousProposal) {
+                    return response.getString("previouslyAcceptedValue");
+                }
+            } catch (Exception e) {
+                continue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a phase 2 quorum of peers have accepted a proposal.
+     *
+     * @param acceptResponses Array of accept responses from peers.
+     * @return True if a quorum of peers have accepted, otherwise false.
+     */
+    private boolean isAcceptedByQuorum(String[] acceptResponses) {
+        return countGranted(2, acceptResponses) >= quorumSize(2, acceptResponses.length);
+    }
+
+    /**
+     * Saves the current state of the replica, including the key-value store and Paxos-related
+     * information.
+     *
+     * @return True if the state is saved successfully, otherwise false.
+     */
+    private boolean saveState() {
+        ServerLogger.logInfo("Saving current state");
+        try {
+            // A durable storage engine persists its own writes, which are synced once for all
+            // the commands applied since the last save, before the applied log records them
+            if (this.kvs.isDurable()) {
+                this.kvs.sync();
+            } else {
+                PersistState.saveKvStore(this.kvs.snapshot());
+            }
+            PersistState.saveAcceptedValues(this.acceptedValues);
+            PersistState.saveAcceptedProposalNumbers(this.highestPromisedProposals);
+            PersistState.saveAppliedLog(this.appliedLog.toMap());
+            PersistState.saveSessions(this.sessions.toMap());
+            PersistState.saveDeliveredIndexes(this.commitStreams.getDeliveredIndexes());
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            ServerLogger.logError("Error saving state: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Loads the previous state of the replica, including the key-value store and Paxos-related
+     * information.
+     *
+     * @return True if the state is loaded successfully, otherwise false.
+     */
+    private boolean loadState() {
+        try {
+            Map<String, String> kv = PersistState.loadKvStore();
+            this.kvs = KeyValue.open(kv);
+            this.acceptedValues = PersistState.loadAcceptedValues();
+            this.highestPromisedProposals = PersistState.loadAcceptedProposalNumbers();
+            this.appliedLog = new AppliedLog(PersistState.loadAppliedLog());
+            this.sessions = new SessionTable(PersistState.loadSessions());
+            ServerLogger.logInfo("Loaded from previous state");
+            return true;
+        } catch (IOException | ClassNotFoundException e) {
+            ServerLogger.logWarning("Could not load from previous state");
+            return false;
+        }
+    }
+
+    /**
+     * Loads the applied indexes the streams of commits delivered up to before the replica
+     * restarted.
+     *
+     * @return The delivered indexes keyed by member name, or none if they could not be loaded.
+     */
+    private static Map<String, Long> loadDeliveredIndexes() {
+        try {
+            return PersistState.loadDeliveredIndexes();
+        } catch (IOException | ClassNotFoundException e) {
+            ServerLogger.logWarning("Could not load the delivered indexes of the commit streams");
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * Handles getting the corresponding value for a key from the KV store if it exists.
+     *
+     * @param key the key to be inserted
+     * @return the message to return to the client along with any data as a JSON string
+     */
+    public JSONObject handleGet(String key) {
+        KeyValue.Versioned versioned = this.kvs.getVersioned(key);
+
+        // If the key actually exists return the corresponding value and its version
+        if (versioned != null) {
+            String value = versioned.value;
+            ServerLogger.log("Successful GET on key '" + key + "' with value '" + value + "'");
+            JSONObject response = jsonResponse("200", "Got key '" + key + "' with value '" +
+                    value + "' at version " + versioned.version, value);
+            response.put("version", versioned.version);
+            if (versioned.expiresAt != 0) {
+                response.put("expiresAt", versioned.expiresAt);
+            }
+            return response;
+        } else {
+            ServerLogger.logError("Could not find key '" + key + "'");
+            return jsonResponse("400", "GET FAILED for key '" + key + "'", null);
+        }
+    }
+
+    /**
+     * Handles listing the key value pairs in a key range, in key order, one page at a time. When
+     * there are more pairs than the limit, the response includes the key to continue from.
+     *
+     * @param fromKey the first key of the range (inclusive), or null to start at the first key
+     * @param toKey   the end of the range (exclusive), or null to continue to the last key
+     * @param limit   the maximum number of pairs to return
+     * @return the message to return to the client along with the page as a JSON string
+     */
+    public JSONObject handleScan(String fromKey, String toKey, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_SCAN_LIMIT));
+        JSONArray entries = new JSONArray();
+        String next = null;
+
+        Iterator<Map.Entry<String, String>> range = this.kvs.scan(fromKey, toKey);
+        while (range.hasNext()) {
+            Map.Entry<String, String> entry = range.next();
+            if (entries.length() == pageSize) {
+                next = entry.getKey();
+                break;
+            }
+            entries.put(new JSONObject().put("key", entry.getKey()).put("value",
+                    entry.getValue()));
+        }
+
+        JSONObject page = new JSONObject();
+        page.put("entries", entries);
+        page.put("next", next);
+        ServerLogger.log("Successful SCAN from '" + fromKey + "' to '" + toKey + "', returned " +
+                entries.length() + " pairs");
+        return jsonResponse("200", "Found " + entries.length() + " pairs" +
+                (next != null ? ", more from '" + next + "'" : ""), page.toString());
+    }
+
+    /**
+     * Handles watching a key or every key with a prefix. The request waits until a change to
+     * those keys is applied after the position given by the watcher, or until the timeout, and
+     * returns the changes with the position to watch from next. Without a position, only changes
+     * applied after the request arrived are returned.
+     *
+     * @param data the key or prefix to watch, and optionally the position, limit and timeout
+     * @return the message to return to the client along with the changes as a JSON string
+     */
+    public JSONObject handleWatch(JSONObject data) {
+        String fromKey;
+        String toKey;
+        if (data.has("key")) {
+            fromKey = data.getString("key");
+            toKey = fromKey + '\u0000';
+        } else if (data.has("prefix")) {
+            fromKey = data.getString("prefix");
+            toKey = prefixEnd(fromKey);
+        } else {
+            return jsonResponse("400", "WATCH needs a key or a prefix", null);
+        }
+        long position = data.optLong("from", this.changeFeed.getLastIndex());
+        int limit = Math.max(1, Math.min(data.optInt("limit", DEFAULT_SCAN_LIMIT),
+                MAX_SCAN_LIMIT));
+        long timeout = Math.max(0, Math.min(data.optLong("timeout", DEFAULT_WATCH_TIMEOUT_MS),
+                MAX_WATCH_TIMEOUT_MS));
+
+        ChangeFeed.Batch batch;
+        try {
+            batch = this.changeFeed.since(position, fromKey, toKey, limit, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return jsonResponse("400", "WATCH was interrupted", null);
+        }
+        if (batch == null) {
+            long next = this.changeFeed.getLastIndex();
+            return jsonResponse("400", "Changes after position " + position + " are no longer " +
+                            "retained, read the current values and watch from " + next,
+                    new JSONObject().put("next", next).toString());
+        }
+
+        JSONArray changes = new JSONArray();
+        for (ChangeFeed.Change change : batch.changes) {
+            JSONObject json = new JSONObject();
+            json.put("index", change.index);
+            json.put("op", change.value != null ? "PUT" : "DEL");
+            json.put("key", change.key);
+            json.put("value", change.value);
+            json.put("version", change.version);
+            changes.put(json);
+        }
+        ServerLogger.log("Successful WATCH from '" + fromKey + "' to '" + toKey + "', returned " +
+                changes.length() + " changes");
+        return jsonResponse("200", "Found " + changes.length() + " changes, watch from " +
+                batch.next, new JSONObject().put("changes", changes).put("next",
+                batch.next).toString());
+    }
+
+    /**
+     * Computes the smallest key greater than every key starting with a prefix.
+     *
+     * @param prefix the prefix
+     * @return the end of the prefix range, or null if the range extends to the last key
+     */
+    private static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Handles putting key value pairs into the KV store
+     *
+     * @param data       the key value pair to be inserted, in JSON format
+     * @param expiresAt  the time the key expires in milliseconds, or 0 if it doesn't expire
+     * @param compressed true if the value was compressed with {@link ValueCodec#compress}
+     * @return the message to return to the client along with any data as a JSON string
+     */
+    public JSONObject handlePut(JSONObject data, long expiresAt, boolean compressed) {
+        String key = data.keys().next();
+        String stored = data.getString(key);
+        String value = compressed ? "<" + stored.length() + " compressed characters>" : stored;
+        String message;
+        String status;
+
+        // Return a success if the key was successfully put into the KV store
+        if (this.kvs.put(key, stored, expiresAt, compressed)) {
+            if (expiresAt != 0) {
+                this.expiryWheel.schedule(key, this.kvs.getVersion(key), expiresAt);
+            }
+            ServerLogger.log("Successful PUT on key '" + key + "' with value '" + value + "'");
+            message = "Put key '" + key + "' with value '" + value + "'";
+            status = "200";
+        } else {
+            ServerLogger.logError("Could not PUT key '" + key + "'");
+            message = "PUT FAILED for key '" + key + "' with value '" + value + "'";
+            status = "400";
         }
+        return jsonResponse(status, message, null).put("version", this.kvs.getVersion(key));
+    }
 
-        String[] responses = new String[this.peers.size()];
-        int i = 0;
-        for (Future<String> future : futures) {
-            try {
-                responses[i++] = future.get();
-            } catch (Exception e) {
-                ServerLogger.logError("Error sending prepare requests: " + e.getMessage());
+    /**
+     * Handles putting a key value pair into the KV store only if the key is at an expected
+     * version. An expected version of 0 puts the key only if it does not exist.
+     *
+     * @param key             the key to put
+     * @param value           the value to put
+     * @param expectedVersion the version the key must be at
+     * @param expiresAt       the time the key expires in milliseconds, or 0 if it doesn't expire
+     * @param compressed      true if the value was compressed with {@link ValueCodec#compress}
+     * @return the message to return to the client, with the version the key is now at
+     */
+    public JSONObject handleCompareAndSet(String key, String value, long expectedVersion,
+                                          long expiresAt, boolean compressed) {
+        long version = this.kvs.getVersion(key);
+        if (version != expectedVersion) {
+            ServerLogger.log("CAS on key '" + key + "' did not match, expected version " +
+                    expectedVersion + " but found " + version);
+            return jsonResponse("400", "CAS FAILED for key '" + key + "', expected version " +
+                    expectedVersion + " but found " + version, null).put("version", version);
+        }
+        return handlePut(new JSONObject().put(key, value), expiresAt, compressed);
+    }
+
+    /**
+     * Checks that a conditional write is well formed before it is proposed, so that every replica
+     * can apply it once it is chosen.
+     *
+     * @param method the CAS, PUTNX or DELV method of the write
+     * @param data   the key of the write, with its value and expected version where it has them
+     * @return a description of the problem, or null if the write is well formed
+     */
+    private static String validateConditionalWrite(String method, JSONObject data) {
+        if (data == null || !(data.opt("key") instanceof String)) {
+            return "Invalid " + method + ", expected a key";
+        }
+        if (!method.equals("DELV") && !(data.opt("value") instanceof String)) {
+            return "Invalid " + method + " on key '" + data.getString("key") +
+                    "', expected a value";
+        }
+        if (!method.equals("PUTNX") &&
+                !(data.opt("version") instanceof Number && data.getLong("version") >= 0)) {
+            return "Invalid " + method + " on key '" + data.getString("key") +
+                    "', expected a version";
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a transaction is well formed before it is proposed, so that every replica can
+     * apply it once it is chosen.
+     *
+     * @param txn the conditions and operations of the transaction
+     * @return a description of the problem, or null if the transaction is well formed
+     */
+    private static String validateTransaction(JSONObject txn) {
+        JSONArray conditions = txn.optJSONArray("conditions");
+        JSONArray ops = txn.optJSONArray("ops");
+        if (ops == null || ops.length() == 0) {
+            return "A transaction needs at least one operation";
+        }
+        for (int i = 0; conditions != null && i < conditions.length(); i++) {
+            JSONObject condition = conditions.optJSONObject(i);
+            if (condition == null || !condition.has("key") ||
+                    condition.optLong("version", -1) < 0) {
+                return "Invalid condition " + conditions.opt(i) + ", expected a key and version";
             }
         }
-        return responses;
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.optJSONObject(i);
+            String type = op == null ? "" : op.optString("op").toUpperCase();
+            if (op == null || !op.has("key") || !(type.equals("DEL") ||
+                    (type.equals("PUT") && op.has("value")))) {
+                return "Invalid operation " + ops.opt(i) + ", expected a PUT or DEL";
+            }
+        }
+        return null;
     }
 
     /**
-     * Sends accept requests to all peers in parallel and collects their responses.
+     * Handles a transaction: checks that every key in the conditions is at its expected version
+     * and, only if they all are, applies every put and delete. The transaction is a single
+     * command in the log and is applied by one thread, holding the lock or owning the partition
+     * of all its keys, so no other write to its keys is applied between its operations.
      *
-     * @param request        The accept request to be sent to peers.
-     * @param instanceNumber The instance number associated with the request.
-     * @return An array containing the responses from all peers.
-     * @throws RemoteException If there is an error during the remote call.
+     * @param txn the conditions and operations of the transaction
+     * @return the message to return to the client, with the versions of the written keys or of
+     * the keys whose conditions failed
      */
-    private String[] sendAcceptRequests(String request, int instanceNumber) throws RemoteException {
-        List<Future<String>> futures = new ArrayList<>();
-        for (ReplicaInterface peer : this.peers) {
-            futures.add(executorService.submit(() -> peer.accept(request, instanceNumber)));
+    public JSONObject handleTransaction(JSONObject txn) {
+        JSONArray conditions = txn.optJSONArray("conditions");
+        JSONObject failed = new JSONObject();
+        for (int i = 0; conditions != null && i < conditions.length(); i++) {
+            JSONObject condition = conditions.getJSONObject(i);
+            String key = condition.getString("key");
+            long version = this.kvs.getVersion(key);
+            if (version != condition.getLong("version")) {
+                failed.put(key, version);
+            }
+        }
+        if (!failed.isEmpty()) {
+            ServerLogger.log("TXN conditions did not match on keys " + failed.keySet());
+            return jsonResponse("400", "TXN FAILED, keys not at the expected version: " +
+                    failed, failed.toString());
         }
 
-        String[] responses = new String[this.peers.size()];
-        int i = 0;
-        for (Future<String> future : futures) {
-            try {
-                responses[i++] = future.get();
-            } catch (Exception e) {
-                ServerLogger.logError("Error sending accept requests: " + e.getMessage());
+        JSONArray ops = txn.getJSONArray("ops");
+        JSONObject versions = new JSONObject();
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            String key = op.getString("key");
+            if (op.getString("op").equalsIgnoreCase("PUT")) {
+                this.kvs.put(key, op.getString("value"));
+            } else {
+                this.kvs.delete(key);
             }
+            versions.put(key, this.kvs.getVersion(key));
         }
-        return responses;
+        ServerLogger.log("Successful TXN with " + ops.length() + " operations on keys " +
+                versions.keySet());
+        return jsonResponse("200", "Committed transaction with " + ops.length() +
+                " operations", versions.toString());
     }
 
     /**
-     * Checks if a majority of peers have promised a proposal.
+     * Handles deleting keys whose time to live ran out. A key is only deleted if it is still at
+     * the version the expiry belongs to, so a key that was written again since is kept.
      *
-     * @param responseStrings Array of response strings from peers.
-     * @return True if a majority of peers have promised, otherwise false.
+     * @param expired the keys and versions that expired
+     * @return the message to return to the client
      */
-    private boolean isPromisedByMajority(String[] responseStrings) {
-        int promisedCount = 0;
-        for (String responseStr : responseStrings) {
-            try {
-                JSONObject response = new JSONObject(responseStr);
-                if (response.getBoolean("promised")) {
-                    promisedCount++;
-                }
-            } catch (Exception e) {
-                continue;
+    public JSONObject handleExpire(JSONArray expired) {
+        int deleted = 0;
+        for (int i = 0; i < expired.length(); i++) {
+            JSONObject entry = expired.getJSONObject(i);
+            String key = entry.getString("key");
+            long version = entry.getLong("version");
+            if (this.kvs.getVersion(key) == version && this.kvs.delete(key)) {
+                deleted++;
             }
+            this.dueExpiries.remove(key, version);
         }
-        return promisedCount > (responseStrings.length / 2);
+        ServerLogger.log("Expired " + deleted + " keys");
+        return jsonResponse("200", "Expired " + deleted + " keys", null);
     }
 
     /**
-     * Retrieves the maximum previously promised proposal number from the responses.
+     * Handles removing the tombstones of deleted keys. A tombstone is only removed if the key is
+     * still deleted at the version the purge belongs to, so a key that was written again since
+     * keeps its version.
      *
-     * @param responseStrings Array of response strings from peers.
-     * @return The maximum previously promised proposal number.
+     * @param purged the keys and tombstone versions to purge
+     * @return the message to return to the client
      */
-    private long getMaxPreviousProposal(String[] responseStrings) {
-        long maxProposal = 0;
-        for (String responseStr : responseStrings) {
-            try {
-                JSONObject response = new JSONObject(responseStr);
-                if (response.has("previouslyPromisedProposal") &&
-                        response.getLong("previouslyPromisedProposal") > maxProposal) {
-                    maxProposal = response.getLong("previouslyPromisedProposal");
-                }
-            } catch (Exception e) {
-                continue;
+    public JSONObject handlePurge(JSONArray purged) {
+        int removed = 0;
+        for (int i = 0; i < purged.length(); i++) {
+            JSONObject entry = purged.getJSONObject(i);
+            if (this.kvs.purge(entry.getString("key"), entry.getLong("version"))) {
+                removed++;
             }
         }
-        return maxProposal;
+        ServerLogger.log("Purged " + removed + " tombstones");
+        return jsonResponse("200", "Purged " + removed + " tombstones", null);
     }
 
     /**
-     * Retrieves the value corresponding to the highest previously promised proposal number.
+     * Handles the steps of a bulk import. A client begins an import, streams the key value pairs
+     * to this replica in sorted chunks, and then commits it. On commit the other replicas pull
+     * the chunks from this one, and a single INGEST command is proposed, so the whole import
+     * takes one Paxos round however many pairs it has.
      *
-     * @param responseStrings     Array of response strings from peers.
-     * @param maxPreviousProposal The maximum previously promised proposal number.
-     * @return The value associated with the highest previously promised proposal number.
+     * @param data the step (BEGIN, CHUNK or COMMIT) and its parameters
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
      */
-    private String getValueFromHighestProposal(String[] responseStrings, long maxPreviousProposal) {
-        for (String responseStr : responseStrings) {
+    private JSONObject handleImport(JSONObject data) throws RemoteException {
+        String op = data.getString("op").toUpperCase();
+        try {
+            switch (op) {
+                case "BEGIN":
+                    String importId = this.bulkImport.begin();
+                    ServerLogger.log("Started import " + importId);
+                    return jsonResponse("200", "Started import " + importId, importId);
+                case "CHUNK":
+                    this.bulkImport.writeChunk(data.getString("id"), data.getInt("chunk"),
+                            data.getJSONArray("entries"));
+                    return jsonResponse("200", "Staged chunk " + data.getInt("chunk"), null);
+                case "COMMIT":
+                    return commitImport(data.getString("id"), false);
+                default:
+                    return jsonResponse("400", "Invalid import operation '" + op + "'", null);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            ServerLogger.logError("IMPORT " + op + " failed: " + e.getMessage());
+            return jsonResponse("400", "IMPORT FAILED: " + e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Has the other replicas stage an import and then proposes the command that ingests it. The
+     * command is only proposed once a phase 2 quorum holds the import, so it outlives any
+     * failure the command itself survives, and it names those replicas so the others can pull
+     * the chunks from any of them when they apply it.
+     *
+     * @param importId the id of the import
+     * @param restore  true if the import is a backup that replaces the whole store
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
+     */
+    private JSONObject commitImport(String importId, boolean restore) throws RemoteException {
+        int[] counts = this.bulkImport.finish(importId);
+        List<String> holders = stageOnMembers(importId, counts[0]);
+        int quorum = quorumSize(2, this.members.size());
+        if (holders.size() < quorum) {
+            ServerLogger.logError("Import " + importId + " was staged on " + holders.size() +
+                    " replicas, " + quorum + " are needed to commit it");
+            return jsonResponse("400", "IMPORT FAILED: staged on " + holders.size() +
+                    " replicas, " + quorum + " are needed", null);
+        }
+
+        JSONObject ingest = new JSONObject().put("id", importId).put("chunks", counts[0])
+                .put("entries", counts[1]).put("source", this.serverName)
+                .put("holders", new JSONArray(holders)).put("restore", restore);
+        return handleWrite(new JSONObject().put("method", "INGEST").put("data", ingest));
+    }
+
+    /**
+     * Has the other available replicas pull an import or blob staged on this replica, waiting
+     * up to the staging timeout for them to finish.
+     *
+     * @param importId the id of the import or blob
+     * @param chunks   the number of chunks in it
+     * @return the names of the replicas that staged it, this one first
+     */
+    private List<String> stageOnMembers(String importId, int chunks) {
+        Map<String, Future<?>> staging = new LinkedHashMap<>();
+        for (Map.Entry<String, ReplicaInterface> member : this.members.entrySet()) {
+            String name = member.getKey();
+            if (name.equals(this.serverName) || !this.failureDetector.isAvailable(name)) {
+                continue;
+            }
             try {
-                JSONObject response = new JSONObject(responseStr);
-                if (response.getLong("previouslyPromisedProposal") == maxPreviousProposal) {
-                    return response.getString("previouslyAcceptedValue");
-                }
+                staging.put(name, executorService.submit(() -> {
+                    member.getValue().stageImport(importId, chunks, this.serverName);
+                    return null;
+                }));
+            } catch (RejectedExecutionException e) {
+                ServerLogger.logWarning("Peer calls are queued up, not staging " + importId +
+                        " on " + name);
+            }
+        }
+
+        List<String> holders = new ArrayList<>();
+        holders.add(this.serverName);
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(STAGE_TIMEOUT_MINUTES);
+        for (Map.Entry<String, Future<?>> future : staging.entrySet()) {
+            try {
+                future.getValue().get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS);
+                holders.add(future.getKey());
             } catch (Exception e) {
+                ServerLogger.logWarning(importId + " was not staged on " + future.getKey() +
+                        ": " + e.getMessage());
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Pulls what a committed command references on the stage, if this replica does not hold it
+     * yet, from the replicas that staged it before the command was proposed, trying each in
+     * turn. A committed command cannot be skipped, so this runs before the command is applied,
+     * outside the lock. Applying the command fails if it is still not staged, and it is
+     * delivered again or pulled with a catch up later, so no pull waits under the lock.
+     *
+     * @param command the committed command
+     * @throws RemoteException If it could not be pulled from any replica holding it.
+     */
+    private void stageReferenced(String command) throws RemoteException {
+        if (!command.contains("\"INGEST\"") && !command.contains("\"blob\"")) {
+            return;
+        }
+        JSONObject staged;
+        try {
+            staged = stagedBy(new JSONObject(command));
+        } catch (JSONException e) {
+            return; // Rejected when it is applied
+        }
+        if (staged == null) {
+            return;
+        }
+        String stagedId = staged.getString("id");
+        int chunks = staged.getInt("chunks");
+        JSONArray holders = staged.optJSONArray("holders");
+        if (holders == null) {
+            holders = new JSONArray().put(staged.getString("source"));
+        }
+
+        Exception failure = null;
+        for (int i = 0; i < holders.length() && !this.bulkImport.isStaged(stagedId, chunks); i++) {
+            String holder = holders.getString(i);
+            if (holder.equals(this.serverName)) {
                 continue;
             }
+            ReplicaInterface stub = this.members.get(holder);
+            try {
+                this.bulkImport.stage(stagedId, chunks,
+                        stub != null ? stub : LazyReplica.create(holder));
+                ServerLogger.log("Staged " + stagedId + " in " + chunks + " chunks from " +
+                        holder);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        }
+        if (!this.bulkImport.isStaged(stagedId, chunks)) {
+            throw new RemoteException("Could not pull " + stagedId + " from any of " + holders,
+                    failure);
         }
-        return null;
     }
 
     /**
-     * Checks if a majority of peers have accepted a proposal.
+     * Finds what a command references on the stage.
      *
-     * @param acceptResponses Array of accept responses from peers.
-     * @return True if a majority of peers have accepted, otherwise false.
+     * @param request the command
+     * @return the id, chunk count, source and holders of the staged import or blob, or null if
+     * the command references none
+     */
+    private static JSONObject stagedBy(JSONObject request) {
+        if (request.has("blob")) {
+            return request.optJSONObject("blob");
+        }
+        return request.optString("method").equalsIgnoreCase("INGEST") ?
+                request.optJSONObject("data") : null;
+    }
+
+    /**
+     * Runs regularly. Deletes the imports and blobs staged longer ago than the retention period,
+     * except those a command this replica may still have to apply or serve references: an
+     * accepted value, a command in the applied log tail, which lagging replicas pull, and a
+     * command buffered or waiting on a stream of commits. A replica that needs a command once it
+     * is gone from every log installs a snapshot, which holds its value.
      */
-    private boolean isAcceptedByMajority(String[] acceptResponses) {
-        int acceptedCount = 0;
-        for (String responseStr : acceptResponses) {
+    private void cleanUpStage() {
+        List<String> commands = new ArrayList<>();
+        lock.lock();
+        try {
+            commands.addAll(this.acceptedValues.values());
+            commands.addAll(this.appliedLog.toMap().values());
+            commands.addAll(this.catchUpBuffer);
+        } finally {
+            lock.unlock();
+        }
+        commands.addAll(this.commitStreams.getQueuedCommands());
+
+        Set<String> referenced = new HashSet<>();
+        for (String command : commands) {
+            if (!command.contains("\"INGEST\"") && !command.contains("\"blob\"")) {
+                continue;
+            }
             try {
-                JSONObject response = new JSONObject(responseStr);
-                if (response.getBoolean("accepted")) {
-                    acceptedCount++;
+                JSONObject staged = stagedBy(new JSONObject(command));
+                if (staged != null) {
+                    referenced.add(staged.optString("id"));
                 }
-            } catch (Exception e) {
-                continue;
+            } catch (JSONException e) {
+                // Never applied, so it references nothing
             }
         }
-        return acceptedCount > (peers.size() / 2);
+        this.bulkImport.cleanUp(referenced);
     }
 
     /**
-     * Saves the current state of the replica, including the key-value store and Paxos-related
-     * information.
+     * Handles backing up the KV store to a file in the backups directory of this replica. The
+     * lock is only held while a view of the store is taken, together with the applied index it
+     * matches, and the view is written out while writes continue.
      *
-     * @return True if the state is saved successfully, otherwise false.
+     * @return the message to return to the client, with the name of the backup file
      */
-    private boolean saveState() {
-        ServerLogger.logInfo("Saving current state");
-        Map<String, String> kv = new HashMap<>(this.kvs.KVStore);
+    private JSONObject handleBackup() {
+        StorageEngine.View view;
+        long appliedIndex;
+        lock.lock();
         try {
-            PersistState.saveKvStore(kv);
-            PersistState.saveAcceptedValues(this.acceptedValues);
-            PersistState.saveAcceptedProposalNumbers(this.highestPromisedProposals);
-            return true;
-        } catch (IOException e) {
-            ServerLogger.logError("Error saving state: " + e.getMessage());
-            return false;
+            view = this.kvs.openView();
+            appliedIndex = this.appliedLog.getAppliedIndex();
+        } finally {
+            lock.unlock();
+        }
+
+        String fileName = "backup-" + appliedIndex + "-" + System.currentTimeMillis() + ".jsonl";
+        JSONObject header = new JSONObject().put("appliedIndex", appliedIndex)
+                .put("replica", this.serverName).put("createdAt", System.currentTimeMillis());
+        try (StorageEngine.View pinned = view) {
+            long count = Backup.write(PersistState.getStorageDir("backups").resolve(fileName),
+                    header, pinned.iterator());
+            ServerLogger.log("Backed up " + count + " pairs at index " + appliedIndex + " to " +
+                    fileName);
+            return jsonResponse("200", "Backed up " + count + " pairs at index " + appliedIndex +
+                    " to " + fileName, fileName);
+        } catch (IOException | RuntimeException e) {
+            ServerLogger.logError("Could not back up: " + e.getMessage());
+            return jsonResponse("400", "BACKUP FAILED: " + e.getMessage(), null);
         }
     }
 
     /**
-     * Loads the previous state of the replica, including the key-value store and Paxos-related
-     * information.
+     * Handles restoring the KV store from a backup in the backups directory of this replica. The
+     * backup is staged like a bulk import and committed by a single command that replaces the
+     * contents of the store on every replica.
      *
-     * @return True if the state is loaded successfully, otherwise false.
+     * @param fileName the name of the backup file
+     * @return the message to return to the client
+     * @throws RemoteException If there is an issue with remote communication.
      */
-    private boolean loadState() {
+    private JSONObject handleRestore(String fileName) throws RemoteException {
+        Path backupDir = PersistState.getStorageDir("backups");
+        Path path = backupDir.resolve(fileName).normalize();
+        if (!path.getParent().equals(backupDir.normalize()) || !Files.isRegularFile(path)) {
+            return jsonResponse("400", "No backup named '" + fileName + "'", null);
+        }
+
+        String importId = null;
         try {
-            Map<String, String> kv = PersistState.loadKvStore();
-            this.kvs = new KeyValue(kv);
-            for (String key : this.kvs.KVStore.keySet()) {
-                System.out.println(key + ", " + this.kvs.KVStore.get(key));
+            String id = this.bulkImport.begin();
+            importId = id;
+            int[] chunk = {0};
+            Backup.read(path, new Backup.Reader() {
+                @Override
+                public void header(JSONObject header) {
+                    ServerLogger.log("Restoring backup taken at index " +
+                            header.getLong("appliedIndex") + " by " + header.optString("replica"));
+                }
+
+                @Override
+                public void chunk(JSONArray entries) throws IOException {
+                    bulkImport.writeChunk(id, chunk[0]++, entries);
+                }
+            });
+        } catch (IOException | IllegalArgumentException e) {
+            if (importId != null) {
+                this.bulkImport.abort(importId);
             }
-            this.acceptedValues = PersistState.loadAcceptedValues();
-            this.highestPromisedProposals = PersistState.loadAcceptedProposalNumbers();
-            ServerLogger.logInfo("Loaded from previous state");
-            return true;
-        } catch (IOException | ClassNotFoundException e) {
-            ServerLogger.logWarning("Could not load from previous state");
-            return false;
+            ServerLogger.logError("Could not restore " + fileName + ": " + e.getMessage());
+            return jsonResponse("400", "RESTORE FAILED: " + e.getMessage(), null);
         }
+        return commitImport(importId, true);
     }
 
     /**
-     * Handles getting the corresponding value for a key from the KV store if it exists.
+     * Handles ingesting a staged bulk import into the KV store. All its key value pairs become
+     * visible at once. The chunks are pulled before the lock is taken, and if they could not be,
+     * the ingest fails, so it is delivered again or the replica catches up instead of waiting for
+     * them under the lock.
      *
-     * @param key the key to be inserted
-     * @return the message to return to the client along with any data as a JSON string
+     * @param request the INGEST command, with the id, chunk count, pair count, source and
+     *                holders of the import
+     * @return the message to return to the client
      */
-    public JSONObject handleGet(String key) {
-        String value = this.kvs.get(key);
-        String message;
-        String status;
-
-        // If the key actually exists return the corresponding value
-        if (value != null) {
-            ServerLogger.log("Successful GET on key '" + key + "' with value '" + value + "'");
-            message = "Got key '" + key + "' with value '" + value + "'";
-            status = "200";
+    private JSONObject handleIngest(JSONObject request) {
+        JSONObject data = request.getJSONObject("data");
+        String importId = data.getString("id");
+        int chunks = data.getInt("chunks");
+        if (!this.bulkImport.isStaged(importId, chunks)) {
+            throw new IllegalStateException("Import " + importId + " is not staged");
+        }
+        if (data.optBoolean("restore")) {
+            this.kvs.restore(this.bulkImport.entries(importId, chunks), data.getInt("entries"));
+            scheduleExpiries();
+            trackTombstones();
         } else {
-            ServerLogger.logError("Could not find key '" + key + "'");
-            message = "GET FAILED for key '" + key + "'";
-            status = "400";
+            this.kvs.ingest(this.bulkImport.entries(importId, chunks),
+                    data.getInt("entries"));
         }
-        return jsonResponse(status, message, value);
+
+        // The import is applied at the next index and is not in the change feed, so
+        // watchers from before it have to read the current values again
+        this.changeFeed.reset(this.appliedLog.getAppliedIndex() + 1);
+        ServerLogger.log("Successful IMPORT of " + data.getInt("entries") + " pairs from " +
+                importId);
+        return jsonResponse("200", "Imported " + data.getInt("entries") + " pairs", null);
     }
 
     /**
-     * Handles putting key value pairs into the KV store
+     * Schedules the expiry of every key in the KV store that has a time to live, after the
+     * store was loaded or replaced.
+     */
+    private void scheduleExpiries() {
+        for (Map.Entry<String, KeyValue.Versioned> entry : this.kvs.getExpiring().entrySet()) {
+            this.expiryWheel.schedule(entry.getKey(), entry.getValue().version,
+                    entry.getValue().expiresAt);
+        }
+    }
+
+    /**
+     * Tracks the tombstone of every deleted key in the KV store, after the store was loaded or
+     * replaced. When they were deleted is not known, so they are kept as if deleted now.
+     */
+    private void trackTombstones() {
+        this.tombstones.clear();
+        long now = System.currentTimeMillis();
+        long index = this.appliedLog.getAppliedIndex();
+        for (Map.Entry<String, Long> entry : this.kvs.getTombstones().entrySet()) {
+            this.tombstones.add(new Tombstone(entry.getKey(), entry.getValue(), now, index));
+        }
+    }
+
+    /**
+     * Passes a change to the KV store on to the change feed, and tracks the tombstone a delete
+     * left so it can be purged later.
      *
-     * @param data the key value pair to be inserted, in JSON format
-     * @return the message to return to the client along with any data as a JSON string
+     * @param key     the key that changed
+     * @param value   the new value, or null if the key was deleted
+     * @param version the version of the key after the change
      */
-    public JSONObject handlePut(JSONObject data) {
-        lock.lock();
+    private void recordChange(String key, String value, long version) {
+        this.changeFeed.record(key, value, version);
+        if (value == null) {
+            this.tombstones.add(new Tombstone(key, this.kvs.getTombstoneVersion(key),
+                    System.currentTimeMillis(), this.appliedLog.getAppliedIndex()));
+        }
+    }
+
+    /**
+     * Runs every purge interval. A tombstone is purged once it is older than the tombstone
+     * retention and its delete has left the tail of the applied log, so a retried command can
+     * no longer be recognised as applied and a lagging replica can no longer pull the delete.
+     * Like expiry, the leader proposes a PURGE command for a batch of them, so every replica
+     * removes the same tombstones at the same point in the log.
+     */
+    private void purgeTombstones() {
         try {
-            String key = data.keys().next();
-            String value = data.getString(key);
-            String message;
-            String status;
+            long horizon = System.currentTimeMillis() -
+                    ServerConfig.getTombstoneRetentionMillis();
+            long firstIndex = this.appliedLog.getFirstIndex();
+            boolean isLeader = this.serverName.equals(this.failureDetector.getLeader()) &&
+                    !this.peers.isEmpty() && !this.catchingUp && !this.learner;
+            JSONArray batch = new JSONArray();
+            Iterator<Tombstone> queued = this.tombstones.iterator();
+            while (queued.hasNext() && batch.length() < MAX_EXPIRE_BATCH) {
+                Tombstone tombstone = queued.next();
+                if (this.kvs.getTombstoneVersion(tombstone.key) != tombstone.version) {
+                    // The key was written again or its tombstone was purged
+                    queued.remove();
+                } else if (tombstone.deletedAt > horizon || tombstone.index >= firstIndex) {
+                    // Tombstones are queued in the order they were deleted in
+                    break;
+                } else if (isLeader) {
+                    batch.put(new JSONObject().put("key", tombstone.key).put("version",
+                            tombstone.version));
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
 
-            // Return a success if the key was successfully put into the KV store
-            if (this.kvs.put(key, value)) {
-                ServerLogger.log("Successful PUT on key '" + key + "' with value '" + value + "'");
-                message = "Put key '" + key + "' with value '" + value + "'";
-                status = "200";
-            } else {
-                ServerLogger.logError("Could not PUT key '" + key + "'");
-                message = "PUT FAILED for key '" + key + "' with value '" + value + "'";
-                status = "400";
+            JSONObject request = new JSONObject().put("method", "PURGE").put("data", batch);
+            JSONObject response = handleWrite(request);
+            if (!response.getString("status").equals("200")) {
+                ServerLogger.logWarning("Could not purge " + batch.length() + " tombstones: " +
+                        response.getString("message"));
             }
-            return jsonResponse(status, message, null);
-        } finally {
-            lock.unlock();
+        } catch (RemoteException | RuntimeException e) {
+            ServerLogger.logError("Error purging tombstones: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs every tick of the expiry wheel. The keys whose time to live ran out are held until an
+     * EXPIRE command deletes them, and the leader proposes that command for a batch of them, so
+     * expiry is ordered with the other writes in the log instead of depending on each replica's
+     * clock. Any replica can take over if the leader changes.
+     */
+    private void reapExpiredKeys() {
+        try {
+            for (TimerWheel.Timer timer : this.expiryWheel.advance(System.currentTimeMillis())) {
+                this.dueExpiries.put(timer.key, timer.version);
+            }
+
+            boolean isLeader = this.serverName.equals(this.failureDetector.getLeader()) &&
+                    !this.peers.isEmpty() && !this.catchingUp && !this.learner;
+            JSONArray batch = new JSONArray();
+            for (Map.Entry<String, Long> due : this.dueExpiries.entrySet()) {
+                if (this.kvs.getVersion(due.getKey()) != due.getValue()) {
+                    // The key was written again or deleted since the timer was scheduled
+                    this.dueExpiries.remove(due.getKey(), due.getValue());
+                } else if (isLeader && batch.length() < MAX_EXPIRE_BATCH) {
+                    batch.put(new JSONObject().put("key", due.getKey()).put("version",
+                            due.getValue()));
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            JSONObject request = new JSONObject().put("method", "EXPIRE").put("data", batch);
+            JSONObject response = handleWrite(request);
+            if (!response.getString("status").equals("200")) {
+                ServerLogger.logWarning("Could not expire " + batch.length() + " keys: " +
+                        response.getString("message"));
+            }
+        } catch (RemoteException | RuntimeException e) {
+            ServerLogger.logError("Error expiring keys: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles deleting a key value pair from the KV store only if the key is at an expected
+     * version.
+     *
+     * @param key             the key to delete
+     * @param expectedVersion the version the key must be at
+     * @return the message to return to the client
+     */
+    public JSONObject handleDeleteIfVersion(String key, long expectedVersion) {
+        long version = this.kvs.getVersion(key);
+        if (version == 0 || version != expectedVersion) {
+            ServerLogger.log("DELV on key '" + key + "' did not match, expected version " +
+                    expectedVersion + " but found " + version);
+            return jsonResponse("400", "DELV FAILED for key '" + key + "', expected version " +
+                    expectedVersion + " but found " + version, null).put("version", version);
         }
+        return handleDelete(key);
     }
 
     /**
@@ -615,24 +3122,19 @@ public class Replica extends UnicastRemoteObject implements ReplicaInterface {
      * @return the message to return to the client along with any data as a JSON string
      */
     public JSONObject handleDelete(String key) {
-        lock.lock();
-        try {
-            String message;
-            String status;
+        String message;
+        String status;
 
-            // If the key exists and was deleted successfully return a success
-            if (this.kvs.delete(key)) {
-                ServerLogger.log("Successful DEL on key '" + key + "'");
-                message = "Deleted key '" + key + "'";
-                status = "200";
-            } else {
-                ServerLogger.logError("Could not DEL key '" + key + "'");
-                message = "DEL FAILED for key '" + key + "'";
-                status = "400";
-            }
-            return jsonResponse(status, message, null);
-        } finally {
-            lock.unlock();
+        // If the key exists and was deleted successfully return a success
+        if (this.kvs.delete(key)) {
+            ServerLogger.log("Successful DEL on key '" + key + "'");
+            message = "Deleted key '" + key + "'";
+            status = "200";
+        } else {
+            ServerLogger.logError("Could not DEL key '" + key + "'");
+            message = "DEL FAILED for key '" + key + "'";
+            status = "400";
         }
+        return jsonResponse(status, message, null);
     }
 }
@@ -18,4 +18,126 @@ public interface ReplicaInterface extends Remote, Proposer, Acceptor, Learner {
      * @throws RemoteException If there is an error during the remote call
      */
     String generateResponse(String requestStr) throws RemoteException;
+
+    /**
+     * Serves a read in the binary format of {@link BinaryProtocol}, without the JSON handling
+     * and logging of {@link #generateResponse(String)}
+     *
+     * @param request The request in the binary format
+     * @return The response in the binary format
+     * @throws RemoteException If there is an error during the remote call
+     */
+    byte[] read(byte[] request) throws RemoteException;
+
+    /**
+     * Returns the spans this replica recorded for a trace.
+     *
+     * @param traceId The id of the trace.
+     * @return The spans as a JSON array string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getSpans(String traceId) throws RemoteException;
+
+    /**
+     * Replies to a heartbeat from the failure detector of another replica.
+     *
+     * @throws RemoteException If there is an error during the remote call
+     */
+    void heartbeat() throws RemoteException;
+
+    /**
+     * Returns the name the replica is registered under, in the form host:port.
+     *
+     * @return The name of the replica.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getName() throws RemoteException;
+
+    /**
+     * Returns the names of the replicas in the current configuration.
+     *
+     * @return The replica names as a JSON array string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getMembers() throws RemoteException;
+
+    /**
+     * Takes a snapshot of the key-value store for another replica to pull in chunks.
+     *
+     * @return The snapshot header, with its id, applied index, log tail and sessions.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String beginSnapshot() throws RemoteException;
+
+    /**
+     * Returns the next chunk of a snapshot taken with {@link #beginSnapshot()}, or the previous
+     * one again. Chunks are pulled in order, starting from 0, until one is marked as the last.
+     *
+     * @param snapshotId The id of the snapshot.
+     * @param chunkIndex The index of the chunk.
+     * @return The key value pairs in the chunk, and whether it is the last one, as a JSON string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getSnapshotChunk(long snapshotId, int chunkIndex) throws RemoteException;
+
+    /**
+     * Returns the commands applied after an index.
+     *
+     * @param appliedIndex The index to start after.
+     * @return The commands keyed by applied index as a JSON string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getLogSince(long appliedIndex) throws RemoteException;
+
+    /**
+     * Learns a command another replica committed, sent on its stream of commits to this replica.
+     * The commits on a stream are numbered in the order the sender applied them and are sent one
+     * at a time, so a commit that was already learnt is ignored. A gap in the numbers, or a new
+     * stream after either replica restarted, makes this replica pull the commits it may have
+     * missed from the applied log of the sender, or catch up with a snapshot from it if the log
+     * no longer reaches back far enough.
+     *
+     * @param origin         The name of the replica that committed the command.
+     * @param epoch          The time the origin started, which the numbers start over from.
+     * @param seq            The number of the commit on the stream of the origin.
+     * @param deliveredIndex The applied index on the origin that every commit up to was
+     *                       delivered to this replica, over every epoch.
+     * @param appliedIndex   The applied index of the command on the origin.
+     * @param command        The committed command.
+     * @return The response to the command as a JSON string.
+     * @throws RemoteException If there is an error during the remote call, or the replica could
+     *                         not catch up after a gap.
+     */
+    String commit(String origin, long epoch, long seq, long deliveredIndex, long appliedIndex,
+                  String command) throws RemoteException;
+
+    /**
+     * Returns one chunk of a bulk import staged on this replica.
+     *
+     * @param importId The id of the import.
+     * @param chunk    The index of the chunk.
+     * @return The [key, value] pairs in the chunk as a JSON string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String getImportChunk(String importId, int chunk) throws RemoteException;
+
+    /**
+     * Pulls the chunks of a bulk import from the replica it was streamed to, ahead of the command
+     * that ingests it.
+     *
+     * @param importId The id of the import.
+     * @param chunks   The number of chunks in the import.
+     * @param source   The name of the replica the import was streamed to.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    void stageImport(String importId, int chunks, String source) throws RemoteException;
+
+    /**
+     * Swaps views of the replicas in the cluster with another replica, as a round of gossip.
+     *
+     * @param view The heartbeat of every replica the caller knows of, as a JSON string.
+     * @return The merged view of this replica as a JSON string.
+     * @throws RemoteException If there is an error during the remote call
+     */
+    String exchangeTopology(String view) throws RemoteException;
 }
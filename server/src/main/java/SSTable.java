@@ -0,0 +1,409 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable, sorted file of key value pairs written by the {@link LsmStorageEngine}. Every
+ * sixteenth key is kept in a sparse index in memory, and a bloom filter lets lookups of missing
+ * keys skip the file.
+ *
+ * <p>The file holds the entries, then the sparse index, then the bloom filter, followed by a
+ * footer with the offsets of the index and the filter.
+ */
+class SSTable {
+
+    private static final int INDEX_INTERVAL = 16;
+    private static final int MAGIC = 0x53535431;
+    private final Path path;
+    private final RandomAccessFile file;
+    private final List<String> indexKeys;
+    private final List<Long> indexOffsets;
+    private final BloomFilter bloomFilter;
+    private final long dataEnd;
+    private final int entryCount;
+    private boolean closed;
+    private int references = 1; // Held by the engine until the table is replaced, and by views
+
+    private SSTable(Path path) throws IOException {
+        this.path = path;
+        this.file = new RandomAccessFile(path.toFile(), "r");
+        this.file.seek(this.file.length() - 24);
+        long indexOffset = this.file.readLong();
+        long bloomOffset = this.file.readLong();
+        this.entryCount = this.file.readInt();
+        if (this.file.readInt() != MAGIC) {
+            this.file.close();
+            throw new IOException("Not an SSTable: " + path);
+        }
+
+        this.file.seek(indexOffset);
+        int indexSize = this.file.readInt();
+        this.indexKeys = new ArrayList<>(indexSize);
+        this.indexOffsets = new ArrayList<>(indexSize);
+        for (int i = 0; i < indexSize; i++) {
+            this.indexKeys.add(readString(this.file));
+            this.indexOffsets.add(this.file.readLong());
+        }
+        this.file.seek(bloomOffset);
+        this.bloomFilter = BloomFilter.read(this.file);
+        this.dataEnd = indexOffset;
+    }
+
+    /**
+     * Opens an existing SSTable.
+     *
+     * @param path the file of the table
+     * @return the opened table
+     * @throws IOException If an I/O error occurs.
+     */
+    public static SSTable open(Path path) throws IOException {
+        return new SSTable(path);
+    }
+
+    /**
+     * Writes sorted entries to a new SSTable. The file is written under a temporary name, forced
+     * to disk and moved into place once complete, so a crash never leaves a partial table.
+     *
+     * @param path         the file of the table
+     * @param entries      the entries in key order, with deleted keys as tombstones
+     * @param expectedKeys the approximate number of entries, used to size the bloom filter
+     * @return the written table, opened for reading
+     * @throws IOException If an I/O error occurs.
+     */
+    public static SSTable write(Path path, Iterator<Map.Entry<String, String>> entries,
+                                int expectedKeys) throws IOException {
+        Path tempFilePath = Files.createTempFile(path.getParent(), path.getFileName().toString(),
+                null);
+        BloomFilter bloomFilter = new BloomFilter(expectedKeys, 0.01);
+        List<String> indexKeys = new ArrayList<>();
+        List<Long> indexOffsets = new ArrayList<>();
+
+        try (FileChannel channel = FileChannel.open(tempFilePath, StandardOpenOption.WRITE);
+             CountingOutputStream counter = new CountingOutputStream(
+                     new BufferedOutputStream(Channels.newOutputStream(channel)));
+             DataOutputStream out = new DataOutputStream(counter)) {
+            int count = 0;
+            while (entries.hasNext()) {
+                Map.Entry<String, String> entry = entries.next();
+                if (count % INDEX_INTERVAL == 0) {
+                    indexKeys.add(entry.getKey());
+                    indexOffsets.add(counter.getCount());
+                }
+                bloomFilter.add(entry.getKey());
+                writeEntry(out, entry.getKey(), entry.getValue());
+                count++;
+            }
+
+            long indexOffset = counter.getCount();
+            out.writeInt(indexKeys.size());
+            for (int i = 0; i < indexKeys.size(); i++) {
+                writeString(out, indexKeys.get(i));
+                out.writeLong(indexOffsets.get(i));
+            }
+            long bloomOffset = counter.getCount();
+            bloomFilter.write(out);
+            out.writeLong(indexOffset);
+            out.writeLong(bloomOffset);
+            out.writeInt(count);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+
+        try {
+            Files.move(tempFilePath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFilePath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(path.getParent());
+        return open(path);
+    }
+
+    /**
+     * Returns the file of the table.
+     *
+     * @return the path of the table
+     */
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * Returns the number of entries in the table, including tombstones.
+     *
+     * @return the entry count
+     */
+    public int getEntryCount() {
+        return this.entryCount;
+    }
+
+    /**
+     * Looks up a key in the table.
+     *
+     * @param key the key to look up
+     * @return the value, {@link LsmStorageEngine#TOMBSTONE} if the key was deleted, or null if
+     * the table has no entry for the key
+     * @throws IOException If an I/O error occurs or the table was closed by a compaction.
+     */
+    public synchronized String get(String key) throws IOException {
+        if (!this.bloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = floorIndex(key);
+        if (block < 0) {
+            return null;
+        }
+
+        long offset = this.indexOffsets.get(block);
+        for (int i = 0; i < INDEX_INTERVAL && offset < this.dataEnd; i++) {
+            Entry entry = readAt(offset);
+            int comparison = entry.key.compareTo(key);
+            if (comparison == 0) {
+                return entry.value;
+            } else if (comparison > 0) {
+                return null;
+            }
+            offset = entry.nextOffset;
+        }
+        return null;
+    }
+
+    /**
+     * Iterates over the entries of the table starting at a key, including tombstones.
+     *
+     * @param fromKey the first key to return, or null to start at the first key
+     * @return an iterator over the entries in key order
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String fromKey) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private Entry next = seek(fromKey);
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                Entry current = this.next;
+                this.next = current.nextOffset < dataEnd ? readEntryUnchecked(current.nextOffset) :
+                        null;
+                return new AbstractMap.SimpleImmutableEntry<>(current.key, current.value);
+            }
+        };
+    }
+
+    /**
+     * Keeps the table from being deleted until {@link #release()} is called, for reading it
+     * after it was replaced.
+     */
+    public synchronized void retain() {
+        this.references++;
+    }
+
+    /**
+     * Gives up a reference to the table, deleting it once nothing references it.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized void release() throws IOException {
+        if (--this.references == 0) {
+            delete();
+        }
+    }
+
+    /**
+     * Closes the table and deletes its file.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.path);
+    }
+
+    /**
+     * Closes the table. Lookups on a closed table fail, so readers retry on the new tables.
+     *
+     * @throws IOException If an I/O error occurs.
+     */
+    public synchronized void close() throws IOException {
+        this.closed = true;
+        this.file.close();
+    }
+
+    /**
+     * Finds the first entry with a key greater than or equal to a key.
+     */
+    private Entry seek(String fromKey) {
+        if (this.dataEnd == 0) {
+            return null;
+        }
+        int block = fromKey == null ? 0 : Math.max(0, floorIndex(fromKey));
+        Entry entry = readEntryUnchecked(this.indexOffsets.get(block));
+        while (entry != null && fromKey != null && entry.key.compareTo(fromKey) < 0) {
+            entry = entry.nextOffset < this.dataEnd ? readEntryUnchecked(entry.nextOffset) : null;
+        }
+        return entry;
+    }
+
+    /**
+     * Finds the last block in the sparse index whose first key is at most a key.
+     */
+    private int floorIndex(String key) {
+        int low = 0;
+        int high = this.indexKeys.size() - 1;
+        int result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (this.indexKeys.get(mid).compareTo(key) <= 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    private Entry readEntryUnchecked(long offset) {
+        try {
+            return readAt(offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading " + this.path + ": " + e.getMessage(),
+                    e);
+        }
+    }
+
+    private synchronized Entry readAt(long offset) throws IOException {
+        if (this.closed) {
+            throw new IOException("SSTable was closed: " + this.path);
+        }
+        this.file.seek(offset);
+        String key = readString(this.file);
+        boolean tombstone = this.file.readBoolean();
+        String value = tombstone ? LsmStorageEngine.TOMBSTONE : readString(this.file);
+        return new Entry(key, value, this.file.getFilePointer());
+    }
+
+    /**
+     * Writes an entry, marking a tombstone with a flag instead of a value.
+     *
+     * @param out   the output to write to
+     * @param key   the key of the entry
+     * @param value the value, or {@link LsmStorageEngine#TOMBSTONE}
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeEntry(DataOutput out, String key, String value) throws IOException {
+        writeString(out, key);
+        boolean tombstone = LsmStorageEngine.isTombstone(value);
+        out.writeBoolean(tombstone);
+        if (!tombstone) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so a file moved into it survives a crash.
+     * Platforms that cannot open a directory are left to sync it on their own.
+     */
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on this platform
+        }
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string, which unlike writeUTF is not limited to 64KB.
+     *
+     * @param out   the output to write to
+     * @param value the string to write
+     * @throws IOException If an I/O error occurs.
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in the input to read from
+     * @return the string
+     * @throws IOException If an I/O error occurs.
+     */
+    static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * An entry read from the file, with the offset of the entry after it.
+     */
+    private static class Entry {
+        final String key;
+        final String value;
+        final long nextOffset;
+
+        Entry(String key, String value, long nextOffset) {
+            this.key = key;
+            this.value = value;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    /**
+     * An output stream that counts the bytes written through it, since
+     * {@link DataOutputStream#size()} overflows past 2GB.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            this.count += len;
+        }
+
+        long getCount() {
+            return this.count;
+        }
+    }
+}
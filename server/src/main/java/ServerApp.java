@@ -1,13 +1,25 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * The main entrypoint for the server
  */
 public class ServerApp {
 
+    private static final long POLL_INTERVAL_MS = 250;
+    private static final long CLUSTER_START_TIMEOUT_MS = 120000;
+
     /**
      * The starting point for the server.
      *
@@ -15,15 +27,33 @@ public class ServerApp {
      */
     public static void main(String[] args) {
 
-        if (args.length != 4 && args.length != 2) {
+        if (args.length != 4 && args.length != 2 &&
+                !(args.length == 3 && (args[0].equals("s") || args[0].equals("l")))) {
             ServerLogger.logError("Incorrect parameters provided, correct syntax is: " +
                     "java -jar <path to jar>/server.jar " +
                     "<coordinator hostname> <coordinator port> <port> <num replicas>\n OR \n" +
-                    "java -jar <path to jar>/server.jar c <port>");
+                    "java -jar <path to jar>/server.jar c <port>\n OR \n" +
+                    "java -jar <path to jar>/server.jar s <host:port> <seed host:port>,..." +
+                    "\n OR \n" +
+                    "java -jar <path to jar>/server.jar l <host:port> <seed host:port>,...");
             System.exit(1);
         }
 
-        if (args[0].equals("c")) {
+        if (args[0].equals("s")) {
+            try {
+                startFromSeeds(args[1], Arrays.asList(args[2].split(",")));
+            } catch (Exception e) {
+                ServerLogger.logError("Server exception: " + e);
+                e.printStackTrace();
+            }
+        } else if (args[0].equals("l")) {
+            try {
+                startLearner(args[1], Arrays.asList(args[2].split(",")));
+            } catch (Exception e) {
+                ServerLogger.logError("Server exception: " + e);
+                e.printStackTrace();
+            }
+        } else if (args[0].equals("c")) {
             try {
                 int port = Integer.parseInt(args[1]);
                 Registry registry = LocateRegistry.createRegistry(port);
@@ -49,16 +79,31 @@ public class ServerApp {
 
                 String serverName = InetAddress.getLocalHost().getHostAddress() + ":" + serverPort;
                 int serverId = serverName.hashCode();
-                Replica replica = new Replica(serverId);
-                coordinator.addReplica(serverId, replica);
-                ServerLogger.log("Connected to coordinator");
-                checkReplicaCount(coordinator, numberOfReplicas, 10);
-
-                replica.peers = coordinator.getReplicas();
+                Replica replica = new Replica(serverId, serverName);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        replica.getTracer().dump(Paths.get("data", "trace.json"));
+                    } catch (IOException e) {
+                        ServerLogger.logError("Error dumping trace: " + e.getMessage());
+                    }
+                }));
+                replica.coordinator = coordinator;
 
+                // Bind before joining so the existing replicas can look this replica up
                 registry = LocateRegistry.createRegistry(serverPort);
                 registry.bind(serverName, replica);
 
+                boolean clusterRunning = coordinator.getReplicaCount() >= numberOfReplicas;
+                coordinator.addReplica(serverId, replica);
+                ServerLogger.log("Connected to coordinator");
+
+                if (clusterRunning) {
+                    joinCluster(coordinator.getReplicas(), replica, serverName);
+                } else {
+                    checkReplicaCount(coordinator, numberOfReplicas, CLUSTER_START_TIMEOUT_MS);
+                    replica.setMembers(coordinator.getReplicas());
+                }
+
                 ServerLogger.log("Server ready: " + serverName);
 
             } catch (Exception e) {
@@ -69,29 +114,188 @@ public class ServerApp {
         }
     }
 
+    /**
+     * Starts a replica without a coordinator, from a list of seed replicas. If a seed that can be
+     * reached already has a configuration, the cluster is running and this replica joins it.
+     * Otherwise the seeds are the initial configuration, and this replica starts serving as
+     * soon as a majority of them can be reached, instead of waiting for all of them. Either way
+     * the replica gossips with the seeds to learn of the rest of the cluster.
+     *
+     * @param serverName The name of this replica, in the form host:port, that the other replicas
+     *                   reach it under.
+     * @param seeds      The names of the seed replicas, which may include this replica.
+     * @throws Exception If the replica could not be started.
+     */
+    public static void startFromSeeds(String serverName, List<String> seeds) throws Exception {
+        Replica replica = startNamedReplica(serverName, seeds);
+
+        long deadline = System.currentTimeMillis() + CLUSTER_START_TIMEOUT_MS;
+        while (true) {
+            List<ReplicaInterface> running = new ArrayList<>();
+            int reachable = seeds.contains(serverName) ? 1 : 0;
+            for (String seed : seeds) {
+                if (seed.equals(serverName)) {
+                    continue;
+                }
+                try {
+                    ReplicaInterface stub = Replica.resolveReplica(seed);
+                    if (!new JSONArray(stub.getMembers()).isEmpty()) {
+                        running.add(stub);
+                    }
+                    reachable++;
+                } catch (Exception e) {
+                    // The seed is not up yet
+                }
+            }
+
+            if (!running.isEmpty()) {
+                joinCluster(running, replica, serverName);
+                break;
+            } else if (seeds.contains(serverName) && reachable >= seeds.size() / 2 + 1) {
+                // Every seed starts from the same list, so they all reach the same configuration
+                replica.setMemberNames(seeds);
+                break;
+            } else if (System.currentTimeMillis() > deadline) {
+                ServerLogger.logError("Could not reach a majority of the seeds " + seeds);
+                return;
+            }
+            ServerLogger.logInfo("Waiting for a majority of the seeds, " + reachable + " of " +
+                    seeds.size() + " reachable");
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        ServerLogger.log("Server ready: " + serverName);
+    }
+
+    /**
+     * Starts a learner, a replica that copies the applied log of a running cluster and serves
+     * reads without being a member of its configuration. The learner waits for a seed that has
+     * a configuration and learns the configuration from it.
+     *
+     * @param serverName The name of this replica, in the form host:port, that the other replicas
+     *                   reach it under.
+     * @param seeds      The names of replicas of the running cluster.
+     * @throws Exception If the replica could not be started.
+     */
+    public static void startLearner(String serverName, List<String> seeds) throws Exception {
+        Replica replica = startNamedReplica(serverName, seeds);
+
+        long deadline = System.currentTimeMillis() + CLUSTER_START_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            for (String seed : seeds) {
+                try {
+                    JSONArray members = new JSONArray(Replica.resolveReplica(seed).getMembers());
+                    if (members.isEmpty()) {
+                        continue;
+                    }
+                    List<String> names = new ArrayList<>();
+                    for (int i = 0; i < members.length(); i++) {
+                        names.add(members.getString(i));
+                    }
+                    replica.startLearning(names);
+                    ServerLogger.log("Learner ready: " + serverName + ", members " + names);
+                    return;
+                } catch (Exception e) {
+                    // The seed is not up yet
+                }
+            }
+            ServerLogger.logInfo("Waiting for a seed with a configuration");
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        ServerLogger.logError("Could not reach a running cluster through the seeds " + seeds);
+    }
+
+    /**
+     * Creates a replica under the name the other replicas reach it under, binds it and hands it
+     * the seeds to gossip with.
+     *
+     * @param serverName The name of the replica, in the form host:port.
+     * @param seeds      The names of the seed replicas.
+     * @return The replica.
+     * @throws Exception If the replica could not be created or bound.
+     */
+    private static Replica startNamedReplica(String serverName, List<String> seeds)
+            throws Exception {
+        String[] hostPort = serverName.split(":");
+        // Stubs of this replica have to carry the host the others reach it under
+        System.setProperty("java.rmi.server.hostname", hostPort[0]);
+        Replica replica = new Replica(serverName.hashCode(), serverName);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                replica.getTracer().dump(Paths.get("data", "trace.json"));
+            } catch (IOException e) {
+                ServerLogger.logError("Error dumping trace: " + e.getMessage());
+            }
+        }));
+        Registry registry = LocateRegistry.createRegistry(Integer.parseInt(hostPort[1]));
+        registry.bind(serverName, replica);
+        replica.addSeeds(seeds);
+        return replica;
+    }
+
+    /**
+     * Joins a cluster that is already running by asking one of its replicas to commit a
+     * membership change adding this replica, adopting the resulting configuration, and then
+     * catching up with that replica from a snapshot.
+     *
+     * @param running    The replicas of the running cluster to ask.
+     * @param replica    The replica that is joining.
+     * @param serverName The name the replica is registered under.
+     */
+    public static void joinCluster(List<ReplicaInterface> running, Replica replica,
+                                   String serverName) {
+        JSONObject request = new JSONObject();
+        request.put("method", "RECONFIG");
+        request.put("data", new JSONObject().put("op", "ADD").put("replica", serverName));
+
+        // Commands learnt from here on are buffered until the snapshot is installed
+        replica.startCatchUp();
+        for (ReplicaInterface member : running) {
+            try {
+                if (member.getName().equals(serverName)) {
+                    continue;
+                }
+                JSONObject response = new JSONObject(member.generateResponse(request.toString()));
+                if (!response.getString("status").equals("200")) {
+                    ServerLogger.logWarning("Join rejected: " + response.getString("message"));
+                    continue;
+                }
+
+                List<String> names = new ArrayList<>();
+                JSONArray members = new JSONArray(member.getMembers());
+                for (int i = 0; i < members.length(); i++) {
+                    names.add(members.getString(i));
+                }
+                replica.setMemberNames(names);
+                ServerLogger.log("Joined the cluster through " + member.getName());
+                replica.catchUp(member);
+                return;
+            } catch (Exception e) {
+                ServerLogger.logWarning("Could not join through a replica: " + e.getMessage());
+            }
+        }
+        ServerLogger.logError("Could not join the cluster, no replica accepted the request");
+        replica.finishCatchUp();
+    }
+
     /**
      * Checks the number of replicas registered with the coordinator and waits until the expected
-     * number is reached.
+     * number is reached. The count is polled at a short fixed interval, so the replicas start
+     * within a moment of the last one registering.
      *
      * @param coordinator      The coordinator interface to query.
      * @param numberOfReplicas The expected number of replicas.
-     * @param maxAttempts      The maximum number of attempts to wait for the replicas.
+     * @param timeoutMillis    The longest time to wait for the replicas.
      */
     public static void checkReplicaCount(CoordinatorInterface coordinator, int numberOfReplicas,
-                                         int maxAttempts) {
+                                         long timeoutMillis) {
         try {
-            int replicaCount;
-            int attemptNumber = 0;
-
-            while (attemptNumber < maxAttempts) {
-                ServerLogger.logInfo("Waiting for all replicas to start, attempt " + attemptNumber);
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            int replicaCount = coordinator.getReplicaCount();
+            while (replicaCount < numberOfReplicas && System.currentTimeMillis() < deadline) {
+                ServerLogger.logInfo("Waiting for all replicas to start, " + replicaCount +
+                        " of " + numberOfReplicas + " registered");
+                Thread.sleep(POLL_INTERVAL_MS);
                 replicaCount = coordinator.getReplicaCount();
-                attemptNumber++;
-                if (replicaCount == numberOfReplicas) {
-                    break;
-                }
-                // Exponential backoff: wait for 2^attemptNumber seconds before the next attempt
-                Thread.sleep(1000L * (1L << attemptNumber));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,144 @@
+/**
+ * Tunable options for a replica. Each option is read from a system property so it can be set
+ * per deployment, for example with {@code java -Dpaxos.thrifty=true -jar server.jar ...}.
+ */
+class ServerConfig {
+
+    /**
+     * Whether accept requests are only sent to the fastest phase 2 quorum of replicas, falling
+     * back to the other replicas if the quorum does not accept in time.
+     *
+     * @return True if thrifty accept rounds are enabled.
+     */
+    public static boolean isThrifty() {
+        return Boolean.getBoolean("paxos.thrifty");
+    }
+
+    /**
+     * The storage engine holding the key value pairs, either "memory" for an ordered map that is
+     * saved whole after each write, or "lsm" for a disk-backed log-structured merge tree.
+     *
+     * @return The name of the storage engine.
+     */
+    public static String getStorageEngine() {
+        return System.getProperty("paxos.storage", "memory");
+    }
+
+    /**
+     * The length in characters from which a written value is compressed before it is proposed,
+     * or 0 to never compress values. A value is only sent compressed if that makes it shorter.
+     *
+     * @return The compression threshold.
+     */
+    public static int getCompressThreshold() {
+        return Integer.getInteger("paxos.compressThreshold", 1024);
+    }
+
+    /**
+     * The length in characters, after compression, above which a written value is staged on the
+     * replicas in pieces instead of being sent in the Paxos messages, which then only carry a
+     * reference to it.
+     *
+     * @return The large value threshold.
+     */
+    public static int getLargeValueSize() {
+        return Integer.getInteger("paxos.largeValueSize", 256 * 1024);
+    }
+
+    /**
+     * The maximum number of threads making remote calls to the peers, shared by every Paxos
+     * phase, commit notification and transfer of a replica.
+     *
+     * @return The number of peer threads.
+     */
+    public static int getPeerThreads() {
+        return Integer.getInteger("paxos.peerThreads", 64);
+    }
+
+    /**
+     * The number of workers that apply a batch of committed commands in parallel, each owning
+     * the keys whose hash falls in its partition. 1 applies every command on the calling thread.
+     *
+     * @return The number of apply workers.
+     */
+    public static int getApplyThreads() {
+        return Integer.getInteger("paxos.applyThreads", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * The maximum number of remote calls waiting for a peer thread. Calls beyond it are rejected
+     * and count as failed, so a replica under a burst of requests fails some rounds instead of
+     * queueing without bound.
+     *
+     * @return The length of the peer call queue.
+     */
+    public static int getPeerQueueSize() {
+        return Integer.getInteger("paxos.peerQueueSize", 1024);
+    }
+
+    /**
+     * The most client writes a replica has in flight at once. The limit in use adapts below it
+     * to the commit latency, and writes beyond it are turned away as busy.
+     *
+     * @return The maximum number of writes in flight.
+     */
+    public static int getMaxInFlightWrites() {
+        return Integer.getInteger("paxos.maxInFlightWrites", 256);
+    }
+
+    /**
+     * The commit latency in milliseconds above which a replica takes a write as a sign of
+     * overload and lowers its limit of writes in flight.
+     *
+     * @return The target commit latency.
+     */
+    public static long getTargetCommitMillis() {
+        return Long.getLong("paxos.targetCommitMillis", 250);
+    }
+
+    /**
+     * The number of promises a proposal needs in phase 1 (prepare), or 0 to derive it from the
+     * phase 2 quorum, which is a simple majority if neither is set. See
+     * {@link #getPhase2Quorum()}.
+     *
+     * @return The configured phase 1 quorum size.
+     */
+    public static int getPhase1Quorum() {
+        return Integer.getInteger("paxos.phase1Quorum", 0);
+    }
+
+    /**
+     * The number of acceptances a value needs in phase 2 (accept), or 0 to derive it from the
+     * phase 1 quorum. Following Flexible Paxos, the two quorums only have to overlap, so any
+     * sizes with phase 1 + phase 2 greater than the number of members are safe, and a small
+     * phase 2 quorum makes writes wait for fewer replicas at the cost of needing more of them
+     * to promise.
+     *
+     * @return The configured phase 2 quorum size.
+     */
+    public static int getPhase2Quorum() {
+        return Integer.getInteger("paxos.phase2Quorum", 0);
+    }
+
+    /**
+     * How long in milliseconds the tombstone of a deleted key is kept at least, before the
+     * leader purges it. A client holding a version it read before the delete can no longer
+     * tell the key apart from one written again after the purge, so this bounds how long a
+     * conditional write may be retried.
+     *
+     * @return The tombstone retention.
+     */
+    public static long getTombstoneRetentionMillis() {
+        return Long.getLong("paxos.tombstoneRetentionMillis", 600_000);
+    }
+
+    /**
+     * How often in milliseconds a learner pulls the commands its source applied since the last
+     * pull.
+     *
+     * @return The learner poll interval.
+     */
+    public static long getLearnerPollMillis() {
+        return Long.getLong("paxos.learnerPollMillis", 100);
+    }
+}
@@ -0,0 +1,161 @@
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A table of client sessions that makes retried writes apply once. Every client tags its
+ * requests with its client id and a sequence number, and the table keeps the responses to the
+ * most recent writes of each client, so a retried write is answered with the response it got
+ * the first time instead of being applied again.
+ *
+ * <p>The table is only changed when commands are applied, in log order, so it is the same on
+ * every replica and is saved and sent in snapshots with the key value store. A client also sends
+ * the lowest sequence number it is still waiting on, and the responses below it are dropped,
+ * since the client will not retry those writes. Each session keeps at most
+ * {@link #MAX_RESPONSES} responses, and the sessions that wrote least recently are dropped
+ * beyond {@link #MAX_SESSIONS}.
+ */
+class SessionTable {
+
+    static final int MAX_SESSIONS = 1000;
+    static final int MAX_RESPONSES = 128;
+    private final LinkedHashMap<String, Session> sessions; // Client ID, Session, oldest first
+
+    /**
+     * Creates an empty session table.
+     */
+    public SessionTable() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * Creates a session table from previously saved sessions.
+     *
+     * @param saved The saved sessions, as returned by {@link #toMap()}.
+     */
+    public SessionTable(Map<String, String> saved) {
+        this.sessions = new LinkedHashMap<>();
+        List<Map.Entry<String, Session>> loaded = new ArrayList<>();
+        for (Map.Entry<String, String> entry : saved.entrySet()) {
+            loaded.add(Map.entry(entry.getKey(),
+                    Session.fromJson(new JSONObject(entry.getValue()))));
+        }
+        loaded.sort(Map.Entry.comparingByValue((a, b) -> Long.compare(a.lastIndex, b.lastIndex)));
+        for (Map.Entry<String, Session> entry : loaded) {
+            this.sessions.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Looks up the response to a write that was already applied.
+     *
+     * @param clientId The id of the client.
+     * @param seq      The sequence number of the write.
+     * @return The response as a JSON string, or null if the write was not applied or its
+     * response is no longer kept.
+     */
+    public synchronized String lookup(String clientId, long seq) {
+        Session session = this.sessions.get(clientId);
+        return session == null ? null : session.responses.get(seq);
+    }
+
+    /**
+     * Checks if a write is older than the responses kept for its client, so it may have been
+     * applied already but can no longer be answered.
+     *
+     * @param clientId The id of the client.
+     * @param seq      The sequence number of the write.
+     * @return True if the write is too old to tell.
+     */
+    public synchronized boolean isStale(String clientId, long seq) {
+        Session session = this.sessions.get(clientId);
+        return session != null && seq <= session.evictedSeq;
+    }
+
+    /**
+     * Records the response to an applied write, making its session the most recent one.
+     *
+     * @param clientId     The id of the client.
+     * @param seq          The sequence number of the write.
+     * @param ack          The lowest sequence number the client was still waiting on.
+     * @param appliedIndex The index the write was applied at.
+     * @param response     The response to the write.
+     */
+    public synchronized void record(String clientId, long seq, long ack, long appliedIndex,
+                                    JSONObject response) {
+        Session session = this.sessions.remove(clientId);
+        if (session == null) {
+            session = new Session();
+        }
+        session.responses.put(seq, response.toString());
+        session.lastIndex = appliedIndex;
+        if (ack - 1 > session.evictedSeq) {
+            session.responses.headMap(ack).clear();
+            session.evictedSeq = ack - 1;
+        }
+        while (session.responses.size() > MAX_RESPONSES) {
+            session.evictedSeq = Math.max(session.evictedSeq,
+                    session.responses.pollFirstEntry().getKey());
+        }
+        this.sessions.put(clientId, session);
+
+        Iterator<String> oldest = this.sessions.keySet().iterator();
+        while (this.sessions.size() > MAX_SESSIONS) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    /**
+     * Returns the number of clients with a session.
+     *
+     * @return The number of sessions.
+     */
+    public synchronized int size() {
+        return this.sessions.size();
+    }
+
+    /**
+     * Returns a copy of the sessions, for saving and for snapshots.
+     *
+     * @return The sessions as JSON strings, keyed by client id.
+     */
+    public synchronized Map<String, String> toMap() {
+        Map<String, String> map = new HashMap<>();
+        for (Map.Entry<String, Session> entry : this.sessions.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().toJson().toString());
+        }
+        return map;
+    }
+
+    /**
+     * The responses kept for one client.
+     */
+    private static class Session {
+        final TreeMap<Long, String> responses = new TreeMap<>(); // Sequence number, Response
+        long evictedSeq = -1; // Highest sequence number whose response was dropped
+        long lastIndex;
+
+        JSONObject toJson() {
+            return new JSONObject().put("responses", new JSONObject(this.responses))
+                    .put("evictedSeq", this.evictedSeq).put("lastIndex", this.lastIndex);
+        }
+
+        static Session fromJson(JSONObject json) {
+            Session session = new Session();
+            JSONObject responses = json.getJSONObject("responses");
+            for (String seq : responses.keySet()) {
+                session.responses.put(Long.parseLong(seq), responses.getString(seq));
+            }
+            session.evictedSeq = json.getLong("evictedSeq");
+            session.lastIndex = json.getLong("lastIndex");
+            return session;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A point-in-time view of the key-value store that is served to another replica in chunks. The
+ * receiving replica pulls one chunk at a time, so it is never sent more than it has applied, and
+ * the chunks are read from the view as they are pulled instead of copying the store up front.
+ *
+ * <p>The view pins the state of the store until the last chunk is read or the snapshot is
+ * closed, so a snapshot that is no longer pulled has to be closed once it has been idle for
+ * {@link #IDLE_TIMEOUT_MS}.
+ */
+class Snapshot {
+
+    static final int CHUNK_SIZE = 1000;
+    static final long IDLE_TIMEOUT_MS = 60_000;
+    private static final AtomicLong idCounter = new AtomicLong(System.currentTimeMillis());
+    private final long snapshotId;
+    private final long appliedIndex;
+    private final StorageEngine.View view;
+    private final Iterator<Map.Entry<String, String>> entries;
+    private final Map<Long, String> tail;
+    private final Map<String, String> sessions;
+    private int nextChunk;
+    private JSONObject lastChunk; // Kept so a chunk whose response was lost can be pulled again
+    private long lastUsedAt;
+    private boolean closed;
+
+    /**
+     * Creates a snapshot from a view of the store, the applied log tail and the client sessions.
+     *
+     * @param view         A view of the key-value store, which the snapshot closes.
+     * @param appliedIndex The index of the last command reflected in the view.
+     * @param tail         The applied log tail up to the applied index.
+     * @param sessions     The client sessions at the applied index.
+     */
+    public Snapshot(StorageEngine.View view, long appliedIndex, Map<Long, String> tail,
+                    Map<String, String> sessions) {
+        this.snapshotId = idCounter.incrementAndGet();
+        this.appliedIndex = appliedIndex;
+        this.view = view;
+        this.entries = view.iterator();
+        this.tail = tail;
+        this.sessions = sessions;
+        this.lastUsedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the id of the snapshot.
+     *
+     * @return The snapshot id.
+     */
+    public long getSnapshotId() {
+        return this.snapshotId;
+    }
+
+    /**
+     * Creates the header that describes the snapshot to the receiving replica.
+     *
+     * @return The header as a JSON object.
+     */
+    public JSONObject header() {
+        JSONObject header = new JSONObject();
+        header.put("snapshotId", this.snapshotId);
+        header.put("appliedIndex", this.appliedIndex);
+        header.put("tail", new JSONObject(this.tail));
+        header.put("sessions", new JSONObject(this.sessions));
+        return header;
+    }
+
+    /**
+     * Reads the next chunk of the snapshot from the view. Chunks are read in order, and the
+     * previous chunk can be read again.
+     *
+     * @param chunkIndex The index of the chunk.
+     * @return The key value pairs in the chunk, and whether it is the last one, as a JSON object.
+     * @throws IllegalStateException If the chunk is not the next or the previous one, or the
+     *                               snapshot was closed.
+     */
+    public synchronized JSONObject chunk(int chunkIndex) {
+        this.lastUsedAt = System.currentTimeMillis();
+        if (chunkIndex == this.nextChunk - 1 && this.lastChunk != null) {
+            return this.lastChunk;
+        } else if (this.closed) {
+            throw new IllegalStateException("Snapshot " + this.snapshotId + " was closed");
+        } else if (chunkIndex != this.nextChunk) {
+            throw new IllegalStateException("Chunk " + chunkIndex + " of snapshot " +
+                    this.snapshotId + " was requested, the next one is " + this.nextChunk);
+        }
+
+        JSONObject pairs = new JSONObject();
+        while (pairs.length() < CHUNK_SIZE && this.entries.hasNext()) {
+            Map.Entry<String, String> entry = this.entries.next();
+            pairs.put(entry.getKey(), entry.getValue());
+        }
+        this.lastChunk = new JSONObject().put("pairs", pairs).put("last", !this.entries.hasNext());
+        this.nextChunk++;
+        if (!this.entries.hasNext()) {
+            // The last chunk can still be pulled again, but nothing is left to read from the view
+            close();
+        }
+        return this.lastChunk;
+    }
+
+    /**
+     * Checks if the snapshot has not been pulled from for longer than {@link #IDLE_TIMEOUT_MS}.
+     *
+     * @param now The current time in milliseconds.
+     * @return True if the snapshot is idle.
+     */
+    public synchronized boolean isIdle(long now) {
+        return now - this.lastUsedAt > IDLE_TIMEOUT_MS;
+    }
+
+    /**
+     * Releases the view of the store.
+     */
+    public synchronized void close() {
+        if (!this.closed) {
+            this.closed = true;
+            this.view.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An interface for the engines that hold the key value pairs of a {@link KeyValue} store.
+ */
+interface StorageEngine {
+
+    /**
+     * Gets the value for a key.
+     *
+     * @param key the key to look up
+     * @return the value if the key exists or null if it doesn't.
+     */
+    String get(String key);
+
+    /**
+     * Puts a key value pair, replacing any previous value.
+     *
+     * @param key   the key to insert
+     * @param value the corresponding value
+     */
+    void put(String key, String value);
+
+    /**
+     * Deletes a key.
+     *
+     * @param key the key to delete
+     * @return true if the key existed and was deleted, false otherwise
+     */
+    boolean delete(String key);
+
+    /**
+     * Adds a batch of key value pairs, replacing any previous values, so that they all become
+     * visible to readers at once. The batch must not be ingested while other writes are made.
+     *
+     * @param entries      the key value pairs, in strictly increasing key order
+     * @param expectedKeys the approximate number of pairs
+     * @param replace      true to drop every key that is not in the batch
+     */
+    void ingest(Iterator<Map.Entry<String, String>> entries, int expectedKeys, boolean replace);
+
+    /**
+     * Iterates over the key value pairs in a key range, in key order.
+     *
+     * @param fromKey the first key of the range (inclusive), or null to start at the first key
+     * @param toKey   the end of the range (exclusive), or null to continue to the last key
+     * @return an iterator over the key value pairs in the range
+     */
+    Iterator<Map.Entry<String, String>> scan(String fromKey, String toKey);
+
+    /**
+     * Takes a view of the key value pairs at a point in time, which later writes do not change.
+     * The view has to be closed once it has been read.
+     *
+     * @return the view
+     */
+    View openView();
+
+    /**
+     * Copies all the key value pairs at a point in time.
+     *
+     * @return a copy of the key value pairs
+     */
+    Map<String, String> snapshot();
+
+    /**
+     * Removes all the key value pairs.
+     */
+    void clear();
+
+    /**
+     * Checks if the engine persists its own writes, in which case the replica does not need to
+     * save a copy of the store with its state. The writes of a durable engine are only certain
+     * to survive a crash once {@link #sync()} has returned.
+     *
+     * @return true if the engine is durable, false otherwise
+     */
+    boolean isDurable();
+
+    /**
+     * Forces the writes made so far to stable storage. Writes are not synced one by one, so the
+     * cost of a sync is shared by every write made since the last one.
+     */
+    void sync();
+
+    /**
+     * Releases the resources held by the engine.
+     */
+    void close();
+
+    /**
+     * The key value pairs of an engine at a point in time.
+     */
+    interface View extends AutoCloseable {
+
+        /**
+         * Iterates over the key value pairs of the view, in key order.
+         *
+         * @return an iterator over the key value pairs
+         */
+        Iterator<Map.Entry<String, String>> iterator();
+
+        /**
+         * Releases the view.
+         */
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel that finds the keys whose time to live has run out without
+ * scanning the key value store. Each level has 64 slots, and a slot of one level spans a whole
+ * turn of the level below it, so the four levels cover about 19 days at a 100ms tick. Timers
+ * further out wait in the last slot of the top level and are placed again when it comes round.
+ *
+ * <p>Timers are only added, never removed. A key that is written again keeps its old timer,
+ * and the replica drops the timer when it fires if the key is no longer at the same version.
+ */
+class TimerWheel {
+
+    static final long TICK_MILLIS = 100;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private final List<List<Timer>> slots;
+    private long currentTick;
+
+    /**
+     * Creates an empty wheel starting at a point in time.
+     *
+     * @param nowMillis the current time in milliseconds
+     */
+    public TimerWheel(long nowMillis) {
+        this.slots = new ArrayList<>(LEVELS * SLOTS);
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            this.slots.add(new ArrayList<>());
+        }
+        this.currentTick = nowMillis / TICK_MILLIS;
+    }
+
+    /**
+     * Adds a timer for a key.
+     *
+     * @param key       the key that expires
+     * @param version   the version of the key the expiry belongs to
+     * @param expiresAt the time the key expires, in milliseconds
+     */
+    public synchronized void schedule(String key, long version, long expiresAt) {
+        place(new Timer(key, version, expiresAt));
+    }
+
+    /**
+     * Moves the wheel forward to a point in time.
+     *
+     * @param nowMillis the current time in milliseconds
+     * @return the timers that expired, in no particular order
+     */
+    public synchronized List<Timer> advance(long nowMillis) {
+        List<Timer> expired = new ArrayList<>();
+        long targetTick = nowMillis / TICK_MILLIS;
+        while (this.currentTick < targetTick) {
+            this.currentTick++;
+
+            // When a level completes a turn, spread the next slot of the level above over it
+            for (int level = 1; level < LEVELS; level++) {
+                if ((this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                int slot = (int) ((this.currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                List<Timer> cascaded = takeSlot(level, slot);
+                for (Timer timer : cascaded) {
+                    place(timer);
+                }
+            }
+
+            List<Timer> due = takeSlot(0, (int) (this.currentTick & (SLOTS - 1)));
+            for (Timer timer : due) {
+                if (expiryTick(timer) <= this.currentTick) {
+                    expired.add(timer);
+                } else {
+                    place(timer);
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Puts a timer in the lowest level whose span reaches its expiry.
+     */
+    private void place(Timer timer) {
+        long ticks = Math.max(1, expiryTick(timer) - this.currentTick);
+        long tick = this.currentTick + ticks;
+        for (int level = 0; level < LEVELS; level++) {
+            if (ticks < (1L << (SLOT_BITS * (level + 1)))) {
+                int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                this.slots.get(level * SLOTS + slot).add(timer);
+                return;
+            }
+        }
+
+        // Beyond the top level, wait one turn in the slot before the current one
+        long top = (this.currentTick >>> (SLOT_BITS * (LEVELS - 1))) - 1;
+        this.slots.get((LEVELS - 1) * SLOTS + (int) (top & (SLOTS - 1))).add(timer);
+    }
+
+    /**
+     * Rounds the expiry of a timer up to a tick, so a timer never fires before its time.
+     */
+    private static long expiryTick(Timer timer) {
+        return (timer.expiresAt + TICK_MILLIS - 1) / TICK_MILLIS;
+    }
+
+    private List<Timer> takeSlot(int level, int slot) {
+        List<Timer> timers = this.slots.get(level * SLOTS + slot);
+        if (timers.isEmpty()) {
+            return timers;
+        }
+        this.slots.set(level * SLOTS + slot, new ArrayList<>());
+        return timers;
+    }
+
+    /**
+     * A key that expires at a point in time.
+     */
+    static class Timer {
+        final String key;
+        final long version;
+        final long expiresAt;
+
+        Timer(String key, long version, long expiresAt) {
+            this.key = key;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The replicas a replica knows of, spread by gossip. Each replica counts up its own heartbeat
+ * and regularly swaps its view with a random replica it knows of, and both keep the higher
+ * heartbeat of every replica. A replica whose heartbeat has not gone up for a while is taken to
+ * be down, and a replica learns of every other one within a few rounds, knowing only a seed to
+ * start with. A heartbeat starts from the time the replica started, so a restarted replica is
+ * ahead of the heartbeat the others remember for it.
+ *
+ * <p>The view is held in memory and served as it is, so clients can read the topology of the
+ * cluster without any calls between the replicas.
+ */
+class Topology {
+
+    static final long GOSSIP_INTERVAL_MS = 1000;
+    private static final long DOWN_AFTER_MS = 5 * GOSSIP_INTERVAL_MS;
+    private final String self;
+    private final Map<String, Heartbeat> replicas; // Replica name, Latest heartbeat
+
+    /**
+     * Creates a view that only knows of this replica.
+     *
+     * @param self the name of this replica
+     */
+    public Topology(String self) {
+        this.self = self;
+        this.replicas = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        this.replicas.put(self, new Heartbeat(now, now));
+    }
+
+    /**
+     * Adds replicas to gossip with, such as the seeds of the cluster, until they are heard from.
+     *
+     * @param names the names of the replicas
+     */
+    public synchronized void addAll(Collection<String> names) {
+        for (String name : names) {
+            this.replicas.putIfAbsent(name, new Heartbeat(-1, 0));
+        }
+    }
+
+    /**
+     * Counts up the heartbeat of this replica and returns the view to send to another replica.
+     *
+     * @return the heartbeat of every replica known of, keyed by name
+     */
+    public synchronized JSONObject tick() {
+        Heartbeat own = this.replicas.get(this.self);
+        own.count++;
+        own.updatedAt = System.currentTimeMillis();
+        return toJson();
+    }
+
+    /**
+     * Merges the view of another replica into this one.
+     *
+     * @param view the heartbeat of every replica the other replica knows of, keyed by name
+     * @return the merged view
+     */
+    public synchronized JSONObject merge(JSONObject view) {
+        long now = System.currentTimeMillis();
+        for (String name : view.keySet()) {
+            long count = view.getLong(name);
+            Heartbeat heartbeat = this.replicas.get(name);
+            if (heartbeat == null) {
+                this.replicas.put(name, new Heartbeat(count, now));
+            } else if (count > heartbeat.count && !name.equals(this.self)) {
+                heartbeat.count = count;
+                heartbeat.updatedAt = now;
+            }
+        }
+        return toJson();
+    }
+
+    /**
+     * Picks a random replica to gossip with.
+     *
+     * @return the name of the replica, or null if no other replica is known of
+     */
+    public synchronized String pickPeer() {
+        List<String> others = new ArrayList<>(this.replicas.keySet());
+        others.remove(this.self);
+        return others.isEmpty() ? null :
+                others.get(ThreadLocalRandom.current().nextInt(others.size()));
+    }
+
+    /**
+     * Checks if a replica has been heard from recently, directly or through another replica.
+     *
+     * @param name the name of the replica
+     * @return true if the heartbeat of the replica went up recently
+     */
+    public synchronized boolean isUp(String name) {
+        Heartbeat heartbeat = this.replicas.get(name);
+        return heartbeat != null && heartbeat.count >= 0 &&
+                System.currentTimeMillis() - heartbeat.updatedAt < DOWN_AFTER_MS;
+    }
+
+    /**
+     * Returns the names of the replicas known of, in name order.
+     *
+     * @return the names of the replicas
+     */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(this.replicas.keySet());
+    }
+
+    private JSONObject toJson() {
+        JSONObject view = new JSONObject();
+        for (Map.Entry<String, Heartbeat> entry : this.replicas.entrySet()) {
+            if (entry.getValue().count >= 0) {
+                view.put(entry.getKey(), entry.getValue().count);
+            }
+        }
+        return view;
+    }
+
+    /**
+     * The latest heartbeat count of a replica and when this replica saw it go up.
+     */
+    private static class Heartbeat {
+        long count;
+        long updatedAt;
+
+        Heartbeat(long count, long updatedAt) {
+            this.count = count;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
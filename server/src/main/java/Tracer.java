@@ -0,0 +1,194 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory collector for the spans of traced requests. A trace id is created when a write
+ * enters a replica and is carried through the prepare, accept and learn messages so that every
+ * replica records its own spans for the same request.
+ */
+class Tracer {
+
+    private static final int MAX_SPANS = 10000;
+    private final String node;
+    private final Deque<JSONObject> spans;
+    private final AtomicInteger spanCount;
+
+    /**
+     * Creates a tracer that tags every span it records with the given node name.
+     *
+     * @param node The name of the replica recording the spans.
+     */
+    public Tracer(String node) {
+        this.node = node;
+        this.spans = new ConcurrentLinkedDeque<>();
+        this.spanCount = new AtomicInteger(0);
+    }
+
+    /**
+     * Generates a new trace id.
+     *
+     * @return A new random trace id.
+     */
+    public static String newTraceId() {
+        return UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    /**
+     * Starts a span for a trace. If the trace id is null the span is not recorded.
+     *
+     * @param traceId The id of the trace the span belongs to.
+     * @param name    The name of the span.
+     * @return The started span, which is recorded when it is closed.
+     */
+    public Span start(String traceId, String name) {
+        return new Span(traceId, name);
+    }
+
+    /**
+     * Retrieves all the recorded spans for a trace.
+     *
+     * @param traceId The id of the trace.
+     * @return A JSON array of the spans recorded for the trace.
+     */
+    public JSONArray getSpans(String traceId) {
+        JSONArray result = new JSONArray();
+        for (JSONObject span : this.spans) {
+            if (span.getString("traceId").equals(traceId)) {
+                result.put(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts spans into the Chrome trace event format, which can be opened with
+     * chrome://tracing or Perfetto. Each replica is shown as a process and each trace as a thread.
+     * The format only takes numbers for process and thread ids, so they are numbered in the order
+     * they first appear and named with metadata events.
+     *
+     * @param spans The spans to convert.
+     * @return A JSON object in the trace event format.
+     */
+    public static JSONObject toTraceEvents(JSONArray spans) {
+        JSONArray events = new JSONArray();
+        Map<String, Integer> pids = new HashMap<>(); // Node, Process id
+        Map<String, Integer> tids = new HashMap<>(); // Trace id, Thread id
+        Set<String> named = new HashSet<>(); // Node and trace id of the named threads
+        for (int i = 0; i < spans.length(); i++) {
+            JSONObject span = spans.getJSONObject(i);
+            String node = span.getString("node");
+            String traceId = span.getString("traceId");
+            Integer pid = pids.get(node);
+            if (pid == null) {
+                pid = pids.size() + 1;
+                pids.put(node, pid);
+                events.put(metadata("process_name", pid, 0, node));
+            }
+            Integer tid = tids.get(traceId);
+            if (tid == null) {
+                tid = tids.size() + 1;
+                tids.put(traceId, tid);
+            }
+            // Thread names are per process, so a trace is named in every process it appears in
+            if (named.add(node + "/" + traceId)) {
+                events.put(metadata("thread_name", pid, tid, "trace " + traceId));
+            }
+
+            JSONObject event = new JSONObject();
+            event.put("name", span.getString("name"));
+            event.put("cat", "paxos");
+            event.put("ph", "X");
+            event.put("ts", span.getLong("start"));
+            event.put("dur", span.getLong("duration"));
+            event.put("pid", pid);
+            event.put("tid", tid);
+            event.put("args", new JSONObject().put("traceId", traceId));
+            events.put(event);
+        }
+        return new JSONObject().put("traceEvents", events);
+    }
+
+    private static JSONObject metadata(String name, int pid, int tid, String value) {
+        return new JSONObject().put("name", name).put("ph", "M").put("pid", pid).put("tid", tid)
+                .put("args", new JSONObject().put("name", value));
+    }
+
+    /**
+     * Writes all the recorded spans to a file in the Chrome trace event format.
+     *
+     * @param file The file to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void dump(Path file) throws IOException {
+        JSONArray all = new JSONArray();
+        for (JSONObject span : this.spans) {
+            all.put(span);
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            toTraceEvents(all).write(writer);
+        }
+    }
+
+    /**
+     * Records a finished span, dropping the oldest span when the collector is full.
+     *
+     * @param span The span to record.
+     */
+    private void record(JSONObject span) {
+        this.spans.addLast(span);
+        if (this.spanCount.incrementAndGet() > MAX_SPANS && this.spans.pollFirst() != null) {
+            this.spanCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * A timed section of a trace. Spans are meant to be used with try-with-resources.
+     */
+    class Span implements AutoCloseable {
+        private final String traceId;
+        private final String name;
+        private final long startMicros;
+        private final long startNanos;
+
+        private Span(String traceId, String name) {
+            this.traceId = traceId;
+            this.name = name;
+            this.startMicros = System.currentTimeMillis() * 1000;
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * Ends the span and records it in the collector.
+         */
+        @Override
+        public void close() {
+            if (this.traceId == null) {
+                return;
+            }
+            JSONObject span = new JSONObject();
+            span.put("traceId", this.traceId);
+            span.put("name", this.name);
+            span.put("node", node);
+            span.put("start", this.startMicros);
+            span.put("duration", (System.nanoTime() - this.startNanos) / 1000);
+            record(span);
+        }
+    }
+}
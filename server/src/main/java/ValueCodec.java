@@ -0,0 +1,64 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A class for compressing values, so large values take less space in the Paxos messages, the
+ * accepted values, the saved state and the storage engine. Values are compressed with Deflate
+ * and Base64 encoded, since commands and stored values are strings.
+ */
+class ValueCodec {
+
+    /**
+     * Compresses a value.
+     *
+     * @param value the value to compress
+     * @return the compressed value
+     */
+    public static String compress(String value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(value.length() / 2 + 16);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return Base64.getEncoder().encodeToString(out.toByteArray());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a value compressed by {@link #compress(String)}.
+     *
+     * @param compressed the compressed value
+     * @return the original value
+     * @throws IllegalArgumentException If the value is not a compressed value.
+     */
+    public static String decompress(String compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(Base64.getDecoder().decode(compressed));
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length() * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Compressed value is truncated");
+                }
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
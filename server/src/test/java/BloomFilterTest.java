@@ -0,0 +1,61 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a bloom filter never misses a key that was added, keeps close to its false
+ * positive rate, and reads back the same after it is written.
+ */
+class BloomFilterTest {
+
+    private static final int KEYS = 1000;
+
+    @Test
+    void containsEveryAddedKey() {
+        BloomFilter filter = filter();
+        for (int i = 0; i < KEYS; i++) {
+            assertTrue(filter.mightContain("key-" + i));
+        }
+    }
+
+    @Test
+    void falsePositivesStayNearTheRate() {
+        BloomFilter filter = filter();
+        int falsePositives = 0;
+        for (int i = 0; i < 10 * KEYS; i++) {
+            if (filter.mightContain("missing-" + i)) {
+                falsePositives++;
+            }
+        }
+        // Sized for 1%, so 3% leaves room for the hash functions
+        assertTrue(falsePositives < 3 * KEYS / 10, falsePositives + " false positives");
+    }
+
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        BloomFilter filter = filter();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        filter.write(new DataOutputStream(bytes));
+
+        BloomFilter read = BloomFilter.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        for (int i = 0; i < 10 * KEYS; i++) {
+            String key = (i < KEYS ? "key-" : "missing-") + i;
+            assertTrue(read.mightContain(key) == filter.mightContain(key), key);
+        }
+    }
+
+    private static BloomFilter filter() {
+        BloomFilter filter = new BloomFilter(KEYS, 0.01);
+        for (int i = 0; i < KEYS; i++) {
+            filter.add("key-" + i);
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,71 @@
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that a member learns every commit of a replica whose stream of commits to it was cut
+ * short, because the replica restarted with commits still queued or dropped commits from the
+ * stream.
+ */
+class CommitStreamTest {
+
+    @Test
+    void restartedOriginLeavesNoCommitsBehind() throws RemoteException {
+        Replica origin = new Replica(1, "origin");
+        Replica member = new Replica(2, "member");
+        member.setMembers(List.of(origin, member));
+        String prefix = UUID.randomUUID() + "-";
+
+        String first = put(prefix + "1");
+        origin.learn(first);
+        long delivered = appliedIndex(origin);
+        member.commit("origin", 1, 1, delivered - 1, delivered, first);
+        // Queued on the stream when the origin stopped, so they were never delivered
+        origin.learn(put(prefix + "2"));
+        origin.learn(put(prefix + "3"));
+
+        // The restarted origin numbers its commits from 1 again, in a new epoch
+        String next = put(prefix + "4");
+        origin.learn(next);
+        member.commit("origin", 2, 1, delivered, appliedIndex(origin), next);
+
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("v", member.kvs.get(prefix + i));
+        }
+        assertEquals(1, member.kvs.getVersion(prefix + "1"));
+    }
+
+    @Test
+    void droppedCommitsAreLearntFromTheAppliedLog() throws RemoteException {
+        Replica origin = new Replica(1, "origin");
+        Replica member = new Replica(2, "member");
+        member.setMembers(List.of(origin, member));
+        String prefix = UUID.randomUUID() + "-";
+
+        String first = put(prefix + "1");
+        origin.learn(first);
+        long delivered = appliedIndex(origin);
+        member.commit("origin", 1, 1, delivered - 1, delivered, first);
+        origin.learn(put(prefix + "2"));
+        String third = put(prefix + "3");
+        origin.learn(third);
+        member.commit("origin", 1, 3, delivered, appliedIndex(origin), third);
+
+        assertEquals("v", member.kvs.get(prefix + "2"));
+        assertEquals("v", member.kvs.get(prefix + "3"));
+    }
+
+    private static String put(String key) {
+        return new JSONObject().put("method", "PUT").put("data", new JSONObject().put(key, "v"))
+                .put("commandId", UUID.randomUUID().toString()).toString();
+    }
+
+    private static long appliedIndex(Replica replica) throws RemoteException {
+        return new JSONObject(replica.beginSnapshot()).getLong("appliedIndex");
+    }
+}
@@ -0,0 +1,116 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.rmi.RemoteException;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks the versions conditional writes and transactions are checked against: a key's version
+ * goes up on every write, a delete keeps it in a tombstone, and a write only applies at the
+ * version it expects. Malformed conditional writes are turned away before they are proposed.
+ */
+class ConditionalWriteTest {
+
+    @Test
+    void versionsContinueAcrossDeletes() {
+        KeyValue kvs = new KeyValue();
+        kvs.put("key", "a");
+        kvs.put("key", "b");
+        assertEquals(2, kvs.getVersion("key"));
+
+        kvs.delete("key");
+        assertEquals(0, kvs.getVersion("key"));
+        assertEquals(3, kvs.getTombstoneVersion("key"));
+        kvs.put("key", "c");
+        assertEquals(4, kvs.getVersion("key"));
+
+        kvs.delete("key");
+        kvs.purge("key", 5);
+        kvs.put("key", "d");
+        assertEquals(1, kvs.getVersion("key"));
+    }
+
+    @Test
+    void compareAndSetOnlyAppliesAtTheExpectedVersion() throws RemoteException {
+        Replica replica = new Replica(1, "conditional");
+        String key = UUID.randomUUID().toString();
+
+        assertEquals("200", replica.handleCompareAndSet(key, "a", 0, 0, false)
+                .getString("status"));
+        JSONObject stale = replica.handleCompareAndSet(key, "b", 0, 0, false);
+        assertEquals("400", stale.getString("status"));
+        assertEquals(1, stale.getLong("version"));
+        assertEquals("200", replica.handleCompareAndSet(key, "b", 1, 0, false)
+                .getString("status"));
+        assertEquals("b", replica.kvs.get(key));
+
+        // A deleted key is at version 0 again, but its next write continues from the tombstone
+        assertEquals("400", replica.handleDeleteIfVersion(key, 1).getString("status"));
+        assertEquals("200", replica.handleDeleteIfVersion(key, 2).getString("status"));
+        assertEquals("400", replica.handleCompareAndSet(key, "c", 2, 0, false)
+                .getString("status"));
+        assertEquals("200", replica.handleCompareAndSet(key, "c", 0, 0, false)
+                .getString("status"));
+        assertEquals(4, replica.kvs.getVersion(key));
+    }
+
+    @Test
+    void transactionAppliesAllOrNothing() throws RemoteException {
+        Replica replica = new Replica(1, "transactions");
+        String prefix = UUID.randomUUID() + "-";
+        replica.kvs.put(prefix + "a", "1");
+        replica.kvs.put(prefix + "b", "1");
+
+        JSONObject failed = replica.handleTransaction(transaction(prefix, 1, 2));
+        assertEquals("400", failed.getString("status"));
+        assertEquals(1, new JSONObject(failed.getString("data")).getLong(prefix + "b"));
+        assertEquals("1", replica.kvs.get(prefix + "a"));
+        assertEquals("1", replica.kvs.get(prefix + "b"));
+
+        JSONObject committed = replica.handleTransaction(transaction(prefix, 1, 1));
+        assertEquals("200", committed.getString("status"));
+        JSONObject versions = new JSONObject(committed.getString("data"));
+        assertEquals(2, versions.getLong(prefix + "a"));
+        assertEquals(0, versions.getLong(prefix + "b"));
+        assertNull(replica.kvs.get(prefix + "b"));
+    }
+
+    @Test
+    void malformedConditionalWritesAreNotProposed() throws RemoteException {
+        Replica replica = new Replica(1, "malformed");
+
+        assertEquals("400", status(replica, new JSONObject().put("method", "CAS")
+                .put("data", new JSONObject().put("key", "k").put("value", "v"))));
+        assertEquals("400", status(replica, new JSONObject().put("method", "CAS")
+                .put("data", new JSONObject().put("key", "k").put("value", "v")
+                        .put("version", "not a number"))));
+        assertEquals("400", status(replica, new JSONObject().put("method", "PUTNX")
+                .put("data", new JSONObject().put("key", "k"))));
+        assertEquals("400", status(replica, new JSONObject().put("method", "DELV")
+                .put("data", new JSONObject().put("key", "k").put("version", -1))));
+        assertEquals("400", status(replica, new JSONObject().put("method", "DELV")
+                .put("data", "k")));
+    }
+
+    /**
+     * Creates a transaction that puts key a and deletes key b if both are at given versions.
+     */
+    private static JSONObject transaction(String prefix, long versionA, long versionB) {
+        return new JSONObject()
+                .put("conditions", new JSONArray()
+                        .put(new JSONObject().put("key", prefix + "a").put("version", versionA))
+                        .put(new JSONObject().put("key", prefix + "b").put("version", versionB)))
+                .put("ops", new JSONArray()
+                        .put(new JSONObject().put("op", "PUT").put("key", prefix + "a")
+                                .put("value", "2"))
+                        .put(new JSONObject().put("op", "DEL").put("key", prefix + "b")));
+    }
+
+    private static String status(Replica replica, JSONObject request) throws RemoteException {
+        return new JSONObject(replica.generateResponse(request.toString())).getString("status");
+    }
+}
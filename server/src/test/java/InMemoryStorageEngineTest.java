@@ -0,0 +1,62 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that a view of the in-memory engine keeps the pairs it was opened at while writes
+ * continue, and that the writes made meanwhile are all kept once it is closed.
+ */
+class InMemoryStorageEngineTest {
+
+    @Test
+    void viewIsNotChangedByLaterWrites() {
+        InMemoryStorageEngine engine = new InMemoryStorageEngine(Map.of("a", "1", "b", "2"));
+
+        StorageEngine.View view = engine.openView();
+        engine.put("a", "updated");
+        engine.delete("b");
+        engine.put("c", "3");
+
+        assertEquals(Map.of("a", "1", "b", "2"), read(view.iterator()));
+        assertEquals(Map.of("a", "updated", "c", "3"), read(engine.scan(null, null)));
+        assertNull(engine.get("b"));
+        view.close();
+
+        assertEquals(Map.of("a", "updated", "c", "3"), engine.snapshot());
+        assertFalse(engine.delete("b"));
+    }
+
+    @Test
+    void nestedViewsAreFoldedOnceAllAreClosed() {
+        InMemoryStorageEngine engine = new InMemoryStorageEngine(Map.of("a", "1"));
+
+        StorageEngine.View first = engine.openView();
+        engine.put("b", "2");
+        StorageEngine.View second = engine.openView();
+        engine.delete("a");
+        first.close();
+        engine.put("c", "3");
+
+        assertEquals(Map.of("a", "1", "b", "2"), read(second.iterator()));
+        assertEquals(Map.of("b", "2", "c", "3"), read(engine.scan("a", "z")));
+        second.close();
+
+        assertEquals(Map.of("b", "2", "c", "3"), engine.snapshot());
+        assertEquals(Map.of("c", "3"), read(engine.scan("c", null)));
+    }
+
+    private static Map<String, String> read(Iterator<Map.Entry<String, String>> entries) {
+        Map<String, String> pairs = new HashMap<>();
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            pairs.put(entry.getKey(), entry.getValue());
+        }
+        return pairs;
+    }
+}
@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that the LSM engine recovers its writes from the SSTables and the write-ahead log, and
+ * that a compaction keeps the newest value of every key and drops deleted keys.
+ */
+class LsmStorageEngineTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void recoversFromSSTablesAndWriteAheadLog() throws IOException {
+        LsmStorageEngine engine = new LsmStorageEngine(this.dir);
+        engine.put("a", "1");
+        engine.put("b", "2");
+        engine.put("c", "3");
+        // Opening a view flushes the memtable to an SSTable
+        engine.openView().close();
+        engine.put("b", "updated");
+        engine.delete("c");
+        engine.put("d", "4");
+        engine.sync();
+
+        // Opened without closing the first engine, as after a crash
+        LsmStorageEngine recovered = new LsmStorageEngine(this.dir);
+
+        assertEquals("1", recovered.get("a"));
+        assertEquals("updated", recovered.get("b"));
+        assertNull(recovered.get("c"));
+        assertEquals("4", recovered.get("d"));
+        assertEquals(Map.of("a", "1", "b", "updated", "d", "4"), recovered.snapshot());
+        assertEquals(List.of("b", "d"), keys(recovered.scan("b", null)));
+        recovered.close();
+        engine.close();
+    }
+
+    @Test
+    void compactionKeepsNewestValues() throws Exception {
+        LsmStorageEngine engine = new LsmStorageEngine(this.dir);
+        for (int round = 1; round <= 4; round++) {
+            engine.put("kept", "v" + round);
+            engine.put("only-" + round, "x");
+            if (round == 2) {
+                engine.delete("only-1");
+            }
+            engine.openView().close();
+        }
+
+        // The fourth SSTable starts a compaction in the background
+        Path merged = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (merged == null && System.currentTimeMillis() < deadline) {
+            merged = compactedTable();
+            Thread.sleep(50);
+        }
+        assertNotNull(merged, "No compacted SSTable was written");
+
+        assertEquals("v4", engine.get("kept"));
+        assertNull(engine.get("only-1"));
+        assertEquals(Map.of("kept", "v4", "only-2", "x", "only-3", "x", "only-4", "x"),
+                engine.snapshot());
+        SSTable table = SSTable.open(merged);
+        Iterator<Map.Entry<String, String>> entries = table.iterator(null);
+        while (entries.hasNext()) {
+            assertFalse(LsmStorageEngine.isTombstone(entries.next().getValue()));
+        }
+        assertEquals(4, table.getEntryCount());
+        table.close();
+        engine.close();
+
+        LsmStorageEngine reopened = new LsmStorageEngine(this.dir);
+        assertEquals("v4", reopened.get("kept"));
+        assertNull(reopened.get("only-1"));
+        reopened.close();
+    }
+
+    /**
+     * Finds the table a compaction wrote, which is of a higher generation than a flushed one.
+     */
+    private Path compactedTable() throws IOException {
+        try (DirectoryStream<Path> tables = Files.newDirectoryStream(this.dir, "*-1.sst")) {
+            for (Path table : tables) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> keys(Iterator<Map.Entry<String, String>> entries) {
+        List<String> keys = new ArrayList<>();
+        while (entries.hasNext()) {
+            keys.add(entries.next().getKey());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,182 @@
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a batch of commands applied in parallel by partition leaves a replica in the same
+ * state as applying them one at a time. Each test has a replica that applies serially and one
+ * that applies on four workers catch up with the same log, and compares their stores, with the
+ * versions of the keys, their applied logs and their client sessions.
+ */
+class ParallelApplyTest {
+
+    private static final int KEYS = 40;
+    private static final int CLIENTS = 5;
+
+    @Test
+    void parallelApplyMatchesSerialApply() throws RemoteException {
+        JSONObject log = randomLog(new Random(42), 600, -1);
+
+        Replica serial = replica("serial", 1);
+        Replica parallel = replica("parallel", 4);
+        assertTrue(serial.catchUp(source(log)));
+        assertTrue(parallel.catchUp(source(log)));
+
+        assertSameState(serial, parallel);
+        assertEquals(commandIds(log, 600), commandIds(new JSONObject(serial.getLogSince(0)), 600));
+    }
+
+    @Test
+    void failedParallelApplyMatchesSerialApply() throws RemoteException {
+        // The engine fails to write the value put at index 300
+        JSONObject log = randomLog(new Random(7), 600, 300);
+
+        Replica serial = replica("serial-failing", 1);
+        Replica parallel = replica("parallel-failing", 4);
+        serial.kvs = new KeyValue(new FailingEngine());
+        parallel.kvs = new KeyValue(new FailingEngine());
+        assertFalse(serial.catchUp(source(log)));
+        assertFalse(parallel.catchUp(source(log)));
+
+        assertSameState(serial, parallel);
+        // Serial apply stops at the failed command, and so does the parallel apply
+        assertEquals(commandIds(log, 299), commandIds(new JSONObject(serial.getLogSince(0)), 600));
+    }
+
+    private static Replica replica(String name, int applyThreads) throws RemoteException {
+        System.setProperty("paxos.applyThreads", Integer.toString(applyThreads));
+        try {
+            return new Replica(1, name);
+        } finally {
+            System.clearProperty("paxos.applyThreads");
+        }
+    }
+
+    private static void assertSameState(Replica serial, Replica parallel)
+            throws RemoteException {
+        assertEquals(serial.kvs.snapshot(), parallel.kvs.snapshot());
+        assertEquals(new JSONObject(serial.getLogSince(0)).toMap(),
+                new JSONObject(parallel.getLogSince(0)).toMap());
+        JSONObject serialHeader = new JSONObject(serial.beginSnapshot());
+        JSONObject parallelHeader = new JSONObject(parallel.beginSnapshot());
+        assertEquals(serialHeader.getLong("appliedIndex"), parallelHeader.getLong("appliedIndex"));
+        assertEquals(serialHeader.getJSONObject("sessions").toMap(),
+                parallelHeader.getJSONObject("sessions").toMap());
+    }
+
+    /**
+     * Collects the ids of the commands in a log up to an index.
+     */
+    private static Set<String> commandIds(JSONObject log, int lastIndex) {
+        Set<String> ids = new HashSet<>();
+        for (String index : log.keySet()) {
+            if (Integer.parseInt(index) <= lastIndex) {
+                ids.add(new JSONObject(log.getString(index)).getString("commandId"));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Creates a log of writes by a few clients to a few keys, with conditional writes that
+     * depend on the order they are applied in, transactions across partitions, and retried
+     * commands.
+     *
+     * @param random  the source of the commands
+     * @param count   the number of commands
+     * @param failing the index of a put the engine fails to write, or -1 for none
+     * @return the commands keyed by applied index
+     */
+    private static JSONObject randomLog(Random random, int count, int failing) {
+        JSONObject log = new JSONObject();
+        long[] seqs = new long[CLIENTS];
+        String previous = null;
+        for (int index = 1; index <= count; index++) {
+            int client = random.nextInt(CLIENTS);
+            String key = "k" + random.nextInt(KEYS);
+            JSONObject command = new JSONObject();
+            int kind = random.nextInt(7);
+            if (index == failing) {
+                command.put("method", "PUT").put("data", new JSONObject().put(key,
+                        FailingEngine.FAILING_VALUE));
+            } else if (kind == 0 && previous != null) {
+                // A command the log already holds, as if it was proposed twice
+                log.put(Integer.toString(index), previous);
+                continue;
+            } else if (kind <= 2) {
+                command.put("method", "PUT").put("data", new JSONObject().put(key, "v" + index));
+            } else if (kind == 3) {
+                command.put("method", "DEL").put("data", key);
+            } else if (kind == 4) {
+                command.put("method", "CAS").put("data", new JSONObject().put("key", key)
+                        .put("value", "cas" + index).put("version", random.nextInt(4)));
+            } else if (kind == 5) {
+                command.put("method", "PUTNX").put("data", new JSONObject().put("key", key)
+                        .put("value", "nx" + index));
+            } else {
+                String other = "k" + random.nextInt(KEYS);
+                JSONObject txn = new JSONObject()
+                        .put("conditions", new JSONArray().put(new JSONObject().put("key", key)
+                                .put("version", random.nextInt(3))))
+                        .put("ops", new JSONArray()
+                                .put(new JSONObject().put("op", "PUT").put("key", key)
+                                        .put("value", "txn" + index))
+                                .put(new JSONObject().put("op", "DEL").put("key", other)));
+                command.put("method", "TXN").put("data", txn);
+            }
+            command.put("commandId", "command-" + index).put("clientId", "client-" + client)
+                    .put("seq", ++seqs[client]).put("ack", seqs[client] - 1);
+            previous = command.toString();
+            log.put(Integer.toString(index), previous);
+        }
+        return log;
+    }
+
+    /**
+     * An in-memory engine that fails to write one value, the way a full disk or an I/O error
+     * would fail a write of a durable engine.
+     */
+    private static class FailingEngine extends InMemoryStorageEngine {
+        static final String FAILING_VALUE = "fails to write";
+
+        @Override
+        public void put(String key, String value) {
+            if (value.endsWith(FAILING_VALUE)) {
+                throw new IllegalStateException("Could not write " + key);
+            }
+            super.put(key, value);
+        }
+    }
+
+    /**
+     * Creates a replica to catch up with, which serves an empty snapshot and then the log.
+     */
+    private static ReplicaInterface source(JSONObject log) {
+        JSONObject header = new JSONObject().put("snapshotId", 1).put("appliedIndex", 0)
+                .put("tail", new JSONObject()).put("sessions", new JSONObject());
+        JSONObject chunk = new JSONObject().put("pairs", new JSONObject()).put("last", true);
+        return (ReplicaInterface) Proxy.newProxyInstance(ReplicaInterface.class.getClassLoader(),
+                new Class<?>[]{ReplicaInterface.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "beginSnapshot":
+                            return header.toString();
+                        case "getSnapshotChunk":
+                            return chunk.toString();
+                        case "getLogSince":
+                            return log.toString();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
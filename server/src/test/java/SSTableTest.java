@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Checks lookups and iteration over an SSTable whose entries span many blocks of its sparse
+ * index, which holds every sixteenth key.
+ */
+class SSTableTest {
+
+    private static final int ENTRIES = 100;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void findsEveryKeyAcrossIndexBlocks() throws IOException {
+        SSTable table = SSTable.write(this.dir.resolve("table.sst"), entries().entrySet()
+                .iterator(), ENTRIES);
+
+        assertEquals(ENTRIES, table.getEntryCount());
+        for (int i = 0; i < ENTRIES; i++) {
+            String expected = i == 40 ? LsmStorageEngine.TOMBSTONE : "value-" + i;
+            assertEquals(expected, table.get(key(i)));
+        }
+        assertSame(LsmStorageEngine.TOMBSTONE, table.get(key(40)));
+        table.close();
+    }
+
+    @Test
+    void missesKeysBetweenAndAroundBlocks() throws IOException {
+        SSTable table = SSTable.write(this.dir.resolve("table.sst"), entries().entrySet()
+                .iterator(), ENTRIES);
+
+        assertNull(table.get("a"));
+        assertNull(table.get("z"));
+        // Just after the first key of a block, and just after the last key of one
+        assertNull(table.get(key(16) + "a"));
+        assertNull(table.get(key(15) + "a"));
+        assertNull(table.get(key(ENTRIES - 1) + "a"));
+        table.close();
+    }
+
+    @Test
+    void iteratesFromAKeyInsideABlock() throws IOException {
+        SSTable table = SSTable.write(this.dir.resolve("table.sst"), entries().entrySet()
+                .iterator(), ENTRIES);
+
+        Iterator<Map.Entry<String, String>> entries = table.iterator(key(37) + "a");
+        for (int i = 38; i < ENTRIES; i++) {
+            assertEquals(key(i), entries.next().getKey());
+        }
+        assertFalse(entries.hasNext());
+        assertFalse(table.iterator("z").hasNext());
+        table.close();
+
+        SSTable reopened = SSTable.open(this.dir.resolve("table.sst"));
+        assertEquals("value-" + 99, reopened.get(key(99)));
+        reopened.close();
+    }
+
+    private static Map<String, String> entries() {
+        Map<String, String> entries = new TreeMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put(key(i), i == 40 ? LsmStorageEngine.TOMBSTONE : "value-" + i);
+        }
+        return entries;
+    }
+
+    private static String key(int i) {
+        return String.format("key-%03d", i);
+    }
+}
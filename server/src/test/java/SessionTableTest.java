@@ -0,0 +1,85 @@
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the session table answers retries, drops the responses a client acknowledged or
+ * that are beyond its limit, and evicts the sessions that wrote least recently.
+ */
+class SessionTableTest {
+
+    @Test
+    void answersRetriesUntilAcknowledged() {
+        SessionTable sessions = new SessionTable();
+        sessions.record("client", 1, 1, 10, response(1));
+        sessions.record("client", 2, 1, 11, response(2));
+
+        assertEquals(response(1).toString(), sessions.lookup("client", 1));
+        assertFalse(sessions.isStale("client", 1));
+
+        // The client is no longer waiting on 1 or 2
+        sessions.record("client", 3, 3, 12, response(3));
+        assertNull(sessions.lookup("client", 1));
+        assertNull(sessions.lookup("client", 2));
+        assertTrue(sessions.isStale("client", 2));
+        assertEquals(response(3).toString(), sessions.lookup("client", 3));
+    }
+
+    @Test
+    void keepsAtMostMaxResponsesPerClient() {
+        SessionTable sessions = new SessionTable();
+        int count = SessionTable.MAX_RESPONSES + 10;
+        for (int seq = 1; seq <= count; seq++) {
+            sessions.record("client", seq, 1, seq, response(seq));
+        }
+
+        assertTrue(sessions.isStale("client", 10));
+        assertNull(sessions.lookup("client", 10));
+        assertFalse(sessions.isStale("client", 11));
+        assertNotNull(sessions.lookup("client", 11));
+        assertNotNull(sessions.lookup("client", count));
+    }
+
+    @Test
+    void evictsTheSessionsThatWroteLeastRecently() {
+        SessionTable sessions = new SessionTable();
+        for (int client = 0; client < SessionTable.MAX_SESSIONS; client++) {
+            sessions.record("client-" + client, 1, 1, client, response(1));
+        }
+        // Writing again makes the first client the most recent one
+        sessions.record("client-0", 2, 1, SessionTable.MAX_SESSIONS, response(2));
+        sessions.record("new", 1, 1, SessionTable.MAX_SESSIONS + 1, response(1));
+
+        assertEquals(SessionTable.MAX_SESSIONS, sessions.size());
+        assertNotNull(sessions.lookup("client-0", 1));
+        assertNull(sessions.lookup("client-1", 1));
+        assertNotNull(sessions.lookup("client-2", 1));
+        assertNotNull(sessions.lookup("new", 1));
+    }
+
+    @Test
+    void restoredTableEvictsInTheSameOrder() {
+        SessionTable sessions = new SessionTable();
+        for (int client = 0; client < SessionTable.MAX_SESSIONS; client++) {
+            // Clients write in an order that differs from the order of their ids
+            int id = (client * 7) % SessionTable.MAX_SESSIONS;
+            sessions.record("client-" + id, 1, 1, client, response(1));
+        }
+
+        SessionTable restored = new SessionTable(sessions.toMap());
+        restored.record("new", 1, 1, SessionTable.MAX_SESSIONS, response(1));
+
+        assertNull(restored.lookup("client-0", 1));
+        assertNotNull(restored.lookup("client-7", 1));
+        assertEquals(SessionTable.MAX_SESSIONS, restored.size());
+    }
+
+    private static JSONObject response(long seq) {
+        return new JSONObject().put("status", "200").put("message", "Write " + seq);
+    }
+}
@@ -0,0 +1,72 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that timers on every level of the wheel cascade down and fire at their tick, neither
+ * before nor later, including timers beyond the span of the top level.
+ */
+class TimerWheelTest {
+
+    private static final long TICK = TimerWheel.TICK_MILLIS;
+
+    @Test
+    void firesTimersOnEveryLevelAtTheirTick() {
+        TimerWheel wheel = new TimerWheel(0);
+        // One timer per level, with ticks that are not on a slot boundary of the level
+        long[] ticks = {5, 64 * 3 + 7, 64 * 64 * 5 + 100, 64L * 64 * 64 * 2 + 4097};
+        for (int i = 0; i < ticks.length; i++) {
+            wheel.schedule("level-" + i, i, ticks[i] * TICK);
+        }
+
+        long now = 0;
+        for (int i = 0; i < ticks.length; i++) {
+            assertEquals(List.of(), keys(wheel.advance((ticks[i] - 1) * TICK)),
+                    "level-" + i + " fired early");
+            assertEquals(List.of("level-" + i), keys(wheel.advance(ticks[i] * TICK)));
+            now = ticks[i] * TICK;
+        }
+        assertEquals(List.of(), keys(wheel.advance(now + 1000 * TICK)));
+    }
+
+    @Test
+    void roundsExpiriesUpToATick() {
+        TimerWheel wheel = new TimerWheel(0);
+        wheel.schedule("key", 1, 10 * TICK + 1);
+
+        assertEquals(List.of(), keys(wheel.advance(10 * TICK)));
+        assertEquals(List.of("key"), keys(wheel.advance(11 * TICK)));
+    }
+
+    @Test
+    void firesTimersBeyondTheTopLevel() {
+        TimerWheel wheel = new TimerWheel(0);
+        long span = 1L << 24; // Ticks covered by the four levels
+        long tick = span + span / 3;
+        wheel.schedule("far", 1, tick * TICK);
+
+        assertEquals(List.of(), keys(wheel.advance((tick - 1) * TICK)));
+        assertEquals(List.of("far"), keys(wheel.advance(tick * TICK)));
+    }
+
+    @Test
+    void firesTimersScheduledInThePastOnTheNextTick() {
+        TimerWheel wheel = new TimerWheel(100 * TICK);
+        wheel.schedule("late", 1, 50 * TICK);
+
+        List<String> fired = keys(wheel.advance(101 * TICK));
+        assertTrue(fired.contains("late"));
+    }
+
+    private static List<String> keys(List<TimerWheel.Timer> timers) {
+        List<String> keys = new ArrayList<>();
+        for (TimerWheel.Timer timer : timers) {
+            keys.add(timer.key);
+        }
+        return keys;
+    }
+}
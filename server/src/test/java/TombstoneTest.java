@@ -0,0 +1,100 @@
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the tombstone of a deleted key keeps its version while the delete is recent, and
+ * is purged by the leader once it is older than the retention and its delete has left the
+ * applied log.
+ */
+class TombstoneTest {
+
+    @AfterEach
+    void clearRetention() {
+        System.clearProperty("paxos.tombstoneRetentionMillis");
+    }
+
+    @Test
+    void tombstoneIsPurgedOnceOld() throws Exception {
+        System.setProperty("paxos.tombstoneRetentionMillis", "0");
+        Replica replica = new Replica(1, "tombstones");
+        replica.setMembers(List.of(replica));
+        String key = UUID.randomUUID().toString();
+
+        // The delete is followed by enough writes to push it out of the applied log
+        assertTrue(replica.catchUp(source(log(key, 1100))));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (replica.kvs.getTombstoneVersion(key) != 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        assertNull(replica.kvs.getStored(List.of(key)).get(key));
+        replica.kvs.put(key, "again");
+        assertEquals(1, replica.kvs.getVersion(key));
+    }
+
+    @Test
+    void recentTombstoneKeepsItsVersion() throws Exception {
+        Replica replica = new Replica(1, "recent-tombstones");
+        replica.setMembers(List.of(replica));
+        String key = UUID.randomUUID().toString();
+
+        assertTrue(replica.catchUp(source(log(key, 1100))));
+        Thread.sleep(1500);
+
+        assertNotNull(replica.kvs.getStored(List.of(key)).get(key));
+        assertEquals(2, replica.kvs.getTombstoneVersion(key));
+        replica.kvs.put(key, "again");
+        assertEquals(3, replica.kvs.getVersion(key));
+    }
+
+    /**
+     * Creates a log that writes and deletes a key, followed by writes to other keys.
+     */
+    private static JSONObject log(String key, int count) {
+        JSONObject log = new JSONObject();
+        log.put("1", new JSONObject().put("method", "PUT").put("data", new JSONObject()
+                .put(key, "v")).put("commandId", UUID.randomUUID().toString()).toString());
+        log.put("2", new JSONObject().put("method", "DEL").put("data", key)
+                .put("commandId", UUID.randomUUID().toString()).toString());
+        for (int index = 3; index <= count; index++) {
+            log.put(Integer.toString(index), new JSONObject().put("method", "PUT")
+                    .put("data", new JSONObject().put(key + "-" + index % 10, "v" + index))
+                    .put("commandId", UUID.randomUUID().toString()).toString());
+        }
+        return log;
+    }
+
+    /**
+     * Creates a replica to catch up with, which serves an empty snapshot and then the log.
+     */
+    private static ReplicaInterface source(JSONObject log) {
+        JSONObject header = new JSONObject().put("snapshotId", 1).put("appliedIndex", 0)
+                .put("tail", new JSONObject()).put("sessions", new JSONObject());
+        JSONObject chunk = new JSONObject().put("pairs", new JSONObject()).put("last", true);
+        return (ReplicaInterface) Proxy.newProxyInstance(ReplicaInterface.class.getClassLoader(),
+                new Class<?>[]{ReplicaInterface.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "beginSnapshot":
+                            return header.toString();
+                        case "getSnapshotChunk":
+                            return chunk.toString();
+                        case "getLogSince":
+                            return log.toString();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}